@@ -6,7 +6,10 @@ GOTO START
     echo NOTE: Please make sure that you're running this script under the homeworks/ directory!
     echo    * compile: compiles the java code and javadocs
     echo    * run: runs the program (assumes that you've compiled first)
-    echo    * server: compiles and runs the server code
+    echo    * server [mode] [port] [coordinator] [relay port]: compiles and runs the server code (mode is thread, virtual or nio)
+    echo    * coordinator [port]: compiles and runs the matchmaking coordinator of a server cluster (defaults to 9000)
+    echo    * bench [name] [args]: compiles and runs a benchmark of src/bench (defaults to ParserBenchmark)
+    echo    * verify [directory] [threads]: compiles the server and replays the recorded games to check their scores (defaults to replays)
     echo    * help: lists all the possible commands (brings up this list)
     echo    * clean: cleans the directories
 
@@ -42,10 +45,37 @@ if "%1"=="server" (
    javac -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/*.java 
    echo Running server...
 	java -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/TetrisDatabase
-	java -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/TetrisServer
+	java -XX:StartFlightRecording=name=tetris,maxage=1h -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/TetrisServer %2 %3 %4 %5
    exit /B 0
 )
 
+if "%1"=="coordinator" (
+   echo Compiling server...
+   javac -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/*.java
+   echo Running coordinator...
+   java -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/ClusterCoordinator %2
+   exit /B 0
+)
+
+if "%1"=="verify" (
+   echo Compiling server...
+   javac -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/*.java
+   echo Verifying replays...
+   java -cp "lib/sqlite-jdbc-3.30.1.jar;." src/server/ReplayVerifier %2 %3
+   exit /B 0
+)
+
+if "%1"=="bench" (
+   echo Compiling benchmarks...
+   javac -cp "lib/sqlite-jdbc-3.30.1.jar;." src/main/*.java src/server/*.java src/bench/*.java
+   echo Running benchmark...
+   if [%2]==[] (
+      java -cp "lib/sqlite-jdbc-3.30.1.jar;." src/bench/ParserBenchmark
+   ) else (
+      java -cp "lib/sqlite-jdbc-3.30.1.jar;." src/bench/%2 %3 %4 %5 %6
+   )
+   exit /B 0
+)
 
 ::clean
 if "%1"=="clean" (
@@ -53,6 +83,7 @@ if "%1"=="clean" (
    
    DEL /Q src\main\*.class >nul 2>&1
    DEL /Q src\server\*.class >nul 2>&1
+   DEL /Q src\bench\*.class >nul 2>&1
 
    ::removing javadocs files
    DEL /Q docs\*.html docs\*.js docs\*.zip docs\*.css >nul 2>&1
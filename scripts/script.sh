@@ -8,7 +8,7 @@ then
 else
     if [ $1 != "compile" ] && [ $1 != "run" ]
     then
-	if [ $1 != "clean" ] && [ $1 != "server" ]
+	if [ $1 != "clean" ] && [ $1 != "server" ] && [ $1 != "bench" ] && [ $1 != "coordinator" ] && [ $1 != "verify" ]
 	then
 	    show_help=1
 	fi
@@ -31,7 +31,10 @@ then
     echo "NOTE: Please make sure that you're running this script under the homeworks/ directory!"
     echo "   * compile: compiles the java code and javadocs"
     echo "   * run: runs the program (assumes that you've compiled first)"
-    echo "   * server: compiles and runs the server code"
+    echo "   * server [mode] [port] [coordinator] [relay port]: compiles and runs the server code (mode is thread, virtual or nio)"
+    echo "   * coordinator [port]: compiles and runs the matchmaking coordinator of a server cluster (defaults to 9000)"
+    echo "   * bench [name] [args]: compiles and runs a benchmark of src/bench (defaults to ParserBenchmark)"
+    echo "   * verify [directory] [threads]: compiles the server and replays the recorded games to check their scores (defaults to replays)"
     echo "   * help: lists all the possible commands (brings up this list)"
     echo "   * clean: cleans the directories"
 
@@ -58,7 +61,31 @@ else
     javac -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/*.java 
     echo "Running server..."
 	java -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/TetrisDatabase
-	java -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/TetrisServer
+	java -XX:StartFlightRecording=name=tetris,maxage=1h -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/TetrisServer $2 $3 $4 $5
+    fi
+
+    if [ $1 = "coordinator" ]
+    then
+	echo "Compiling server..."
+	javac -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/*.java
+	echo "Running coordinator..."
+	java -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/ClusterCoordinator $2
+    fi
+
+    if [ $1 = "verify" ]
+    then
+	echo "Compiling server..."
+	javac -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/*.java
+	echo "Verifying replays..."
+	java -cp "lib/sqlite-jdbc-3.30.1.jar:." src/server/ReplayVerifier $2 $3
+    fi
+
+    if [ $1 = "bench" ]
+    then
+	echo "Compiling benchmarks..."
+	javac -cp "lib/sqlite-jdbc-3.30.1.jar:." src/main/*.java src/server/*.java src/bench/*.java
+	echo "Running benchmark..."
+	java -cp "lib/sqlite-jdbc-3.30.1.jar:." src/bench/${2:-ParserBenchmark} $3 $4 $5 $6
     fi
 
     #clean
@@ -67,6 +94,7 @@ else
 	echo "Cleaning directories..."
 	rm -rf src/main/*.class
 	rm -rf src/server/*.class
+	rm -rf src/bench/*.class
 	
 	#removing javadocs files
 	rm -rf docs/*.html docs/*.js docs/*.zip docs/*.css
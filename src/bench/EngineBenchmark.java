@@ -0,0 +1,170 @@
+package src.bench;
+
+import java.util.Random;
+import src.main.Shape;
+import src.main.TetrisEngine;
+
+/**
+ * <b>EngineBenchmark</b> measures the hot paths of the game engine: the move
+ * checks, the line removal, the lines added by the opponent, the hard drop,
+ * the board exports and imports, and the rotations. It runs the TetrisEngine
+ * that Board, the server's HeadlessGame and the ReplayVerifier all use, with no
+ * Board and no display.
+ * <p>
+ * Every engine benchmark runs on three realistic fills of the board: the low
+ * (4 rows), mid (10 rows) and high (16 rows) stacks of landed pieces, each row
+ * with one or two holes. The benchmarks that change the board (removeFullLines,
+ * addLine and dropDown) first restore it with fromCells(), whose own cost is
+ * the fromCells benchmark.
+ * <p>
+ * Run with: java src.bench.EngineBenchmark [filter] (see Harness)
+ */
+public class EngineBenchmark {
+
+    /** The fills of the board, by name */
+    private static final String[] FILLS = { "low", "mid", "high" };
+
+    /** The number of rows of each fill */
+    private static final int[] FILL_ROWS = { 4, 10, 16 };
+
+    /**
+     * <b>State</b> is an engine with a board filled up to a number of rows,
+     * and the inputs of the benchmarks
+     */
+    static class State {
+        private static final int NUM_PROBES = 64;
+
+        TetrisEngine engine;   /** The engine, with a piece at the top */
+        byte[] cells;          /** The cells of the filled board */
+        byte[] fullCells;      /** The cells of the filled board, with two full rows */
+        String board;          /** The String representation of the filled board */
+        String line;           /** A line sent by the opponent */
+        Shape[] probes;        /** The pieces checked by checkMove and moved by tryMove */
+        int[] probeX;          /** The x coordinates of the probes */
+        int[] probeY;          /** The y coordinates of the probes, in the filled rows or just above them */
+        int n;                 /** The number of operations so far, picks the next input */
+
+        /**
+         * Creates an instance of the State
+         * @param rows The number of filled rows
+         */
+        State(int rows) {
+            Random random = new Random(rows);
+            int size = TetrisEngine.BOARD_WIDTH * TetrisEngine.BOARD_HEIGHT;
+            cells = new byte[size];
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < TetrisEngine.BOARD_WIDTH; x++)
+                    cells[y * TetrisEngine.BOARD_WIDTH + x] = (byte) (1 + random.nextInt(7));
+                int holes = 1 + random.nextInt(2);
+                for (int i = 0; i < holes; i++)
+                    cells[y * TetrisEngine.BOARD_WIDTH + random.nextInt(TetrisEngine.BOARD_WIDTH)] = 0;
+            }
+            fullCells = cells.clone();
+            for (int y = 1; y <= 3 && y < rows; y += 2) {
+                for (int x = 0; x < TetrisEngine.BOARD_WIDTH; x++)
+                    fullCells[y * TetrisEngine.BOARD_WIDTH + x] = 8;
+            }
+
+            engine = new TetrisEngine(null);
+            engine.start(rows);
+            engine.fromCells(cells);
+            board = engine.toString();
+            line = "XXXX.XXXXX";
+
+            probes = new Shape[NUM_PROBES];
+            probeX = new int[NUM_PROBES];
+            probeY = new int[NUM_PROBES];
+            for (int i = 0; i < NUM_PROBES; i++) {
+                Shape s = new Shape(i);
+                s.setShape(1 + random.nextInt(7));
+                for (int r = random.nextInt(4); r > 0; r--)
+                    s = s.rotateRight();
+                probes[i] = s;
+                probeX[i] = random.nextInt(TetrisEngine.BOARD_WIDTH);
+                //the rows of the stack, where the cells of the board decide the move, and its surface
+                probeY[i] = random.nextInt(rows + 2);
+            }
+        }
+
+        long checkMove() {
+            int i = n++ & (NUM_PROBES - 1);
+            return engine.checkMove(probes[i], probeX[i], probeY[i]) ? 1 : 0;
+        }
+
+        long tryMove() {
+            //a move that succeeds also makes the probe the current piece, as the moves of a game do
+            int i = n++ & (NUM_PROBES - 1);
+            return engine.tryMove(probes[i], probeX[i], probeY[i]) ? 1 : 0;
+        }
+
+        long removeFullLines() {
+            engine.fromCells(fullCells);
+            engine.removeFullLines();
+            return engine.getScore();
+        }
+
+        long addLine() {
+            engine.fromCells(cells);
+            engine.addLine(line);
+            return engine.getY();
+        }
+
+        long dropDown() {
+            engine.fromCells(cells);
+            engine.newPiece(1 + (n++ % 7));
+            engine.dropDown();
+            return engine.getNumPieces();
+        }
+
+        long fromCells() {
+            engine.fromCells(cells);
+            return n++;
+        }
+
+        long toStringBoard() {
+            return engine.toString().charAt(n++ % cells.length);
+        }
+
+        long fromString() {
+            engine.fromString(board);
+            return n++;
+        }
+    }
+
+    /**
+     * The EngineBenchmark main function
+     * @param args The command line arguments, args[0] is the optional filter
+     * of the benchmark names
+     */
+    public static void main(String[] args) throws Exception {
+        Harness h = new Harness(EngineBenchmark.class, args);
+        for (int f = 0; f < FILLS.length; f++) {
+            int rows = FILL_ROWS[f];
+            String fill = ":" + FILLS[f];
+            h.add("checkMove" + fill, () -> new State(rows)::checkMove);
+            h.add("tryMove" + fill, () -> new State(rows)::tryMove);
+            h.add("removeFullLines" + fill, () -> new State(rows)::removeFullLines);
+            h.add("addLine" + fill, () -> new State(rows)::addLine);
+            h.add("dropDown" + fill, () -> new State(rows)::dropDown);
+            h.add("fromCells" + fill, () -> new State(rows)::fromCells);
+            h.add("toString" + fill, () -> new State(rows)::toStringBoard);
+            h.add("fromString" + fill, () -> new State(rows)::fromString);
+        }
+
+        Shape[] shapes = new Shape[7];
+        for (int i = 0; i < shapes.length; i++) {
+            shapes[i] = new Shape(i);
+            shapes[i].setShape(i + 1);
+        }
+        int[] n = new int[1];
+        h.add("rotateLeft", () -> () -> {
+            Shape s = shapes[n[0]++ % shapes.length].rotateLeft();
+            return s.x(0) + s.y(3);
+        });
+        h.add("rotateRight", () -> () -> {
+            Shape s = shapes[n[0]++ % shapes.length].rotateRight();
+            return s.x(0) + s.y(3);
+        });
+        h.run();
+    }
+}
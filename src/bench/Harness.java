@@ -0,0 +1,229 @@
+package src.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * <b>Harness</b> runs microbenchmarks the way JMH does, without needing JMH on
+ * the classpath: every benchmark runs in its own forked JVM, so that the JIT
+ * profile of one doesn't skew the next; it is warmed up for WARMUP_ITERATIONS
+ * timed iterations, then measured for ITERATIONS; and the results of the
+ * operations are folded into a sink, so that the JIT can't remove them as dead
+ * code. It reports the operations per second (the mean and the spread of the
+ * iterations), the time per operation and the bytes allocated per operation by
+ * all the threads of the JVM, so that the garbage of a server running in the
+ * benchmark's JVM counts too.
+ * <p>
+ * The operations are called in batches between two reads of the clock, the
+ * batch growing until it takes at least BATCH_NANOS, so that reading the clock
+ * doesn't weigh on operations of a few nanoseconds.
+ * <p>
+ * A benchmark class adds its benchmarks to a Harness in its main function and
+ * calls run(). Its first argument, if any, only runs the benchmarks whose name
+ * contains it.
+ */
+public class Harness {
+
+    /** The number of iterations run before measuring */
+    public static int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 5);
+
+    /** The number of iterations measured */
+    public static int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+
+    /** The length of an iteration, in milliseconds */
+    public static int ITERATION_MILLIS = Integer.getInteger("bench.millis", 1000);
+
+    /** Runs each benchmark in a forked JVM if true, in this JVM otherwise */
+    public static boolean FORK = !Boolean.getBoolean("bench.forked") && !"false".equals(System.getProperty("bench.fork"));
+
+    /** The shortest time of a batch of operations between two reads of the clock */
+    public static long BATCH_NANOS = 100000;
+
+    /**
+     * <b>Benchmark</b> is the operation being measured
+     */
+    public interface Benchmark {
+
+        /**
+         * Runs the operation once
+         * @return A result of the operation, folded into the sink
+         * @throws Exception If the operation fails, which ends the benchmark
+         */
+        long run() throws Exception;
+
+        /**
+         * Releases what the benchmark holds, once it has been measured
+         * @throws Exception If it can't be released
+         */
+        default void tearDown() throws Exception {
+        }
+    }
+
+    /**
+     * <b>Setup</b> creates the state of a benchmark, only in the JVM running
+     * it
+     */
+    public interface Setup {
+
+        /**
+         * Creates the benchmark and its state
+         * @return The benchmark
+         * @throws Exception If the state can't be created
+         */
+        Benchmark create() throws Exception;
+    }
+
+    private static long sink;  /** Holds the folded results, so that they are used */
+
+    private Class<?> main;                        /** The benchmark class, run again in the forked JVMs */
+    private String[] args;                        /** The arguments of the benchmark class */
+    private LinkedHashMap<String, Setup> benchmarks; /** The benchmarks, by name, in order */
+
+    /**
+     * Creates an instance of the Harness
+     * @param main The benchmark class, whose main function creates the harness
+     * @param args The arguments of the main function, args[0] is the optional
+     * filter of the benchmark names
+     */
+    public Harness(Class<?> main, String[] args) {
+        this.main = main;
+        this.args = args;
+        benchmarks = new LinkedHashMap<String, Setup>();
+    }
+
+    /**
+     * Adds a benchmark
+     * @param name The name of the benchmark
+     * @param setup Creates the benchmark, only if it is run
+     */
+    public void add(String name, Setup setup) {
+        benchmarks.put(name, setup);
+    }
+
+    /**
+     * Runs the benchmarks matching the filter, and prints their results
+     * @throws Exception If a benchmark fails
+     */
+    public void run() throws Exception {
+        String filter = (args.length > 0) ? args[0] : "";
+        boolean exact = filter.startsWith("=");
+        if (!Boolean.getBoolean("bench.forked"))
+            System.out.println(String.format("%-28s %14s %8s %12s %12s", "Benchmark", "ops/s", "error", "ns/op", "B/op"));
+
+        for (Map.Entry<String, Setup> b : benchmarks.entrySet()) {
+            String name = b.getKey();
+            if (exact ? !name.equals(filter.substring(1)) : !name.contains(filter))
+                continue;
+            if (FORK)
+                fork(name);
+            else
+                measure(name, b.getValue().create());
+        }
+    }
+
+    /**
+     * Runs a benchmark in a new JVM, with the same classpath and settings
+     */
+    private void fork(String name) throws Exception {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!arg.startsWith("-agentlib"))
+                cmd.add(arg);
+        }
+        cmd.add("-Dbench.forked=true");
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(main.getName());
+        cmd.add("=" + name);
+        for (int i = 1; i < args.length; i++)
+            cmd.add(args[i]);
+        int exit = new ProcessBuilder(cmd).inheritIO().start().waitFor();
+        if (exit != 0)
+            System.out.println(name + " failed with exit code " + exit);
+    }
+
+    /**
+     * Warms up, then measures a benchmark in this JVM, and prints its results
+     */
+    private static void measure(String name, Benchmark b) throws Exception {
+        int[] batch = { 1 };
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++)
+                iteration(b, batch, new long[1]);
+
+            double[] rates = new double[ITERATIONS];
+            long totalOps = 0;
+            long totalNanos = 0;
+            Map<Long, Long> allocated = allocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                long[] nanos = new long[1];
+                long ops = iteration(b, batch, nanos);
+                rates[i] = ops * 1e9 / nanos[0];
+                totalOps += ops;
+                totalNanos += nanos[0];
+            }
+            long bytes = 0;
+            for (Map.Entry<Long, Long> t : allocatedBytes().entrySet())
+                bytes += t.getValue() - allocated.getOrDefault(t.getKey(), 0L);
+
+            double mean = 0;
+            for (double r : rates)
+                mean += r / rates.length;
+            double variance = 0;
+            for (double r : rates)
+                variance += (r - mean) * (r - mean) / Math.max(1, rates.length - 1);
+            System.out.println(String.format("%-28s %14.0f %7.1f%% %12.1f %12.1f", name, mean,
+                    100 * Math.sqrt(variance) / mean, (double) totalNanos / totalOps, (double) bytes / totalOps));
+        } finally {
+            b.tearDown();
+        }
+        if (sink == 42)
+            System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Gets the bytes allocated so far by each live thread, by thread id. A
+     * thread that ends while measuring isn't counted.
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = mx.getAllThreadIds();
+        long[] bytes = mx.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<Long, Long>();
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0)
+                allocated.put(ids[i], bytes[i]);
+        }
+        return allocated;
+    }
+
+    /**
+     * Runs the operation in batches for ITERATION_MILLIS
+     * @param batch The number of operations between two reads of the clock,
+     * grown until a batch takes BATCH_NANOS
+     * @param nanos Gets the time taken in [0]
+     * @return The number of operations
+     */
+    private static long iteration(Benchmark b, int[] batch, long[] nanos) throws Exception {
+        long acc = 0;
+        long ops = 0;
+        long start = System.nanoTime();
+        long end = start + ITERATION_MILLIS * 1000000L;
+        long now = start;
+        while (now < end) {
+            int n = batch[0];
+            for (int i = 0; i < n; i++)
+                acc += b.run();
+            ops += n;
+            long t = System.nanoTime();
+            if (t - now < BATCH_NANOS && n < (1 << 24))
+                batch[0] = n * 2;
+            now = t;
+        }
+        nanos[0] = now - start;
+        sink += acc;
+        return ops;
+    }
+}
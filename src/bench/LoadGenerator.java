@@ -0,0 +1,333 @@
+package src.bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import src.main.TetrisProtocol;
+import src.server.LatencyHistogram;
+import src.server.TetrisServer;
+
+/**
+ * <b>LoadGenerator</b> loads a running TetrisServer with headless bot clients
+ * that speak the real text protocol: each bot registers (or logs in), plays,
+ * and during its games sends MOVE, BOARD and SEND at a set rate, then LOSE
+ * after a random game length, or WIN once its opponent has lost, and plays
+ * again, until the end of the run.
+ * <p>
+ * The relay latency is measured from the moment a bot sends a MOVE to the
+ * moment its opponent reads the OPPONENT MOVE. The keyCode of each MOVE holds
+ * the time it was sent (in microseconds, modulo 2^29 so that the server reads
+ * it as a keyCode), which the server relays as it is; the bots therefore share
+ * no state but the latency histogram. It reports the p50, p99 and p999
+ * latencies, the throughput, and the errors seen by the clients.
+ * <p>
+ * Run with: java src.bench.LoadGenerator [clients] [moves/s per client]
+ * [seconds] [host:port]. The server should run in the nio or virtual mode, as
+ * the thread mode only admits MAX_CLIENTS clients.
+ */
+public class LoadGenerator {
+
+    /** The password of the bots */
+    public static String PASSWORD = "loadtest";
+
+    /** The number of connections opened per second while ramping up */
+    public static int CONNECT_RATE = 500;
+
+    /** The shortest game of a bot, before it sends LOSE */
+    public static int MIN_GAME_SECONDS = 10;
+
+    /** The longest game of a bot, before it sends LOSE */
+    public static int MAX_GAME_SECONDS = 30;
+
+    /** A BOARD is sent after every BOARD_EVERY moves */
+    public static int BOARD_EVERY = 4;
+
+    /** A SEND is sent after every SEND_EVERY moves */
+    public static int SEND_EVERY = 25;
+
+    /** The time after which a bot waiting for a match asks to play again */
+    public static int PLAY_RETRY_MILLIS = 2000;
+
+    /** The number of seconds between two progress lines */
+    public static int REPORT_SECONDS = 5;
+
+    /** The mask of the time held by a keyCode */
+    private static final int TIME_MASK = (1 << 29) - 1;
+
+    private static LatencyHistogram latencies = new LatencyHistogram(); /** The relay latencies of all the bots */
+    private static LongAdder sent = new LongAdder();       /** The number of messages sent by the bots */
+    private static LongAdder received = new LongAdder();   /** The number of messages read by the bots */
+    private static LongAdder games = new LongAdder();      /** The number of games started, counted by both players */
+    private static LongAdder failures = new LongAdder();   /** The number of FAILURE replies, but TAKEN */
+    private static LongAdder busy = new LongAdder();       /** The number of BUSY replies, while waiting to be admitted */
+    private static LongAdder disconnects = new LongAdder(); /** The number of connections closed by the server */
+    private static LongAdder connectErrors = new LongAdder(); /** The number of connections that couldn't be opened */
+    private static AtomicInteger connected = new AtomicInteger(); /** The number of bots connected */
+    private static volatile boolean running = true;        /** False once the run has ended */
+
+    /**
+     * <b>Bot</b> is a headless client. Its reader reacts to the server, and
+     * its writer sends the game commands at the set rate; the state is shared
+     * between the two.
+     */
+    static class Bot implements TetrisProtocol.Listener {
+
+        private static final int LOGGING_IN = 0;
+        private static final int QUEUED = 1;
+        private static final int PLAYING = 2;
+
+        private String name;                  /** The username of the bot */
+        private long moveNanos;               /** The time between two moves */
+        private volatile Socket socket;       /** The connection to the server */
+        private TetrisProtocol.Writer out;    /** Writes to the server */
+        private volatile int state;           /** LOGGING_IN, QUEUED or PLAYING */
+        private volatile long gameEnd;        /** The time the bot loses its current game, from System.nanoTime() */
+        private volatile long playSent;       /** The time PLAY was last sent, from System.nanoTime() */
+        private String board;                 /** The board sent with BOARD */
+        private Random random;                /** Picks the length of the games */
+
+        Bot(String name, double movesPerSecond) {
+            this.name = name;
+            moveNanos = (long) (1e9 / movesPerSecond);
+            state = LOGGING_IN;
+            random = new Random();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < TetrisProtocol.BOARD_SIZE; i++)
+                sb.append(i < 180 ? '0' : (char) ('1' + random.nextInt(7)));
+            board = sb.toString();
+        }
+
+        /**
+         * Connects, starts the writer, then reads the server until the
+         * connection closes
+         * @param address The address of the server
+         * @param executor Runs the writer
+         */
+        void run(InetSocketAddress address, Executor executor) {
+            try {
+                socket = new Socket();
+                socket.connect(address, 10000);
+                socket.setTcpNoDelay(true);
+                out = new TetrisProtocol.Writer(socket.getOutputStream());
+            } catch (IOException e) {
+                connectErrors.increment();
+                close();
+                return;
+            }
+            connected.incrementAndGet();
+            send("REGISTER " + name + " " + PASSWORD);
+            executor.execute(this::write);
+
+            TetrisProtocol.Decoder decoder = new TetrisProtocol.Decoder(this);
+            byte[] buf = new byte[8192];
+            try {
+                InputStream in = socket.getInputStream();
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    decoder.feed(buf, 0, n);
+                if (running)
+                    disconnects.increment();
+            } catch (IOException e) {
+                if (running)
+                    disconnects.increment();
+            }
+            close();
+        }
+
+        /**
+         * Sends the game commands at the set rate, until the run ends or the
+         * connection closes
+         */
+        void write() {
+            long next = System.nanoTime();
+            int numMoves = 0;
+            while (running && !socket.isClosed()) {
+                long now = System.nanoTime();
+                if (state == PLAYING) {
+                    if (now - gameEnd >= 0) {
+                        state = QUEUED;
+                        send("LOSE 0");
+                        play(now);
+                    }
+                    else {
+                        send("MOVE " + ((now / 1000) & TIME_MASK));
+                        numMoves++;
+                        if (numMoves % BOARD_EVERY == 0)
+                            send("BOARD " + board);
+                        if (numMoves % SEND_EVERY == 0)
+                            send("SEND");
+                    }
+                }
+                //the server ignores PLAY until it has ended the last game
+                else if (state == QUEUED && now - playSent > PLAY_RETRY_MILLIS * 1000000L) {
+                    play(now);
+                }
+
+                next += moveNanos;
+                long sleep = next - System.nanoTime();
+                if (sleep < -moveNanos) {
+                    //too far behind to catch up, drops the missed moves
+                    next = System.nanoTime();
+                }
+                else if (sleep > 0) {
+                    try {
+                        Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        public void handleLine(byte[] buf, int off, int len) {
+            received.increment();
+            if (startsWith(buf, off, len, "OPPONENT MOVE ")) {
+                int keyCode = parseInt(buf, off + 14, off + len);
+                long now = (System.nanoTime() / 1000) & TIME_MASK;
+                latencies.record((now - keyCode) & TIME_MASK);
+                return;
+            }
+            if (startsWith(buf, off, len, "OPPONENT LOSE")) {
+                if (state == PLAYING) {
+                    state = QUEUED;
+                    send("WIN 0");
+                    play(System.nanoTime());
+                }
+                return;
+            }
+            //the boards and lines of the opponent are only counted
+            if (startsWith(buf, off, len, "OPPONENT ") || startsWith(buf, off, len, "SENT "))
+                return;
+
+            String line = TetrisProtocol.toLine(buf, off, len);
+            if (line.startsWith("SUCCESS ")) {
+                state = QUEUED;
+                play(System.nanoTime());
+            }
+            else if (line.equals("FAILURE TAKEN")) {
+                send("LOGIN " + name + " " + PASSWORD);
+            }
+            else if (line.startsWith("FAILURE")) {
+                failures.increment();
+            }
+            else if (line.startsWith("BUSY")) {
+                busy.increment();
+            }
+            else if (line.startsWith("MATCH ")) {
+                games.increment();
+                long length = MIN_GAME_SECONDS + random.nextInt(Math.max(1, MAX_GAME_SECONDS - MIN_GAME_SECONDS + 1));
+                gameEnd = System.nanoTime() + length * 1000000000L;
+                state = PLAYING;
+            }
+        }
+
+        public void handleFrame(int opcode, byte[] buf, int off, int len) {
+            received.increment();
+        }
+
+        private void play(long now) {
+            playSent = now;
+            send("PLAY");
+        }
+
+        private void send(String line) {
+            out.println(line);
+            sent.increment();
+        }
+
+        /**
+         * Closes the connection
+         */
+        void close() {
+            try {
+                if (socket != null)
+                    socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static boolean startsWith(byte[] buf, int off, int len, String prefix) {
+        if (len < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[off + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int parseInt(byte[] buf, int off, int end) {
+        int value = 0;
+        for (int i = off; i < end; i++)
+            value = value * 10 + (buf[i] - '0');
+        return value;
+    }
+
+    /**
+     * Prints the counts of the run so far
+     */
+    private static void report(String label, double seconds) {
+        System.out.println(String.format(
+                "%-6s %5d clients %7d games %9.0f msg/s sent %9.0f msg/s read  latency p50 %6.2f ms p99 %6.2f ms p999 %6.2f ms (%d moves)",
+                label, connected.get(), games.sum() / 2, sent.sum() / seconds, received.sum() / seconds,
+                latencies.percentile(0.5) / 1000.0, latencies.percentile(0.99) / 1000.0,
+                latencies.percentile(0.999) / 1000.0, latencies.getCount()));
+    }
+
+    /**
+     * The LoadGenerator main function
+     * @param args The command line arguments, args[0] is the optional number of
+     * clients (defaults to 1000), args[1] the optional number of moves per
+     * second of each playing client (defaults to 10), args[2] the optional
+     * length of the run in seconds (defaults to 60), args[3] the optional
+     * host:port of the server (defaults to localhost:8080)
+     */
+    public static void main(String[] args) throws Exception {
+        int numClients = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        double rate = (args.length > 1) ? Double.parseDouble(args[1]) : 10;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 60;
+        String[] hostPort = ((args.length > 3) ? args[3] : "localhost:8080").split(":");
+        InetSocketAddress address = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+
+        System.out.println("Loading " + address + " with " + numClients + " clients, " + rate
+                + " moves/s each, for " + seconds + " s");
+        ExecutorService executor = TetrisServer.newClientExecutor(true);
+        List<Bot> bots = new ArrayList<Bot>();
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long nextReport = start + REPORT_SECONDS * 1000000000L;
+
+        for (int i = 0; i < numClients && System.nanoTime() < end; i++) {
+            Bot bot = new Bot(String.format("loadbot%05d", i), rate);
+            bots.add(bot);
+            executor.execute(() -> bot.run(address, executor));
+            //ramps up at CONNECT_RATE
+            long due = start + (i + 1) * 1000000000L / CONNECT_RATE;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, Math.min(nextReport, end) - System.nanoTime()) / 1000000);
+            if (System.nanoTime() >= nextReport) {
+                report((nextReport - start) / 1000000000L + "s", (System.nanoTime() - start) / 1e9);
+                nextReport += REPORT_SECONDS * 1000000000L;
+            }
+        }
+        running = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        for (Bot bot : bots)
+            bot.close();
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        report("total", elapsed);
+        System.out.println("Errors: " + connectErrors.sum() + " connections refused, " + disconnects.sum()
+                + " disconnected by the server, " + failures.sum() + " FAILURE replies (" + busy.sum()
+                + " BUSY replies while waiting to be admitted)");
+    }
+}
@@ -0,0 +1,159 @@
+package src.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import src.main.TetrisProtocol;
+import src.server.CommandParser;
+
+/**
+ * <b>ParserBenchmark</b> measures the cost per message of reading the text
+ * protocol's game commands (MOVE, BOARD and SEND): the bytes allocated and the
+ * time taken by the read path, from the Decoder to the parsed command. It
+ * compares the String-based parsing (a String and a split() per line, as the
+ * server handled every line before) with the CommandParser.
+ * <p>
+ * Run with: java src.bench.ParserBenchmark [messages]
+ */
+public class ParserBenchmark {
+
+    /**
+     * <b>Sink</b> consumes the parsed commands, so that the parsing isn't
+     * optimized away
+     */
+    static class Sink {
+        long sum;
+
+        void move(int keyCode) {
+            sum += keyCode;
+        }
+
+        void board(byte[] cells) {
+            sum += cells[0] + cells[TetrisProtocol.BOARD_SIZE - 1];
+        }
+
+        void send() {
+            sum++;
+        }
+    }
+
+    /**
+     * <b>SplitListener</b> parses the lines the way the server did before the
+     * CommandParser, through a String and split()
+     */
+    static class SplitListener implements TetrisProtocol.Listener {
+        Sink sink = new Sink();
+        byte[] cells = new byte[TetrisProtocol.BOARD_SIZE];
+
+        public void handleLine(byte[] buf, int off, int len) {
+            String[] line = TetrisProtocol.toLine(buf, off, len).split(" ");
+            if (line[0].equals("MOVE") && line.length > 1) {
+                try {
+                    sink.move(Integer.parseInt(line[1]));
+                } catch (NumberFormatException e) {
+                }
+            }
+            if (line[0].equals("BOARD") && line.length > 1 && line[1].length() == TetrisProtocol.BOARD_SIZE) {
+                TetrisProtocol.toCells(line[1], cells);
+                sink.board(cells);
+            }
+            if (line[0].equals("SEND"))
+                sink.send();
+        }
+
+        public void handleFrame(int opcode, byte[] buf, int off, int len) {
+        }
+    }
+
+    /**
+     * <b>ParserListener</b> parses the lines with the CommandParser
+     */
+    static class ParserListener implements TetrisProtocol.Listener {
+        Sink sink = new Sink();
+        CommandParser parser = new CommandParser();
+
+        public void handleLine(byte[] buf, int off, int len) {
+            switch (parser.parse(buf, off, len)) {
+                case CommandParser.MOVE:
+                    sink.move(parser.getKeyCode());
+                    break;
+                case CommandParser.BOARD:
+                    sink.board(parser.getCells());
+                    break;
+                case CommandParser.SEND:
+                    sink.send();
+                    break;
+            }
+        }
+
+        public void handleFrame(int opcode, byte[] buf, int off, int len) {
+        }
+    }
+
+    /**
+     * Builds the input: a mix of moves, boards and sends, like a client sends
+     * during a game
+     * @param numLines Gets the number of lines in [0]
+     * @return The bytes of the lines
+     */
+    private static byte[] buildInput(int[] numLines) {
+        StringBuilder board = new StringBuilder();
+        for (int i = 0; i < TetrisProtocol.BOARD_SIZE; i++)
+            board.append((char) ('0' + (i * 7) % 9));
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (int i = 0; i < 64; i++) {
+            sb.append("MOVE ").append(37 + i % 4).append('\n');
+            sb.append("BOARD ").append(board).append('\n');
+            n += 2;
+            if (i % 8 == 0) {
+                sb.append("SEND\n");
+                n++;
+            }
+        }
+        numLines[0] = n;
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Feeds the input through a Decoder to the listener, and prints the bytes
+     * allocated and the time taken per message
+     */
+    private static void run(String name, TetrisProtocol.Listener listener, byte[] input, int linesPerInput, long messages) throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        TetrisProtocol.Decoder decoder = new TetrisProtocol.Decoder(listener);
+        long rounds = messages / linesPerInput;
+
+        //warms up, so that the JIT compiles the read path first
+        for (int i = 0; i < rounds; i++)
+            decoder.feed(input, 0, input.length);
+
+        long id = Thread.currentThread().getId();
+        long bytesBefore = mx.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            decoder.feed(input, 0, input.length);
+        long nanos = System.nanoTime() - start;
+        long bytes = mx.getThreadAllocatedBytes(id) - bytesBefore;
+
+        long total = rounds * linesPerInput;
+        System.out.println(String.format("%-8s %10d messages %10.1f bytes/message %8.1f ns/message",
+                name, total, (double) bytes / total, (double) nanos / total));
+    }
+
+    /**
+     * The ParserBenchmark main function
+     * @param args The command line arguments, args[0] is the optional number of
+     * messages per run (defaults to 5000000)
+     */
+    public static void main(String[] args) throws Exception {
+        long messages = (args.length > 0) ? Long.parseLong(args[0]) : 5000000;
+        int[] numLines = new int[1];
+        byte[] input = buildInput(numLines);
+
+        SplitListener split = new SplitListener();
+        ParserListener parser = new ParserListener();
+        run("split", split, input, numLines[0], messages);
+        run("parser", parser, input, numLines[0], messages);
+        System.out.println("(checksums " + split.sink.sum + " " + parser.sink.sum + ")");
+    }
+}
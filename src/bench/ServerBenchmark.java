@@ -0,0 +1,312 @@
+package src.bench;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import src.main.TetrisProtocol;
+import src.server.ConnectionReaper;
+import src.server.ReplayRecorder;
+import src.server.TetrisDatabase;
+import src.server.TetrisServer;
+
+/**
+ * <b>ServerBenchmark</b> measures the server side:
+ * <ul>
+ * <li>parse:* reads one game command through a Decoder and the CommandParser,
+ * the path of the handler's read loop during a game</li>
+ * <li>relay:* sends MOVE, BOARD or SEND from one player to a server running in
+ * this JVM (in the nio mode, on a loopback port), and counts what the
+ * opponent is sent. Up to WINDOW commands are in flight, so it measures the
+ * sustained relay throughput, and the garbage the server makes per command
+ * (relay:send covers send(), which generates the line sent)</li>
+ * <li>db:* calls a TetrisDatabase method on a temporary SQLite file holding
+ * NUM_USERS users (db:addGame only queues the result, but once the queue of
+ * the GameResultWriter is full it writes the result itself, so it measures
+ * the throughput of the writer)</li>
+ * </ul>
+ * The bytes per operation count all the threads, the server's included. The
+ * server logs at the production levels, as it does when deployed; its SEND
+ * entries can be turned off with -Dtetris.log=SEND=OFF (see ServerLog).
+ * <p>
+ * Run with: java src.bench.ServerBenchmark [filter] (see Harness)
+ */
+public class ServerBenchmark {
+
+    /** The maximum number of relayed commands the opponent hasn't read yet */
+    public static int WINDOW = 256;
+
+    /** The number of users in the temporary database */
+    public static int NUM_USERS = 500;
+
+    /** The password of the users */
+    private static final String PASSWORD = "benchmark";
+
+    /** The number of different boards sent by relay:board, which tell them apart */
+    private static final int NUM_BOARDS = 1024;
+
+    private static Path dir;      /** The temporary directory of the database and replays */
+    private static int port;      /** The port of the server, 0 until it runs */
+    private static AtomicInteger numClients = new AtomicInteger(); /** Names the clients */
+
+    /**
+     * Points the database and the replays to a temporary directory, once
+     */
+    private static synchronized void useTemporaryDirectory() throws IOException {
+        if (dir != null)
+            return;
+        dir = Files.createTempDirectory("tetris-bench");
+        dir.toFile().deleteOnExit();
+        TetrisDatabase.URL = "jdbc:sqlite:" + dir.resolve("tetris.db");
+        TetrisDatabase.createDB();
+        ReplayRecorder.DIRECTORY = dir.resolve("replays").toString();
+    }
+
+    /**
+     * Starts a server in this JVM on a free port, once
+     * @return The port of the server
+     */
+    private static synchronized int startServer() throws Exception {
+        if (port != 0)
+            return port;
+        useTemporaryDirectory();
+        //the opponents of the relay benchmarks only read, so they mustn't be reaped as silent
+        ConnectionReaper.IDLE_TIMEOUT_MILLIS = Long.MAX_VALUE;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        Thread t = new Thread(() -> TetrisServer.main(new String[] { "nio", String.valueOf(port) }), "Server");
+        t.setDaemon(true);
+        t.start();
+        //waits until the server accepts a connection
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("The server didn't start");
+    }
+
+    /**
+     * <b>Client</b> is a text client of the server, whose reader counts what
+     * it is sent
+     */
+    static class Client implements TetrisProtocol.Listener {
+        Socket socket;                        /** The connection to the server */
+        TetrisProtocol.Writer out;            /** Writes to the server */
+        CountDownLatch loggedIn = new CountDownLatch(1); /** Opens once the user has registered */
+        CountDownLatch matched = new CountDownLatch(1);  /** Opens once the user is in a game */
+        AtomicLong moves = new AtomicLong();  /** The number of OPPONENT MOVE read */
+        AtomicLong sends = new AtomicLong();  /** The number of OPPONENT SEND read */
+        volatile int lastBoard = -1;          /** The number of the last board read */
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new TetrisProtocol.Writer(socket.getOutputStream());
+            Thread t = new Thread(this::read, "Client");
+            t.setDaemon(true);
+            t.start();
+            out.println("REGISTER bench" + numClients.incrementAndGet() + "x " + PASSWORD);
+        }
+
+        private void read() {
+            TetrisProtocol.Decoder decoder = new TetrisProtocol.Decoder(this);
+            byte[] buf = new byte[65536];
+            try {
+                InputStream in = socket.getInputStream();
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    decoder.feed(buf, 0, n);
+            } catch (IOException e) {
+            }
+        }
+
+        public void handleLine(byte[] buf, int off, int len) {
+            if (startsWith(buf, off, len, "OPPONENT MOVE "))
+                moves.incrementAndGet();
+            else if (startsWith(buf, off, len, "BOARD "))
+                lastBoard = boardNumber(buf, off + 6);
+            else if (startsWith(buf, off, len, "OPPONENT SEND "))
+                sends.incrementAndGet();
+            else if (startsWith(buf, off, len, "SUCCESS "))
+                loggedIn.countDown();
+            else if (startsWith(buf, off, len, "MATCH "))
+                matched.countDown();
+        }
+
+        public void handleFrame(int opcode, byte[] buf, int off, int len) {
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * <b>Relay</b> is a game between two clients, one of which sends a command
+     * per operation
+     */
+    static class Relay implements Harness.Benchmark {
+        private Client a;                       /** The player sending the commands */
+        private Client b;                       /** The opponent */
+        private String command;                 /** MOVE, BOARD or SEND */
+        private TetrisProtocol.Encoded move;    /** The MOVE line */
+        private TetrisProtocol.Encoded send;    /** The SEND line */
+        private TetrisProtocol.Encoded[] boards; /** The BOARD lines, numbered */
+        private long numSent;                   /** The number of commands sent */
+
+        Relay(String command) throws Exception {
+            this.command = command;
+            int port = startServer();
+            a = new Client(port);
+            b = new Client(port);
+            a.loggedIn.await(10, TimeUnit.SECONDS);
+            b.loggedIn.await(10, TimeUnit.SECONDS);
+            a.out.println("PLAY");
+            b.out.println("PLAY");
+            if (!a.matched.await(10, TimeUnit.SECONDS) || !b.matched.await(10, TimeUnit.SECONDS))
+                throw new IOException("The clients weren't matched");
+
+            move = new TetrisProtocol.Encoded("MOVE 37");
+            send = new TetrisProtocol.Encoded("SEND");
+            boards = new TetrisProtocol.Encoded[NUM_BOARDS];
+            for (int i = 0; i < NUM_BOARDS; i++)
+                boards[i] = new TetrisProtocol.Encoded("BOARD " + board(i));
+        }
+
+        public long run() throws Exception {
+            switch (command) {
+                case "MOVE":
+                    while (numSent - b.moves.get() >= WINDOW)
+                        Thread.yield();
+                    a.out.write(move);
+                    break;
+                case "SEND":
+                    while (numSent - b.sends.get() >= WINDOW)
+                        Thread.yield();
+                    a.out.write(send);
+                    break;
+                default:
+                    //boards are coalesced by the Match, so the number of the last one read tells how far behind b is
+                    while (((int) numSent - b.lastBoard - 1 & (NUM_BOARDS - 1)) >= WINDOW)
+                        Thread.yield();
+                    a.out.write(boards[(int) (numSent & (NUM_BOARDS - 1))]);
+                    break;
+            }
+            return ++numSent;
+        }
+
+        public void tearDown() throws Exception {
+            a.close();
+            b.close();
+        }
+    }
+
+    /**
+     * Gets a board whose first cells hold its number, in base 9
+     */
+    private static String board(int number) {
+        char[] cells = new char[TetrisProtocol.BOARD_SIZE];
+        for (int i = 0; i < cells.length; i++)
+            cells[i] = (i >= 180) ? (char) ('1' + i % 7) : '0';
+        for (int i = 0; i < 5; i++) {
+            cells[i] = (char) ('0' + number % 9);
+            number /= 9;
+        }
+        return new String(cells);
+    }
+
+    /**
+     * Reads the number of a board from its first cells
+     */
+    private static int boardNumber(byte[] buf, int off) {
+        int number = 0;
+        for (int i = 4; i >= 0; i--)
+            number = number * 9 + (buf[off + i] - '0');
+        return number;
+    }
+
+    private static boolean startsWith(byte[] buf, int off, int len, String prefix) {
+        if (len < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[off + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates the benchmark of reading a line through a Decoder and the
+     * CommandParser
+     */
+    private static Harness.Benchmark parse(String line) {
+        ParserBenchmark.ParserListener listener = new ParserBenchmark.ParserListener();
+        TetrisProtocol.Decoder decoder = new TetrisProtocol.Decoder(listener);
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+        return () -> {
+            decoder.feed(bytes, 0, bytes.length);
+            return listener.sink.sum;
+        };
+    }
+
+    /**
+     * Creates a temporary database with NUM_USERS users
+     * @return The usernames
+     */
+    private static String[] users() throws IOException {
+        useTemporaryDirectory();
+        String[] users = new String[NUM_USERS];
+        for (int i = 0; i < NUM_USERS; i++) {
+            users[i] = String.format("benchuser%04d", i);
+            TetrisDatabase.addUser(users[i], PASSWORD);
+        }
+        return users;
+    }
+
+    /**
+     * The ServerBenchmark main function
+     * @param args The command line arguments, args[0] is the optional filter
+     * of the benchmark names
+     */
+    public static void main(String[] args) throws Exception {
+        Harness h = new Harness(ServerBenchmark.class, args);
+        h.add("parse:move", () -> parse("MOVE 37"));
+        h.add("parse:board", () -> parse("BOARD " + board(12345)));
+        h.add("parse:send", () -> parse("SEND"));
+
+        h.add("relay:move", () -> new Relay("MOVE"));
+        h.add("relay:board", () -> new Relay("BOARD"));
+        h.add("relay:send", () -> new Relay("SEND"));
+
+        int[] n = new int[1];
+        h.add("db:authenticateUser", () -> {
+            String[] users = users();
+            int password = PASSWORD.hashCode();
+            return () -> TetrisDatabase.authenticateUser(users[n[0]++ % users.length], password) ? 1 : 0;
+        });
+        h.add("db:getStats", () -> {
+            String[] users = users();
+            return () -> TetrisDatabase.getStats(users[n[0]++ % users.length])[1];
+        });
+        h.add("db:addGame", () -> {
+            String[] users = users();
+            return () -> {
+                int i = n[0]++;
+                TetrisDatabase.addGame(users[i % users.length], (i & 1) == 0, i % 1000);
+                return i;
+            };
+        });
+        h.add("db:getLeaderboard", () -> {
+            users();
+            return () -> TetrisDatabase.getLeaderboard().length;
+        });
+        h.run();
+    }
+}
@@ -7,22 +7,18 @@ import javax.swing.*;
 /**
  * <b>Board</b> represents a panel that holds a single Tetris game. The board
  * can either be active, allowing the player to control it, or passive, waiting
- * for inputs from the server to update.
+ * for inputs from the server to update. The rules of the game are in the
+ * <b>TetrisEngine</b>; the board drives it from the timer and the keyboard, and
+ * paints it.
  */
-public class Board extends JPanel implements ActionListener {
+public class Board extends JPanel implements ActionListener, TetrisEngine.Listener {
 
-    private static final int BOARD_WIDTH = 10;
-    private static final int BOARD_HEIGHT = 22;
+    private static final int BOARD_WIDTH = TetrisEngine.BOARD_WIDTH;
+    private static final int BOARD_HEIGHT = TetrisEngine.BOARD_HEIGHT;
     private Timer timer;
-    private boolean isFallingFinished = false;
-    private boolean isStarted = false;
-    private int numLinesRemoved = 0;
-    private int currX = 0;
-    private int currY = 0;
     private JLabel statusBar;
-    private Shape currPiece;
     private Tetris parent;
-    private Tetromino[] board;
+    private TetrisEngine engine;
     private boolean player;
 
     /**
@@ -36,15 +32,22 @@ public class Board extends JPanel implements ActionListener {
         player = p;
         setFocusable(true);
         timer = new Timer(400, this); // timer for lines down
-        currPiece = new Shape(0);
         parent = newParent;
         statusBar = newParent.getStatusBar();
-        board = new Tetromino[BOARD_WIDTH * BOARD_HEIGHT];
-        clearBoard();
+        engine = new TetrisEngine(this);
         if (player)
             addKeyListener(new TetrisKeyAdapter());
     }
 
+    /**
+     * Accessor for the engine running this board's game
+     * 
+     * @return the engine of this board
+     */
+    public TetrisEngine getEngine() {
+        return engine;
+    }
+
     /**
      * Accessor for a tile's width
      * 
@@ -72,17 +75,14 @@ public class Board extends JPanel implements ActionListener {
      *         NoShape
      */
     public Tetromino shapeAt(int x, int y) {
-        return board[y * BOARD_WIDTH + x];
+        return engine.shapeAt(x, y);
     }
 
     /**
      * Reset the board to its original empty state
      */
     public void clearBoard() {
-        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
-            board[i] = Tetromino.NoShape;
-        }
-
+        engine.clearBoard();
         repaint();
     }
 
@@ -90,10 +90,9 @@ public class Board extends JPanel implements ActionListener {
      * Stop the current game
      */
     public void stop() {
-        clearBoard();
-        currPiece.setShape(Tetromino.NoShape);
+        engine.stop();
+        repaint();
         timer.stop();
-        isStarted = false;
         statusBar.setText("0");
     }
 
@@ -104,36 +103,7 @@ public class Board extends JPanel implements ActionListener {
      *             are NoShapes
      */
     public void addLine(String line) {
-        if (!checkMove(currPiece, currX, currY - 1)) {
-            currY++;
-        }
-
-        for (int i = BOARD_HEIGHT - 1; i > 0; --i) {
-            for (int j = 0; j < BOARD_WIDTH; ++j) {
-                board[i * BOARD_WIDTH + j] = shapeAt(j, i - 1);
-            }
-        }
-
-        for (int i = 0; i < 10; i++) {
-            board[i] = (line.charAt(i) == 'X') ? Tetromino.FillShape : Tetromino.NoShape;
-        }
-    }
-
-    /**
-     * Handle a piece that has reached a point where it can no longer descend
-     */
-    private void pieceDropped() {
-        for (int i = 0; i < 4; i++) {
-            int x = currX + currPiece.x(i);
-            int y = currY - currPiece.y(i);
-            board[y * BOARD_WIDTH + x] = currPiece.getShape();
-        }
-
-        removeFullLines();
-
-        if (!isFallingFinished) {
-            newPiece();
-        }
+        engine.addLine(line);
     }
 
     /**
@@ -142,26 +112,14 @@ public class Board extends JPanel implements ActionListener {
      * @return the number of lines that the player has cleared this game
      */
     public int getScore() {
-        return numLinesRemoved;
+        return engine.getScore();
     }
 
     /**
      * Generate a new piece and spawn it at the top
      */
     public void newPiece() {
-        currPiece.setRandomShape();
-        currX = BOARD_WIDTH / 2 + 1;
-        currY = BOARD_HEIGHT - 1 + currPiece.minY();
-
-        if (!tryMove(currPiece, currX, currY - 1)) {
-            currPiece.setShape(Tetromino.NoShape);
-            timer.stop();
-            isStarted = false;
-            statusBar.setText("Game Over");
-
-            if (player)
-                parent.clientHandler.lose(numLinesRemoved);
-        }
+        engine.newPiece();
     }
 
     /**
@@ -171,44 +129,81 @@ public class Board extends JPanel implements ActionListener {
      */
     public void newPiece(int p) {
         if (!player) {
-            currPiece.setShape(p);
-            currX = BOARD_WIDTH / 2 + 1;
-            currY = BOARD_HEIGHT - 1 + currPiece.minY();
+            engine.newPiece(p);
+        }
+    }
+
+    /**
+     * ActionListener for the board
+     * 
+     * @param ae - the event that has occurred
+     */
+    @Override
+    public void actionPerformed(ActionEvent ae) {
+        if (player)
+            parent.clientHandler.tick();
+        engine.tick();
+    }
 
-            if (!tryMove(currPiece, currX, currY - 1)) {
-                currPiece.setShape(Tetromino.NoShape);
-                timer.stop();
-                isStarted = false;
-                statusBar.setText("Game Over");
+    /**
+     * Repaint the board, and send it to the server, after the current piece has
+     * moved
+     */
+    @Override
+    public void pieceMoved() {
+        repaint();
 
-                parent.clientHandler.lose(numLinesRemoved);
-            }
-        }
+        if (player)
+            sendBoard();
     }
 
     /**
-     * Attempt to move the current piece down one square
+     * Show the updated score while full lines are being removed
+     * 
+     * @param numLinesRemoved - the score of the game
      */
-    private void oneLineDown() {
-        if (!tryMove(currPiece, currX, currY - 1))
-            pieceDropped();
+    @Override
+    public void scoreChanged(int numLinesRemoved) {
+        statusBar.setText(String.valueOf(numLinesRemoved));
+        repaint();
     }
 
     /**
-     * ActionListener for the board
+     * Send the opponent one line for every line cleared past the first
      * 
-     * @param ae - the event that has occurred
+     * @param numFullLines - the number of lines that were removed at once
      */
     @Override
-    public void actionPerformed(ActionEvent ae) {
-        if (isFallingFinished) {
-            isFallingFinished = false;
-            newPiece();
-        } else {
-            oneLineDown();
+    public void linesCleared(int numFullLines) {
+        if (numFullLines > 1 && player) {
+            for (int k = 0; k < numFullLines - 1; k++) {
+                parent.clientHandler.send();
+            }
         }
     }
 
+    /**
+     * Remember the state of the board after every landed piece, so that it can
+     * be checked against the server
+     */
+    @Override
+    public void pieceLocked() {
+        if (player)
+            parent.clientHandler.pieceLocked(engine.getNumPieces(), engine.hash());
+    }
+
+    /**
+     * End the game once no new piece fits on the board
+     */
+    @Override
+    public void gameOver() {
+        timer.stop();
+        statusBar.setText("Game Over");
+
+        if (player)
+            parent.clientHandler.lose(engine.getScore());
+    }
+
     /**
      * Draw a single tile on the board
      * 
@@ -250,10 +245,11 @@ public class Board extends JPanel implements ActionListener {
             }
         }
 
+        Shape currPiece = engine.getPiece();
         if (currPiece.getShape() != Tetromino.NoShape) {
             for (int i = 0; i < 4; ++i) {
-                int x = currX + currPiece.x(i);
-                int y = currY - currPiece.y(i);
+                int x = engine.getX() + currPiece.x(i);
+                int y = engine.getY() - currPiece.y(i);
                 drawSquare(g, x * squareWidth(), boardTop + (BOARD_HEIGHT - y - 1) * squareHeight(),
                         currPiece.getShape());
             }
@@ -266,125 +262,30 @@ public class Board extends JPanel implements ActionListener {
      * @param seed - the seed used to generate pseudo-random pieces
      */
     public void start(long seed) {
-        currPiece = new Shape(seed);
-        isStarted = true;
-        isFallingFinished = false;
-        numLinesRemoved = 0;
-        clearBoard();
-        newPiece();
+        engine.start(seed);
+        repaint();
         timer.start();
     }
 
     /**
-     * Check if a particular move is valid
-     * 
-     * @param newPiece - the piece used in this move
-     * @param newX     - the x coordinate of the piece
-     * @param newY     - the y coordinate of the piece
-     * @return true if the state of the new piece with its coordinates is valid,
-     *         false otherwise
+     * Pause the game while the connection to the server is being restored
      */
-    private boolean checkMove(Shape newPiece, int newX, int newY) {
-        for (int i = 0; i < 4; ++i) {
-            int x = newX + newPiece.x(i);
-            int y = newY - newPiece.y(i);
-
-            if (x < 0 || x >= BOARD_WIDTH || y < 0 || y >= BOARD_HEIGHT)
-                return false;
-
-            if (shapeAt(x, y) != Tetromino.NoShape)
-                return false;
-        }
-        return true;
+    public void pause() {
+        timer.stop();
+        statusBar.setText("Reconnecting...");
     }
 
     /**
-     * Attempt to perform a move
+     * Continue a game from the state kept by the server, after reconnecting
      * 
-     * @param newPiece - the piece used in this move
-     * @param newX     - the x coordinate of the piece
-     * @param newY     - the y coordinate of the piece
-     * @return true if the move was successfully performed, false otherwise
+     * @param seed     - the seed used to generate pseudo-random pieces
+     * @param snapshot - the state of the game (see TetrisEngine.toSnapshot())
      */
-    private boolean tryMove(Shape newPiece, int newX, int newY) {
-        for (int i = 0; i < 4; ++i) {
-            int x = newX + newPiece.x(i);
-            int y = newY - newPiece.y(i);
-
-            if (x < 0 || x >= BOARD_WIDTH || y < 0 || y >= BOARD_HEIGHT)
-                return false;
-
-            if (shapeAt(x, y) != Tetromino.NoShape)
-                return false;
-        }
-
-        newPiece.rand = currPiece.rand;
-        currPiece = newPiece;
-        currX = newX;
-        currY = newY;
+    public void resume(long seed, String snapshot) {
+        engine.fromSnapshot(seed, snapshot);
+        statusBar.setText(String.valueOf(engine.getScore()));
         repaint();
-
-        if (player)
-            sendBoard();
-
-        return true;
-    }
-
-    /**
-     * Remove all of the completed lines on the board
-     */
-    private void removeFullLines() {
-        int numFullLines = 0;
-
-        for (int i = BOARD_HEIGHT - 1; i >= 0; --i) {
-            boolean lineIsFull = true;
-
-            for (int j = 0; j < BOARD_WIDTH; ++j) {
-                if (shapeAt(j, i) == Tetromino.NoShape) {
-                    lineIsFull = false;
-                    break;
-                }
-            }
-
-            if (lineIsFull) {
-                ++numFullLines;
-
-                for (int k = i; k < BOARD_HEIGHT - 1; ++k) {
-                    for (int j = 0; j < BOARD_WIDTH; ++j) {
-                        board[k * BOARD_WIDTH + j] = shapeAt(j, k + 1);
-                    }
-                }
-            }
-
-            if (numFullLines > 0) {
-                numLinesRemoved += numFullLines;
-                statusBar.setText(String.valueOf(numLinesRemoved));
-                isFallingFinished = true;
-                currPiece.setShape(Tetromino.NoShape);
-                repaint();
-            }
-        }
-        if (numFullLines > 1 && player) {
-            for (int k = 0; k < numFullLines - 1; k++) {
-                parent.clientHandler.send();
-            }
-        }
-    }
-
-    /**
-     * Hard-drop the current piece
-     */
-    private void dropDown() {
-        int newY = currY;
-
-        while (newY > 0) {
-            if (!tryMove(currPiece, currX, newY - 1))
-                break;
-
-            --newY;
-        }
-
-        pieceDropped();
+        timer.start();
     }
 
     /**
@@ -393,30 +294,7 @@ public class Board extends JPanel implements ActionListener {
      * @param keyCode - the key that the user pressed
      */
     public void movePiece(int keyCode) {
-        if (!isStarted || currPiece.getShape() == Tetromino.NoShape)
-            return;
-
-        switch (keyCode) {
-            case KeyEvent.VK_LEFT:
-                tryMove(currPiece, currX - 1, currY);
-                break;
-            case KeyEvent.VK_RIGHT:
-                tryMove(currPiece, currX + 1, currY);
-                break;
-            case KeyEvent.VK_DOWN:
-                tryMove(currPiece.rotateRight(), currX, currY);
-                break;
-            case KeyEvent.VK_UP:
-                tryMove(currPiece.rotateLeft(), currX, currY);
-                break;
-            case KeyEvent.VK_SPACE:
-                dropDown();
-                break;
-            case 'd':
-            case 'D':
-                oneLineDown();
-                break;
-        }
+        engine.movePiece(keyCode);
     }
 
     /**
@@ -431,34 +309,12 @@ public class Board extends JPanel implements ActionListener {
          */
         @Override
         public void keyPressed(KeyEvent ke) {
-            if (!isStarted || currPiece.getShape() == Tetromino.NoShape)
+            if (!engine.isStarted() || !timer.isRunning() || engine.getPiece().getShape() == Tetromino.NoShape)
                 return;
 
             int keyCode = ke.getKeyCode();
             parent.clientHandler.move(keyCode);
-
-            switch (keyCode) {
-                case KeyEvent.VK_LEFT:
-                    tryMove(currPiece, currX - 1, currY);
-                    break;
-                case KeyEvent.VK_RIGHT:
-                    tryMove(currPiece, currX + 1, currY);
-                    break;
-                case KeyEvent.VK_DOWN:
-                    tryMove(currPiece.rotateRight(), currX, currY);
-                    break;
-                case KeyEvent.VK_UP:
-                    tryMove(currPiece.rotateLeft(), currX, currY);
-                    break;
-                case KeyEvent.VK_SPACE:
-                    dropDown();
-                    break;
-                case 'd':
-                case 'D':
-                    oneLineDown();
-                    break;
-            }
-
+            engine.movePiece(keyCode);
         }
     }
 
@@ -468,37 +324,18 @@ public class Board extends JPanel implements ActionListener {
      * @param str - a string representation of the board
      */
     public void fromString(String str) {
-        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
-            switch (str.charAt(i)) {
-                case '0':
-                    board[i] = Tetromino.NoShape;
-                    break;
-                case '1':
-                    board[i] = Tetromino.ZShape;
-                    break;
-                case '2':
-                    board[i] = Tetromino.SShape;
-                    break;
-                case '3':
-                    board[i] = Tetromino.LineShape;
-                    break;
-                case '4':
-                    board[i] = Tetromino.TShape;
-                    break;
-                case '5':
-                    board[i] = Tetromino.SquareShape;
-                    break;
-                case '6':
-                    board[i] = Tetromino.LShape;
-                    break;
-                case '7':
-                    board[i] = Tetromino.LntShape;
-                    break;
-                default:
-                    board[i] = Tetromino.FillShape;
-                    break;
-            }
-        }
+        engine.fromString(str);
+    }
+
+    /**
+     * Import the board from its cells, as kept by the client from the BOARD and
+     * BOARD_DELTA frames
+     * 
+     * @param cells - the cells of the board, one value from 0 to 8 per cell (see
+     *              toString())
+     */
+    public void fromCells(byte[] cells) {
+        engine.fromCells(cells);
     }
 
     /**
@@ -508,36 +345,17 @@ public class Board extends JPanel implements ActionListener {
      */
     @Override
     public String toString() {
-        char[] items = new char[BOARD_HEIGHT * BOARD_WIDTH];
-        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
-            if (board[i].equals(Tetromino.NoShape))
-                items[i] = '0';
-            else if (board[i].equals(Tetromino.ZShape))
-                items[i] = '1';
-            else if (board[i].equals(Tetromino.SShape))
-                items[i] = '2';
-            else if (board[i].equals(Tetromino.LineShape))
-                items[i] = '3';
-            else if (board[i].equals(Tetromino.TShape))
-                items[i] = '4';
-            else if (board[i].equals(Tetromino.SquareShape))
-                items[i] = '5';
-            else if (board[i].equals(Tetromino.LShape))
-                items[i] = '6';
-            else if (board[i].equals(Tetromino.LntShape))
-                items[i] = '7';
-            else
-                items[i] = '8';
-        }
-
-        return new String(items);
+        return engine.toString();
     }
 
     /**
      * Send the current state of the board to the server to update on the opponent's
-     * right-hand panel
+     * right-hand panel. When the server simulates the game itself, it builds the
+     * board on its own, and nothing is sent.
      */
     public void sendBoard() {
+        if (parent.clientHandler.isSimulatedByServer())
+            return;
         String str = this.toString();
         parent.clientHandler.board(str);
     }
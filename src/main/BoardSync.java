@@ -0,0 +1,83 @@
+package src.main;
+
+/**
+ * <b>BoardSync</b> sends the updates of one board over one connection. It
+ * remembers the cells last sent to the peer, and sends only the cells that
+ * changed since then as a BOARD_DELTA frame. A full BOARD frame (a keyframe) is
+ * sent for the first update, every KEYFRAME_INTERVAL updates, and whenever the
+ * delta would not be smaller than the keyframe. Since the connection delivers
+ * the frames in order, the cells last sent are the cells the peer holds once it
+ * has read them.
+ * <p>
+ * Updates are sent even if no cell changed: the empty delta is two bytes, and
+ * tells the peer to reset its copy of the board to the synced cells, undoing any
+ * drift of its own simulation of the board.
+ */
+public class BoardSync {
+
+    /** The number of updates between two keyframes */
+    public static int KEYFRAME_INTERVAL = 32;
+
+    private byte[] sent;          /** The cells last sent to the peer */
+    private byte[] cells;         /** The cells being sent, reused for every update */
+    private byte[] delta;         /** The delta being sent, reused for every update */
+    private byte[] packed;        /** The keyframe being sent, reused for every update */
+    private int sinceKeyframe;    /** The number of updates sent since the last keyframe, -1 before the first one */
+
+    /**
+     * Creates an instance of the BoardSync
+     */
+    public BoardSync() {
+        sent = new byte[TetrisProtocol.BOARD_SIZE];
+        cells = new byte[TetrisProtocol.BOARD_SIZE];
+        delta = new byte[TetrisProtocol.BOARD_SIZE * 2];
+        packed = new byte[TetrisProtocol.BOARD_SIZE / 2];
+        sinceKeyframe = -1;
+    }
+
+    /**
+     * Forgets the cells last sent, so that the next update is a keyframe. Called
+     * when a new game starts.
+     */
+    public synchronized void reset() {
+        sinceKeyframe = -1;
+    }
+
+    /**
+     * Sends the update of the board
+     * @param board The String representation of the board (see Board.toString())
+     * @param out The writer of the connection, must be in binary mode
+     */
+    public synchronized void write(String board, TetrisProtocol.Writer out) {
+        TetrisProtocol.toCells(board, cells);
+        write(cells, out);
+    }
+
+    /**
+     * Sends the update of the board
+     * @param board The cells of the board, one value from 0 to 8 per cell
+     * @param out The writer of the connection, must be in binary mode
+     */
+    public synchronized void write(byte[] board, TetrisProtocol.Writer out) {
+        int size = 0;
+        if (sinceKeyframe >= 0 && sinceKeyframe < KEYFRAME_INTERVAL) {
+            for (int i = 0; i < TetrisProtocol.BOARD_SIZE && size < packed.length; i++) {
+                if (board[i] != sent[i]) {
+                    delta[size++] = (byte) i;
+                    delta[size++] = board[i];
+                }
+            }
+        }
+
+        if (sinceKeyframe < 0 || sinceKeyframe >= KEYFRAME_INTERVAL || size >= packed.length) {
+            TetrisProtocol.packCells(board, packed);
+            out.frame(TetrisProtocol.BOARD, packed, 0, packed.length);
+            sinceKeyframe = 0;
+        }
+        else {
+            out.frame(TetrisProtocol.BOARD_DELTA, delta, 0, size);
+            sinceKeyframe++;
+        }
+        System.arraycopy(board, 0, sent, 0, TetrisProtocol.BOARD_SIZE);
+    }
+}
@@ -178,6 +178,38 @@ public class Shape {
         setShape(values[x]);
     }
 
+    /**
+     * Accessor for the index of this shape's Tetromino
+     * 
+     * @return the index of the Tetromino, 0 for NoShape
+     */
+    public int getShapeIndex() {
+        Tetromino[] values = Tetromino.values();
+        int x = values.length - 1;
+        while (x > 0 && values[x] != pieceShape)
+            x--;
+        return x;
+    }
+
+    /**
+     * Accessor for the rotation of this shape, counted in clockwise turns from
+     * its spawn position
+     * 
+     * @return the number of clockwise turns, from 0 to 3
+     */
+    public int getRotation() {
+        Shape s = new Shape(0);
+        s.setShape(pieceShape);
+
+        for (int r = 0; r < 4; r++) {
+            if (Arrays.deepEquals(s.coords, coords))
+                return r;
+            s = s.rotateRight();
+        }
+
+        return 0;
+    }
+
     /**
      * Accessor for the left-most x-coordinate of this shape
      * 
@@ -11,14 +11,31 @@ import javax.swing.*;
  * @author Jennifer Zhang
  * @version 3.5
  */
-public class TetrisClientHandler implements Runnable {
+public class TetrisClientHandler implements Runnable, TetrisProtocol.Listener {
+
+    /** The time the client keeps trying to resume its session after losing the connection */
+    public static int RESUME_MILLIS = 15000;
+
+    /** The time between two attempts to reconnect */
+    public static int RETRY_MILLIS = 1000;
 
     private Socket socket;    /** The socket connected to the server */
     private Tetris tetris;    /** The reference to the Tetris object */
 
     private boolean inGame;   /** Boolean to check if the user is currently in game */
 
-    private PrintWriter out;  /** The output stream */
+    private volatile TetrisProtocol.Writer out; /** The output stream, text lines or binary frames */
+    private TetrisProtocol.Decoder decoder; /** Splits the input into text lines or binary frames */
+    private int version;                    /** The protocol version agreed on with the server */
+
+    private BoardSync boardSync;  /** Sends the user's board as deltas */
+    private byte[] oppCells;      /** The opponent's board, as last synced by the server */
+
+    private int[] lockedPieces;   /** The piece numbers of the last landed pieces, to check against the server */
+    private int[] lockedHashes;   /** The hashes of the board after the last landed pieces */
+
+    private String session;       /** The token of the session, null if the server can't resume it */
+    private long resumeDeadline;  /** When the client gives up resuming the session, 0 while connected */
 
     /**
      * Creates an instance of the TetrisClientHandler 
@@ -29,6 +46,21 @@ public class TetrisClientHandler implements Runnable {
         socket = sock;
         tetris = t;
         inGame = false;
+        decoder = new TetrisProtocol.Decoder(this);
+        version = 1;
+        boardSync = new BoardSync();
+        oppCells = new byte[TetrisProtocol.BOARD_SIZE];
+        lockedPieces = new int[64];
+        lockedHashes = new int[64];
+    }
+
+    /**
+     * Checks if the server simulates the user's game, in which case the client
+     * sends its timer steps instead of its board
+     * @return True if the server simulates the game, false otherwise
+     */
+    public boolean isSimulatedByServer() {
+        return version >= TetrisProtocol.SIMULATION_VERSION;
     }
 
     /**
@@ -77,7 +109,61 @@ public class TetrisClientHandler implements Runnable {
      * @param keyCode The keyCode of the key the user pressed.
      */
     public void move(int keyCode) {
-        out.println("MOVE " + keyCode);
+        if (out.isBinary())
+            out.frame(TetrisProtocol.MOVE, keyCode);
+        else
+            out.println("MOVE " + keyCode);
+    }
+
+    /**
+     * Sends the server a step of the gravity timer, if the server simulates the
+     * user's game
+     */
+    public void tick() {
+        if (isSimulatedByServer() && inGame)
+            out.frame(TetrisProtocol.TICK);
+    }
+
+    /**
+     * Remembers the state of the user's board after a piece has landed, to
+     * check it against the HASH sent by the server
+     * @param numPieces The number of pieces spawned so far this game
+     * @param hash The hash of the board (see TetrisEngine.hash())
+     */
+    public synchronized void pieceLocked(int numPieces, int hash) {
+        int i = numPieces % lockedPieces.length;
+        lockedPieces[i] = numPieces;
+        lockedHashes[i] = hash;
+    }
+
+    /**
+     * Checks the server's hash of the user's board against the client's, and
+     * asks for the server's state if they differ
+     * @param numPieces The number of pieces spawned when the server computed the hash
+     * @param hash The server's hash of the board
+     */
+    private void checkHash(int numPieces, int hash) {
+        boolean differs;
+        synchronized (this) {
+            int i = numPieces % lockedPieces.length;
+            differs = lockedPieces[i] == numPieces && lockedHashes[i] != hash;
+        }
+        if (differs)
+            out.frame(TetrisProtocol.RESYNC);
+    }
+
+    /**
+     * Adds the line sent by the opponent to the user's board. This happens on
+     * the Swing thread, like the timer steps and the keys, so that the server
+     * receives APPLY in the same order as the client applied it.
+     * @param line The String representation of the line
+     */
+    private void opponentSend(String line) {
+        SwingUtilities.invokeLater(() -> {
+            tetris.board.addLine(line);
+            if (isSimulatedByServer())
+                out.frame(TetrisProtocol.APPLY);
+        });
     }
 
     /**
@@ -85,14 +171,24 @@ public class TetrisClientHandler implements Runnable {
      * @param board The String representation of the user's board
      */
     public void board(String board) {
-        out.println("BOARD " + board);
+        if (version >= TetrisProtocol.DELTA_VERSION)
+            boardSync.write(board, out);
+        else if (out.isBinary()) {
+            byte[] packed = TetrisProtocol.packBoard(board);
+            out.frame(TetrisProtocol.BOARD, packed, 0, packed.length);
+        }
+        else
+            out.println("BOARD " + board);
     }
 
     /**
      * Sends the server the request to send the opponent a line
      */
     public void send() {
-        out.println("SEND");
+        if (out.isBinary())
+            out.frame(TetrisProtocol.SEND);
+        else
+            out.println("SEND");
     }
 
     /**
@@ -100,7 +196,10 @@ public class TetrisClientHandler implements Runnable {
      * @param score The user's score for this current game.
      */
     public void lose(int score) {
-        out.println("LOSE " + score);
+        if (out.isBinary())
+            out.frame(TetrisProtocol.LOSE, Math.max(score, 0));
+        else
+            out.println("LOSE " + score);
         inGame = false;
         tetris.board.stop();
         tetris.oppBoard.stop();
@@ -108,96 +207,340 @@ public class TetrisClientHandler implements Runnable {
     }
 
     /**
-     * The run function for the TetrisClientHandler, which handles a the connection to the server
+     * Sends the server that the user has won, since the opponent has lost
      */
-    public void run() {
-        try{
-            InputStream inStream = socket.getInputStream();
-            OutputStream outStream = socket.getOutputStream();
-
-            Scanner in = new Scanner(inStream);
-            out = new PrintWriter(outStream, true); // autoflush
-
-            while (in.hasNextLine()) {
-                String[] line = in.nextLine().split(" ");
-                if (line.length == 0)
-                    continue;
-                    
-                //if received "FAILURE" from the server, this is from an invalid register/login attempt
-                if (line[0].equals("FAILURE")) {
-                    if(line.length > 1 && line[1].equals("INVALID"))
-                        JOptionPane.showMessageDialog(null, "Error: Invalid username/password! Must contain 5-20 characters, and only contain alphanumeric characters!");
-                    else if(line.length > 1 && line[1].equals("TAKEN"))
-                        JOptionPane.showMessageDialog(null, "Error: Username taken!");
-                    else if(line.length > 1 && line[1].equals("INCORRECT"))
-                        JOptionPane.showMessageDialog(null, "Error: Incorrect login credentials!");
-                    else if(line.length > 1 && line[1].equals("LOGGED"))
-                        JOptionPane.showMessageDialog(null, "Error: User already logged in!");
-                    else
-                        JOptionPane.showMessageDialog(null, "Error: Could not validate credentials!");
-                }
-                //if received "SUCCESS" from the server, this means that the user has successfully registered/logged in
-                if (line[0].equals("SUCCESS")) {
-                    tetris.numWins = Integer.parseInt(line[2]);
-                    tetris.numGames = Integer.parseInt(line[3]);
-                    tetris.highScore = Integer.parseInt(line[4]);
-                    JOptionPane.showMessageDialog(null, "Successfully logged in! Welcome, " + line[1]);
-                    tetris.logged = true;
-                }
+    private void opponentLose() {
+        inGame = false;
+        int score = tetris.board.getScore();
+        if (out.isBinary())
+            out.frame(TetrisProtocol.WIN, score);
+        else
+            out.println("WIN " + score);
+        tetris.board.stop();
+        tetris.oppBoard.stop();
+        JOptionPane.showMessageDialog(null, "You won!");
+    }
 
-                //if received "LEADERBOARD" from the server, this means that the client's request for the leaderboard was
-                //finished
-                if (line[0].equals("LEADERBOARD")) {
-                    String msg = "";
-                    for(int i = 1; i < line.length; i++)
-                        msg+= String.format("%3d. %s\n", i, line[i]);
-                    JOptionPane.showMessageDialog(null, msg, "Leaderboard", JOptionPane.INFORMATION_MESSAGE);
-                }
+    /**
+     * Handles the server's answer to "HELLO". From version 2 on, the server
+     * answers in binary frames, and the client switches as well.
+     * @param serverVersion The protocol version agreed on by the server
+     */
+    private void hello(String serverVersion) {
+        try {
+            version = Integer.parseInt(serverVersion);
+        } catch (NumberFormatException e) {
+            version = 1;
+        }
+        if (version >= TetrisProtocol.BINARY_VERSION) {
+            decoder.setBinary(true);
+            synchronized (out) {
+                out.println("BINARY");
+                out.setBinary(true);
+            }
+        }
+        //reconnected, picks up the session instead of logging in
+        if (resumeDeadline != 0) {
+            if (version >= TetrisProtocol.RESUME_VERSION)
+                out.println("RESUME " + session);
+            else
+                giveUp();
+        }
+    }
 
-                //if received "MATCH" from the server, this means that the server has successfully matched the client with
-                //another player
-                if (line[0].equals("MATCH")) {
-                    inGame = true;
-                    tetris.startGame(Long.parseLong(line[5]));
-                    JOptionPane.showMessageDialog(null, "Opponent found: " + line[1]);
-                }
+    /**
+     * Connects to the server again after the connection was lost, if the
+     * session can be resumed. A game in progress is paused until the server
+     * has answered "RESUME" with its state.
+     * @return True once connected again, false if the session can't be resumed
+     */
+    private boolean reconnect() {
+        SocketAddress address = socket.getRemoteSocketAddress();
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        if (session == null || address == null)
+            return false;
+        if (resumeDeadline == 0) {
+            resumeDeadline = System.currentTimeMillis() + RESUME_MILLIS;
+            if (inGame) {
+                inGame = false;
+                SwingUtilities.invokeLater(() -> tetris.board.pause());
+            }
+        }
 
-                //if received "SENT" from the server, this means that the server has generated the line you requested to send
-                //to your opponent
-                if (line[0].equals("SENT"))
-                    tetris.oppBoard.addLine(line[1]);
-
-
-                //if received "OPPONENT" from the server, we are getting information about the opponent
-                if (line[0].equals("OPPONENT") && line.length > 1) {
-
-                    //if received "OPPONENT MOVE" from the server, the opponent has moved their piece
-                    if (line[1].equals("MOVE"))
-                        tetris.oppBoard.movePiece(Integer.parseInt(line[2]));
-        
-                    //if received "OPPONENT SEND" from the server, the opponent has sent you a line
-                    if (line[1].equals("SEND")) 
-                        tetris.board.addLine(line[2]);
-        
-                    //if received "OPPONENT LOSE" from the server, the opponent has lost
-                    if (line[1].equals("LOSE")) {
-                        inGame = false;
-                        int score = tetris.board.getScore();
-                        out.println("WIN " + score);
-                        tetris.board.stop();
-                        tetris.oppBoard.stop();
-                        JOptionPane.showMessageDialog(null, "You won!");
-                    }
-                }
-                //if received "BOARD" from the server, then fromString the sent board
-                if (line[0].equals("BOARD")) {
-                    tetris.oppBoard.fromString(line[1]);
+        while (System.currentTimeMillis() < resumeDeadline) {
+            try {
+                Thread.sleep(RETRY_MILLIS);
+                Socket s = new Socket();
+                s.connect(address, RETRY_MILLIS);
+                socket = s;
+                decoder = new TetrisProtocol.Decoder(this);
+                version = 1;
+                return true;
+            } catch (IOException e) {
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        session = null;
+        return false;
+    }
+
+    /**
+     * Stops resuming the session, whose game is lost: closes the connection,
+     * which ends run()
+     */
+    private void giveUp() {
+        session = null;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Handles a single line sent by the server, as bytes
+     * @param buf The buffer holding the line
+     * @param off The offset of the line
+     * @param len The length of the line
+     */
+    public void handleLine(byte[] buf, int off, int len) {
+        handleLine(TetrisProtocol.toLine(buf, off, len));
+    }
+
+    /**
+     * Handles a single line sent by the server
+     * @param raw The line sent by the server, without the line terminator
+     */
+    private void handleLine(String raw) {
+        String[] line = raw.split(" ");
+        if (line.length == 0)
+            return;
+
+        //if received "HELLO" from the server, the server agreed on a protocol version
+        if (line[0].equals("HELLO") && line.length > 1)
+            hello(line[1]);
+
+        //if received "PING" from the server, the server checks that the client is still there
+        if (line[0].equals("PING"))
+            out.println("PONG");
+
+        //if received "SESSION" from the server, the session can be resumed with this token after a reconnect
+        if (line[0].equals("SESSION") && line.length > 1)
+            session = line[1];
+
+        //if received "FAILURE" while resuming, the old connection is still being closed (RESUMING), so this
+        //tries again, or the session has expired
+        if (line[0].equals("FAILURE") && resumeDeadline != 0) {
+            if (line.length > 1 && line[1].equals("RESUMING")) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
                 }
+            }
+            else
+                giveUp();
+            return;
+        }
 
+        //if received "RESUMED" from the server, the session continues on this connection, along with the
+        //game if it is still running
+        if (line[0].equals("RESUMED")) {
+            resumeDeadline = 0;
+            if (line.length > 7) {
+                long seed = Long.parseLong(line[6]);
+                String snapshot = raw.split(" ", 8)[7];
+                boardSync.reset();
+                inGame = true;
+                SwingUtilities.invokeLater(() -> tetris.board.resume(seed, snapshot));
             }
-        } 
-        catch (IOException e) {
+            else {
+                SwingUtilities.invokeLater(() -> {
+                    tetris.board.stop();
+                    tetris.oppBoard.stop();
+                });
+            }
+        }
+
+        //if received "FAILURE" from the server, this is from an invalid register/login attempt
+        if (line[0].equals("FAILURE")) {
+            if(line.length > 1 && line[1].equals("INVALID"))
+                JOptionPane.showMessageDialog(null, "Error: Invalid username/password! Must contain 5-20 characters, and only contain alphanumeric characters!");
+            else if(line.length > 1 && line[1].equals("TAKEN"))
+                JOptionPane.showMessageDialog(null, "Error: Username taken!");
+            else if(line.length > 1 && line[1].equals("INCORRECT"))
+                JOptionPane.showMessageDialog(null, "Error: Incorrect login credentials!");
+            else if(line.length > 1 && line[1].equals("LOGGED"))
+                JOptionPane.showMessageDialog(null, "Error: User already logged in!");
+            else if(line.length > 1 && line[1].equals("BUSY"))
+                JOptionPane.showMessageDialog(null, "Error: Server is full! Please restart the Tetris app later!");
+            else
+                JOptionPane.showMessageDialog(null, "Error: Could not validate credentials!");
+        }
+        //if received "BUSY" from the server, the server is full and we are waiting in line for a free slot
+        //("BUSY 0" means that the wait is over)
+        if (line[0].equals("BUSY") && line.length > 1 && tetris.getStatusBar() != null) {
+            if (line[1].equals("0"))
+                tetris.getStatusBar().setText("Connected to the server");
+            else
+                tetris.getStatusBar().setText("Server busy, position in line: " + line[1]);
+        }
+
+        //if received "SUCCESS" from the server, this means that the user has successfully registered/logged in
+        if (line[0].equals("SUCCESS")) {
+            tetris.numWins = Integer.parseInt(line[2]);
+            tetris.numGames = Integer.parseInt(line[3]);
+            tetris.highScore = Integer.parseInt(line[4]);
+            JOptionPane.showMessageDialog(null, "Successfully logged in! Welcome, " + line[1]);
+            tetris.logged = true;
+        }
+
+        //if received "LEADERBOARD" from the server, this means that the client's request for the leaderboard was
+        //finished
+        if (line[0].equals("LEADERBOARD")) {
+            String msg = "";
+            for(int i = 1; i < line.length; i++)
+                msg+= String.format("%3d. %s\n", i, line[i]);
+            JOptionPane.showMessageDialog(null, msg, "Leaderboard", JOptionPane.INFORMATION_MESSAGE);
         }
+
+        //if received "MATCH" from the server, this means that the server has successfully matched the client with
+        //another player
+        if (line[0].equals("MATCH")) {
+            inGame = true;
+            boardSync.reset();
+            tetris.startGame(Long.parseLong(line[5]));
+            JOptionPane.showMessageDialog(null, "Opponent found: " + line[1]);
+        }
+
+        //if received "SENT" from the server, this means that the server has generated the line you requested to send
+        //to your opponent
+        if (line[0].equals("SENT"))
+            tetris.oppBoard.addLine(line[1]);
+
+
+        //if received "OPPONENT" from the server, we are getting information about the opponent
+        if (line[0].equals("OPPONENT") && line.length > 1) {
+
+            //if received "OPPONENT MOVE" from the server, the opponent has moved their piece
+            if (line[1].equals("MOVE"))
+                tetris.oppBoard.movePiece(Integer.parseInt(line[2]));
+
+            //if received "OPPONENT SEND" from the server, the opponent has sent you a line
+            if (line[1].equals("SEND")) 
+                opponentSend(line[2]);
+
+            //if received "OPPONENT LOSE" from the server, the opponent has lost
+            if (line[1].equals("LOSE")) {
+                inGame = false;
+                int score = tetris.board.getScore();
+                out.println("WIN " + score);
+                tetris.board.stop();
+                tetris.oppBoard.stop();
+                JOptionPane.showMessageDialog(null, "You won!");
+            }
+        }
+        //if received "BOARD" from the server, then fromString the sent board
+        if (line[0].equals("BOARD")) {
+            tetris.oppBoard.fromString(line[1]);
+        }
+
+        //if received "SYNC" from the server, the user's board differed from the server's simulation,
+        //and the server's board and score replace the user's
+        if (line[0].equals("SYNC") && line.length > 2) {
+            String board = line[1];
+            int score = Integer.parseInt(line[2]);
+            SwingUtilities.invokeLater(() -> {
+                tetris.board.fromString(board);
+                tetris.board.getEngine().setScore(score);
+                tetris.getStatusBar().setText(String.valueOf(score));
+            });
+        }
+    }
+
+    /**
+     * Handles a single binary frame sent by the server. TEXT frames go through
+     * handleLine(), the game frames are dispatched directly on their opcode.
+     * @param opcode The opcode of the frame
+     * @param buf The buffer holding the payload
+     * @param off The offset of the payload
+     * @param len The length of the payload
+     */
+    public void handleFrame(int opcode, byte[] buf, int off, int len) {
+        int value;
+        switch (opcode) {
+            case TetrisProtocol.TEXT:
+                handleLine(buf, off, len);
+                break;
+            case TetrisProtocol.SENT:
+                value = TetrisProtocol.readVarint(buf, off, off + len);
+                if (value >= 0)
+                    tetris.oppBoard.addLine(TetrisProtocol.maskToLine(value));
+                break;
+            case TetrisProtocol.OPPONENT_MOVE:
+                value = TetrisProtocol.readVarint(buf, off, off + len);
+                if (value >= 0)
+                    tetris.oppBoard.movePiece(value);
+                break;
+            case TetrisProtocol.OPPONENT_SEND:
+                value = TetrisProtocol.readVarint(buf, off, off + len);
+                if (value >= 0)
+                    opponentSend(TetrisProtocol.maskToLine(value));
+                break;
+            case TetrisProtocol.HASH:
+                int numPieces = TetrisProtocol.readVarint(buf, off, off + len, 0);
+                value = TetrisProtocol.readVarint(buf, off, off + len, 1);
+                if (numPieces >= 0 && value >= 0)
+                    checkHash(numPieces, value);
+                break;
+            case TetrisProtocol.OPPONENT_LOSE:
+                opponentLose();
+                break;
+            case TetrisProtocol.BOARD:
+                if (len == TetrisProtocol.BOARD_SIZE / 2) {
+                    TetrisProtocol.unpackCells(buf, off, oppCells);
+                    tetris.oppBoard.fromCells(oppCells);
+                }
+                break;
+            case TetrisProtocol.BOARD_DELTA:
+                //an empty delta still resets the opponent's board to the synced cells
+                if (TetrisProtocol.applyDelta(buf, off, len, oppCells))
+                    tetris.oppBoard.fromCells(oppCells);
+                break;
+        }
+    }
+
+    /**
+     * The run function for the TetrisClientHandler, which handles a the connection to the server
+     */
+    public void run() {
+        //a lost connection is reconnected as long as the session can be resumed
+        do {
+            try{
+                InputStream inStream = socket.getInputStream();
+                OutputStream outStream = socket.getOutputStream();
+
+                out = new TetrisProtocol.Writer(outStream);
+                //asks for the binary protocol, servers that don't support it ignore this line
+                out.println("HELLO " + TetrisProtocol.VERSION);
+
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = inStream.read(buf)) != -1) {
+                    decoder.feed(buf, 0, n);
+                }
+            } 
+            catch (IOException e) {
+            }
+        } while (reconnect());
+
+        inGame = false;
+        SwingUtilities.invokeLater(() -> {
+            tetris.board.stop();
+            tetris.oppBoard.stop();
+        });
         JOptionPane.showMessageDialog(null, "Error: Disconnected from server! Please restart the Tetris app!");
 
     }
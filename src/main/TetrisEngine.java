@@ -0,0 +1,592 @@
+package src.main;
+
+import java.awt.event.*;
+
+/**
+ * <b>TetrisEngine</b> holds the rules and the state of a single Tetris game,
+ * without any painting or timers, so that it can also run headless on the
+ * server. The game only advances through the calls it receives: tick() for
+ * every step of the gravity timer, movePiece() for every key, and addLine() for
+ * every line sent by the opponent. Given the same seed and the same calls in
+ * the same order, two engines end up in the same state.
+ * <p>
+ * <b>Board</b> drives an engine from the Swing timer and the keyboard, and
+ * reacts to its events through the <b>Listener</b>.
+ */
+public class TetrisEngine {
+
+    public static final int BOARD_WIDTH = 10;
+    public static final int BOARD_HEIGHT = 22;
+
+    /**
+     * <b>Listener</b> receives the events of the engine
+     */
+    public interface Listener {
+
+        /**
+         * Called after the current piece has successfully moved
+         */
+        void pieceMoved();
+
+        /**
+         * Called while full lines are being removed, with the updated score
+         *
+         * @param numLinesRemoved - the score of the game
+         */
+        void scoreChanged(int numLinesRemoved);
+
+        /**
+         * Called after the full lines have been removed, if there were any
+         *
+         * @param numFullLines - the number of lines that were removed at once
+         */
+        void linesCleared(int numFullLines);
+
+        /**
+         * Called after a piece has landed, and the full lines have been removed
+         */
+        void pieceLocked();
+
+        /**
+         * Called when a new piece cannot be placed, which ends the game
+         */
+        void gameOver();
+    }
+
+    private boolean isFallingFinished = false;
+    private boolean isStarted = false;
+    private int numLinesRemoved = 0;
+    private int numPieces = 0;
+    private int currX = 0;
+    private int currY = 0;
+    private Shape currPiece;
+    private Tetromino[] board;
+    private Listener listener;
+
+    /**
+     * Construct a new engine
+     *
+     * @param l - the listener for the events of this engine, may be null
+     */
+    public TetrisEngine(Listener l) {
+        listener = l;
+        currPiece = new Shape(0);
+        board = new Tetromino[BOARD_WIDTH * BOARD_HEIGHT];
+        clearBoard();
+    }
+
+    /**
+     * Accessor for the shape (if any) that occupies a particular tile
+     *
+     * @param x - the x coordinate
+     * @param y - the y coordinate
+     * @return if a shape exists on the tile, return the shape, otherwise return
+     *         NoShape
+     */
+    public Tetromino shapeAt(int x, int y) {
+        return board[y * BOARD_WIDTH + x];
+    }
+
+    /**
+     * Accessor for the piece that is currently falling
+     *
+     * @return the current piece
+     */
+    public Shape getPiece() {
+        return currPiece;
+    }
+
+    /**
+     * Accessor for the x coordinate of the current piece
+     *
+     * @return the x coordinate of the current piece
+     */
+    public int getX() {
+        return currX;
+    }
+
+    /**
+     * Accessor for the y coordinate of the current piece
+     *
+     * @return the y coordinate of the current piece
+     */
+    public int getY() {
+        return currY;
+    }
+
+    /**
+     * Check if the game is running
+     *
+     * @return true if the game has started and is not over yet
+     */
+    public boolean isStarted() {
+        return isStarted;
+    }
+
+    /**
+     * Accessor for the current game's score
+     *
+     * @return the number of lines that the player has cleared this game
+     */
+    public int getScore() {
+        return numLinesRemoved;
+    }
+
+    /**
+     * Modifier for the current game's score, used when the state is restored
+     * from the server
+     *
+     * @param score - the number of lines that the player has cleared this game
+     */
+    public void setScore(int score) {
+        numLinesRemoved = score;
+    }
+
+    /**
+     * Accessor for the number of pieces spawned this game
+     *
+     * @return the number of pieces spawned since the game started
+     */
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    /**
+     * Reset the board to its original empty state
+     */
+    public void clearBoard() {
+        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
+            board[i] = Tetromino.NoShape;
+        }
+    }
+
+    /**
+     * Start the game
+     *
+     * @param seed - the seed used to generate pseudo-random pieces
+     */
+    public void start(long seed) {
+        currPiece = new Shape(seed);
+        isStarted = true;
+        isFallingFinished = false;
+        numLinesRemoved = 0;
+        numPieces = 0;
+        clearBoard();
+        newPiece();
+    }
+
+    /**
+     * Stop the current game
+     */
+    public void stop() {
+        clearBoard();
+        currPiece.setShape(Tetromino.NoShape);
+        isStarted = false;
+    }
+
+    /**
+     * Add a line to the bottom of the board
+     *
+     * @param line - the string representing the line -- X's are FillShapes and .'s
+     *             are NoShapes
+     */
+    public void addLine(String line) {
+        if (!checkMove(currPiece, currX, currY - 1)) {
+            currY++;
+        }
+
+        for (int i = BOARD_HEIGHT - 1; i > 0; --i) {
+            for (int j = 0; j < BOARD_WIDTH; ++j) {
+                board[i * BOARD_WIDTH + j] = shapeAt(j, i - 1);
+            }
+        }
+
+        for (int i = 0; i < 10; i++) {
+            board[i] = (line.charAt(i) == 'X') ? Tetromino.FillShape : Tetromino.NoShape;
+        }
+    }
+
+    /**
+     * Handle a piece that has reached a point where it can no longer descend
+     */
+    private void pieceDropped() {
+        for (int i = 0; i < 4; i++) {
+            int x = currX + currPiece.x(i);
+            int y = currY - currPiece.y(i);
+            board[y * BOARD_WIDTH + x] = currPiece.getShape();
+        }
+
+        removeFullLines();
+
+        if (listener != null)
+            listener.pieceLocked();
+
+        if (!isFallingFinished) {
+            newPiece();
+        }
+    }
+
+    /**
+     * Generate a new piece and spawn it at the top
+     */
+    public void newPiece() {
+        currPiece.setRandomShape();
+        numPieces++;
+        currX = BOARD_WIDTH / 2 + 1;
+        currY = BOARD_HEIGHT - 1 + currPiece.minY();
+
+        if (!tryMove(currPiece, currX, currY - 1)) {
+            currPiece.setShape(Tetromino.NoShape);
+            isStarted = false;
+
+            if (listener != null)
+                listener.gameOver();
+        }
+    }
+
+    /**
+     * Generate a specific new piece and spawn it at the top
+     *
+     * @param p - the piece to generate
+     */
+    public void newPiece(int p) {
+        currPiece.setShape(p);
+        numPieces++;
+        currX = BOARD_WIDTH / 2 + 1;
+        currY = BOARD_HEIGHT - 1 + currPiece.minY();
+
+        if (!tryMove(currPiece, currX, currY - 1)) {
+            currPiece.setShape(Tetromino.NoShape);
+            isStarted = false;
+
+            if (listener != null)
+                listener.gameOver();
+        }
+    }
+
+    /**
+     * Attempt to move the current piece down one square
+     */
+    private void oneLineDown() {
+        if (!tryMove(currPiece, currX, currY - 1))
+            pieceDropped();
+    }
+
+    /**
+     * Advance the game by one step of the gravity timer
+     */
+    public void tick() {
+        if (isFallingFinished) {
+            isFallingFinished = false;
+            newPiece();
+        } else {
+            oneLineDown();
+        }
+    }
+
+    /**
+     * Check if a particular move is valid
+     *
+     * @param newPiece - the piece used in this move
+     * @param newX     - the x coordinate of the piece
+     * @param newY     - the y coordinate of the piece
+     * @return true if the state of the new piece with its coordinates is valid,
+     *         false otherwise
+     */
+    public boolean checkMove(Shape newPiece, int newX, int newY) {
+        for (int i = 0; i < 4; ++i) {
+            int x = newX + newPiece.x(i);
+            int y = newY - newPiece.y(i);
+
+            if (x < 0 || x >= BOARD_WIDTH || y < 0 || y >= BOARD_HEIGHT)
+                return false;
+
+            if (shapeAt(x, y) != Tetromino.NoShape)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Attempt to perform a move
+     *
+     * @param newPiece - the piece used in this move
+     * @param newX     - the x coordinate of the piece
+     * @param newY     - the y coordinate of the piece
+     * @return true if the move was successfully performed, false otherwise
+     */
+    public boolean tryMove(Shape newPiece, int newX, int newY) {
+        if (!checkMove(newPiece, newX, newY))
+            return false;
+
+        newPiece.rand = currPiece.rand;
+        currPiece = newPiece;
+        currX = newX;
+        currY = newY;
+
+        if (listener != null)
+            listener.pieceMoved();
+
+        return true;
+    }
+
+    /**
+     * Remove all of the completed lines on the board
+     */
+    public void removeFullLines() {
+        int numFullLines = 0;
+
+        for (int i = BOARD_HEIGHT - 1; i >= 0; --i) {
+            boolean lineIsFull = true;
+
+            for (int j = 0; j < BOARD_WIDTH; ++j) {
+                if (shapeAt(j, i) == Tetromino.NoShape) {
+                    lineIsFull = false;
+                    break;
+                }
+            }
+
+            if (lineIsFull) {
+                ++numFullLines;
+
+                for (int k = i; k < BOARD_HEIGHT - 1; ++k) {
+                    for (int j = 0; j < BOARD_WIDTH; ++j) {
+                        board[k * BOARD_WIDTH + j] = shapeAt(j, k + 1);
+                    }
+                }
+            }
+
+            if (numFullLines > 0) {
+                numLinesRemoved += numFullLines;
+                isFallingFinished = true;
+                currPiece.setShape(Tetromino.NoShape);
+
+                if (listener != null)
+                    listener.scoreChanged(numLinesRemoved);
+            }
+        }
+        if (numFullLines > 0 && listener != null) {
+            listener.linesCleared(numFullLines);
+        }
+    }
+
+    /**
+     * Hard-drop the current piece
+     */
+    public void dropDown() {
+        int newY = currY;
+
+        while (newY > 0) {
+            if (!tryMove(currPiece, currX, newY - 1))
+                break;
+
+            --newY;
+        }
+
+        pieceDropped();
+    }
+
+    /**
+     * Move the current piece according to user input
+     *
+     * @param keyCode - the key that the user pressed
+     */
+    public void movePiece(int keyCode) {
+        if (!isStarted || currPiece.getShape() == Tetromino.NoShape)
+            return;
+
+        switch (keyCode) {
+            case KeyEvent.VK_LEFT:
+                tryMove(currPiece, currX - 1, currY);
+                break;
+            case KeyEvent.VK_RIGHT:
+                tryMove(currPiece, currX + 1, currY);
+                break;
+            case KeyEvent.VK_DOWN:
+                tryMove(currPiece.rotateRight(), currX, currY);
+                break;
+            case KeyEvent.VK_UP:
+                tryMove(currPiece.rotateLeft(), currX, currY);
+                break;
+            case KeyEvent.VK_SPACE:
+                dropDown();
+                break;
+            case 'd':
+            case 'D':
+                oneLineDown();
+                break;
+        }
+    }
+
+    /**
+     * Import the board from a string
+     *
+     * @param str - a string representation of the board
+     */
+    public void fromString(String str) {
+        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
+            switch (str.charAt(i)) {
+                case '0':
+                    board[i] = Tetromino.NoShape;
+                    break;
+                case '1':
+                    board[i] = Tetromino.ZShape;
+                    break;
+                case '2':
+                    board[i] = Tetromino.SShape;
+                    break;
+                case '3':
+                    board[i] = Tetromino.LineShape;
+                    break;
+                case '4':
+                    board[i] = Tetromino.TShape;
+                    break;
+                case '5':
+                    board[i] = Tetromino.SquareShape;
+                    break;
+                case '6':
+                    board[i] = Tetromino.LShape;
+                    break;
+                case '7':
+                    board[i] = Tetromino.LntShape;
+                    break;
+                default:
+                    board[i] = Tetromino.FillShape;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Import the board from its cells
+     *
+     * @param cells - the cells of the board, one value from 0 to 8 per cell (see
+     *              toString())
+     */
+    public void fromCells(byte[] cells) {
+        Tetromino[] values = Tetromino.values();
+        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
+            board[i] = values[cells[i]];
+        }
+    }
+
+    /**
+     * Export the board as its cells
+     *
+     * @param cells - the array to fill, one value from 0 to 8 per cell (see
+     *              toString())
+     */
+    public void toCells(byte[] cells) {
+        Tetromino[] values = Tetromino.values();
+        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
+            int v = values.length - 1;
+            while (v > 0 && values[v] != board[i])
+                v--;
+            cells[i] = (byte) v;
+        }
+    }
+
+    /**
+     * Export the state of the game as a compact snapshot, from which the game
+     * can continue on another engine started with the same seed
+     *
+     * @return "numPieces shape rotation x y score board", where shape is the
+     *         index of the current piece (0 while a new piece is due), rotation
+     *         is its number of clockwise turns, and board is toString()
+     */
+    public String toSnapshot() {
+        return numPieces + " " + currPiece.getShapeIndex() + " " + currPiece.getRotation() + " " + currX + " "
+                + currY + " " + numLinesRemoved + " " + toString();
+    }
+
+    /**
+     * Continue a game from a snapshot. The pieces still to come are those of
+     * the seed, past the pieces already spawned.
+     *
+     * @param seed     - the seed the game was started with
+     * @param snapshot - the state of the game (see toSnapshot())
+     * @throws IllegalArgumentException if the snapshot is invalid
+     */
+    public void fromSnapshot(long seed, String snapshot) {
+        String[] s = snapshot.split(" ");
+        if (s.length != 7 || s[6].length() != BOARD_HEIGHT * BOARD_WIDTH)
+            throw new IllegalArgumentException("Invalid snapshot");
+        int pieces = Integer.parseInt(s[0]);
+        int shape = Integer.parseInt(s[1]);
+        int rotation = Integer.parseInt(s[2]);
+        if (shape < 0 || shape > 7)
+            throw new IllegalArgumentException("Invalid snapshot");
+
+        //every spawned piece drew one number from the seed
+        Shape piece = new Shape(seed);
+        for (int i = 0; i < pieces; i++)
+            piece.rand.nextInt();
+        piece.setShape(shape);
+        for (int r = 0; r < rotation; r++) {
+            Shape rotated = piece.rotateRight();
+            rotated.rand = piece.rand;
+            piece = rotated;
+        }
+
+        currPiece = piece;
+        numPieces = pieces;
+        currX = Integer.parseInt(s[3]);
+        currY = Integer.parseInt(s[4]);
+        numLinesRemoved = Integer.parseInt(s[5]);
+        fromString(s[6]);
+        isStarted = true;
+        //the piece is only missing while full lines are removed, until the next step
+        isFallingFinished = shape == 0;
+    }
+
+    /**
+     * Compute a cheap hash of the landed cells and the score, used to check that
+     * two engines running the same game agree
+     *
+     * @return a non-negative hash of the state of the board
+     */
+    public int hash() {
+        Tetromino[] values = Tetromino.values();
+        int h = 0x811C9DC5;
+        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
+            int v = values.length - 1;
+            while (v > 0 && values[v] != board[i])
+                v--;
+            h = (h ^ v) * 0x01000193;
+        }
+        h = (h ^ numLinesRemoved) * 0x01000193;
+        return h & 0x7FFFFFFF;
+    }
+
+    /**
+     * Export the board as a string
+     *
+     * @return a string representing the current state of the board
+     */
+    @Override
+    public String toString() {
+        char[] items = new char[BOARD_HEIGHT * BOARD_WIDTH];
+        for (int i = 0; i < BOARD_HEIGHT * BOARD_WIDTH; i++) {
+            if (board[i].equals(Tetromino.NoShape))
+                items[i] = '0';
+            else if (board[i].equals(Tetromino.ZShape))
+                items[i] = '1';
+            else if (board[i].equals(Tetromino.SShape))
+                items[i] = '2';
+            else if (board[i].equals(Tetromino.LineShape))
+                items[i] = '3';
+            else if (board[i].equals(Tetromino.TShape))
+                items[i] = '4';
+            else if (board[i].equals(Tetromino.SquareShape))
+                items[i] = '5';
+            else if (board[i].equals(Tetromino.LShape))
+                items[i] = '6';
+            else if (board[i].equals(Tetromino.LntShape))
+                items[i] = '7';
+            else
+                items[i] = '8';
+        }
+
+        return new String(items);
+    }
+}
@@ -0,0 +1,726 @@
+package src.main;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * <b>TetrisProtocol</b> holds the wire format shared by the client and the
+ * server. Every connection starts with the original text protocol, one
+ * space-separated command per line. A client that supports the binary framing
+ * sends "HELLO &lt;version&gt;" first, and the server answers with "HELLO
+ * &lt;version&gt;" for the version they both support:
+ * <ul>
+ * <li>Version 1 keeps the text protocol (old servers do not answer HELLO).</li>
+ * <li>Version 2 or newer switches to binary frames. The server switches its
+ * output right after its HELLO reply; the client sends the text line "BINARY"
+ * and switches its output right after, so lines written during the handshake
+ * are still read as text.</li>
+ * <li>Version 3 or newer sends the boards as deltas (see BoardSync).</li>
+ * <li>Version 4 or newer lets the server simulate the client's game: the client
+ * also sends TICK for every step of its gravity timer and APPLY for every line
+ * it received from the opponent, and stops sending its board. The server sends
+ * the hash of its state after every landed piece (HASH), and the client asks
+ * for the server's state (RESYNC, answered with "SYNC &lt;board&gt;
+ * &lt;score&gt;") if its own hash differs.</li>
+ * <li>Version 5 or newer has a heartbeat: the server sends "PING" to a client
+ * that has been silent for a while, and the client answers "PONG". A client
+ * silent for too long is disconnected (see ConnectionReaper).</li>
+ * <li>Version 6 or newer can resume a session: the server sends "SESSION
+ * &lt;token&gt;" after a successful login, and keeps the login and the game of
+ * a client whose connection closes for a short grace window. A client that
+ * reconnects within the window sends "RESUME &lt;token&gt;" instead of logging
+ * in, and is answered with "RESUMED &lt;username&gt;", followed by "&lt;opponent&gt;
+ * &lt;wins&gt; &lt;games&gt; &lt;high score&gt; &lt;seed&gt; &lt;snapshot&gt;" if
+ * its game is still running (see TetrisEngine.toSnapshot()), or with "FAILURE
+ * EXPIRED".</li>
+ * </ul>
+ * A binary frame is a varint length, followed by a one byte opcode and its
+ * payload. The hot game messages have their own opcodes with varint payloads;
+ * every other message is sent as a TEXT frame holding the original line.
+ */
+public class TetrisProtocol {
+
+    /** The newest protocol version supported by this code */
+    public static final int VERSION = 6;
+
+    /** The first protocol version that uses the binary framing */
+    public static final int BINARY_VERSION = 2;
+
+    /** The first protocol version that sends the boards as deltas */
+    public static final int DELTA_VERSION = 3;
+
+    /** The first protocol version in which the server simulates the games */
+    public static final int SIMULATION_VERSION = 4;
+
+    /** The first protocol version in which the client answers PING */
+    public static final int HEARTBEAT_VERSION = 5;
+
+    /** The first protocol version that can resume a session after a reconnect */
+    public static final int RESUME_VERSION = 6;
+
+    /** The maximum size of a single frame or line */
+    public static final int MAX_FRAME_SIZE = 4096;
+
+    /** Any other message, the payload is the UTF-8 text line */
+    public static final int TEXT = 0x00;
+    /** "MOVE", the payload is the varint keyCode */
+    public static final int MOVE = 0x01;
+    /** "BOARD", the payload is the board packed by packBoard() */
+    public static final int BOARD = 0x02;
+    /** "SEND", no payload */
+    public static final int SEND = 0x03;
+    /** "SENT", the payload is the varint mask of the line (see lineToMask()) */
+    public static final int SENT = 0x04;
+    /** "OPPONENT MOVE", the payload is the varint keyCode */
+    public static final int OPPONENT_MOVE = 0x05;
+    /** "OPPONENT SEND", the payload is the varint mask of the line */
+    public static final int OPPONENT_SEND = 0x06;
+    /** "OPPONENT LOSE", no payload */
+    public static final int OPPONENT_LOSE = 0x07;
+    /** "LOSE", the payload is the optional varint score */
+    public static final int LOSE = 0x08;
+    /** "WIN", the payload is the optional varint score */
+    public static final int WIN = 0x09;
+    /** The cells of a board that changed since the last update, the payload 
+     * is one (index, value) byte pair per changed cell */
+    public static final int BOARD_DELTA = 0x0A;
+    /** One step of the client's gravity timer, no payload */
+    public static final int TICK = 0x0B;
+    /** The client has added the oldest line sent by the opponent to its board, no payload */
+    public static final int APPLY = 0x0C;
+    /** The hash of the server's state, the payload is the varint number of 
+     * pieces spawned, followed by the varint hash (see TetrisEngine.hash()) */
+    public static final int HASH = 0x0D;
+    /** The client's hash differs, and it asks for the server's state, no payload */
+    public static final int RESYNC = 0x0E;
+
+    /** The number of cells on a board */
+    public static final int BOARD_SIZE = 220;
+
+    /** The width of a garbage line */
+    public static final int LINE_WIDTH = 10;
+
+    /**
+     * <b>Listener</b> receives the messages split up by a Decoder
+     */
+    public interface Listener {
+
+        /**
+         * Handles a text line, without its line terminator. The bytes are only
+         * valid during this call; toLine() turns them into a String.
+         * @param buf The buffer holding the line
+         * @param off The offset of the line
+         * @param len The length of the line
+         */
+        void handleLine(byte[] buf, int off, int len);
+
+        /**
+         * Handles a binary frame. The bytes are only valid during this call.
+         * @param opcode The opcode of the frame
+         * @param buf The buffer holding the payload
+         * @param off The offset of the payload
+         * @param len The length of the payload
+         */
+        void handleFrame(int opcode, byte[] buf, int off, int len);
+    }
+
+    /**
+     * <b>Decoder</b> splits a stream of bytes into text lines or binary frames,
+     * and hands them to its Listener. The bytes can arrive in chunks of any
+     * size. The mode can be switched by the Listener between two messages.
+     */
+    public static class Decoder {
+
+        private Listener listener;   /** Receives the decoded messages */
+        private boolean binary;      /** True if the bytes are binary frames, false for text lines */
+
+        private byte[] partial;      /** The bytes of the message that is not complete yet */
+        private int partialSize;     /** The number of bytes in partial */
+        private int frameSize;       /** The size of the current frame, -1 while the length is being read */
+        private int lengthValue;     /** The part of the varint length read so far */
+        private int lengthShift;     /** The shift of the next byte of the varint length */
+
+        /**
+         * Creates an instance of the Decoder, starting in text mode
+         * @param listener Receives the decoded messages
+         */
+        public Decoder(Listener listener) {
+            this.listener = listener;
+            binary = false;
+            partial = new byte[256];
+            partialSize = 0;
+            frameSize = -1;
+            lengthValue = 0;
+            lengthShift = 0;
+        }
+
+        /**
+         * Switches between text lines and binary frames
+         * @param b True for binary frames, false for text lines
+         */
+        public void setBinary(boolean b) {
+            binary = b;
+        }
+
+        /**
+         * Checks if the decoder expects binary frames
+         * @return True for binary frames, false for text lines
+         */
+        public boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * Decodes the bytes, handing every complete message to the Listener
+         * @param buf The buffer holding the bytes
+         * @param off The offset of the bytes
+         * @param len The number of bytes
+         * @throws IOException If a message is larger than MAX_FRAME_SIZE
+         */
+        public void feed(byte[] buf, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                if (binary)
+                    off = feedFrame(buf, off, end);
+                else
+                    off = feedLine(buf, off, end);
+            }
+        }
+
+        /**
+         * Decodes text bytes up to the end of the current line
+         * @return The offset after the consumed bytes
+         */
+        private int feedLine(byte[] buf, int off, int end) throws IOException {
+            int i = off;
+            while (i < end && buf[i] != '\n')
+                i++;
+
+            if (i == end) {
+                append(buf, off, end - off);
+                return end;
+            }
+
+            //the whole line is in buf, so it doesn't have to be copied
+            if (partialSize == 0) {
+                line(buf, off, i - off);
+            }
+            else {
+                append(buf, off, i - off);
+                int size = partialSize;
+                partialSize = 0;
+                line(partial, 0, size);
+            }
+            return i + 1;
+        }
+
+        /**
+         * Hands a line to the Listener, stripping the carriage return of "\r\n"
+         * line endings
+         */
+        private void line(byte[] buf, int off, int len) {
+            if (len > 0 && buf[off + len - 1] == '\r')
+                len--;
+            listener.handleLine(buf, off, len);
+        }
+
+        /**
+         * Decodes binary bytes up to the end of the current frame
+         * @return The offset after the consumed bytes
+         */
+        private int feedFrame(byte[] buf, int off, int end) throws IOException {
+            //reads the varint length
+            while (frameSize < 0) {
+                if (off == end)
+                    return end;
+                int b = buf[off++] & 0xFF;
+                lengthValue |= (b & 0x7F) << lengthShift;
+                lengthShift += 7;
+                if ((b & 0x80) == 0) {
+                    frameSize = lengthValue;
+                    lengthValue = 0;
+                    lengthShift = 0;
+                    if (frameSize < 1 || frameSize > MAX_FRAME_SIZE)
+                        throw new IOException("Invalid frame size " + frameSize);
+                }
+                else if (lengthShift > 28) {
+                    throw new IOException("Invalid frame size");
+                }
+            }
+
+            int needed = frameSize - partialSize;
+            if (end - off < needed) {
+                append(buf, off, end - off);
+                return end;
+            }
+
+            int size = frameSize;
+            frameSize = -1;
+            //the whole frame is in buf, so it doesn't have to be copied
+            if (partialSize == 0) {
+                listener.handleFrame(buf[off] & 0xFF, buf, off + 1, size - 1);
+            }
+            else {
+                append(buf, off, needed);
+                partialSize = 0;
+                listener.handleFrame(partial[0] & 0xFF, partial, 1, size - 1);
+            }
+            return off + needed;
+        }
+
+        /**
+         * Keeps the bytes of an incomplete message
+         */
+        private void append(byte[] buf, int off, int len) throws IOException {
+            if (partialSize + len > MAX_FRAME_SIZE)
+                throw new IOException("Message too large");
+            if (partialSize + len > partial.length)
+                partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialSize + len));
+            System.arraycopy(buf, off, partial, partialSize, len);
+            partialSize += len;
+        }
+    }
+
+    /**
+     * <b>Batcher</b> flushes the writers that batch their messages, once per
+     * tick. Implemented by the server.
+     */
+    public interface Batcher {
+
+        /**
+         * Asks for the writer to be flushed at the next tick, called when the
+         * first message of a batch is buffered
+         * @param w The writer holding the batch
+         */
+        void schedule(Writer w);
+
+        /**
+         * Counts a flush of a writer that batches its messages, whether it was
+         * done at a tick or right away for an urgent message
+         * @param numMessages The number of messages that were flushed
+         */
+        void flushed(int numMessages);
+    }
+
+    /**
+     * <b>Encoded</b> is a text line encoded once, in both the text and the
+     * binary form, to be written to many connections by Writer.write(). It is
+     * immutable, so the writers of all the connections share the same bytes.
+     */
+    public static final class Encoded {
+
+        private final byte[] text;   /** The line followed by '\n' */
+        private final byte[] frame;  /** The TEXT frame holding the line */
+
+        /**
+         * Creates an instance of the Encoded line
+         * @param line The line, without the line terminator
+         */
+        public Encoded(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            text = Arrays.copyOf(bytes, bytes.length + 1);
+            text[bytes.length] = '\n';
+
+            int payloadSize = bytes.length + 1;
+            frame = new byte[varintSize(payloadSize) + payloadSize];
+            int n = 0;
+            int v = payloadSize;
+            while ((v & ~0x7F) != 0) {
+                frame[n++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            frame[n++] = (byte) v;
+            frame[n++] = TEXT;
+            System.arraycopy(bytes, 0, frame, n, bytes.length);
+        }
+    }
+
+    /**
+     * <b>Writer</b> writes the messages of one connection, either as text lines
+     * or as binary frames. It can be shared by several threads; each message is
+     * written whole. Messages are flushed right away, unless the writer has a
+     * Batcher: then they are buffered and flushed together at the next tick of
+     * the Batcher, or earlier by calling flush() after an urgent message.
+     */
+    public static class Writer {
+
+        /** The size of a batch past which it is flushed without waiting for the tick */
+        public static int MAX_BATCH_SIZE = 8192;
+
+        private OutputStream out;    /** The output stream of the connection */
+        private boolean binary;      /** True if the messages are written as binary frames */
+        private byte[] buffer;       /** The bytes of the messages not flushed yet */
+        private int size;            /** The number of bytes in buffer */
+        private Batcher batcher;     /** Flushes the batches, null if every message is flushed right away */
+        private int batched;         /** The number of messages in buffer */
+        private boolean scheduled;   /** True if the batcher will flush this writer at its next tick */
+
+        /**
+         * Creates an instance of the Writer, starting in text mode
+         * @param out The output stream of the connection
+         */
+        public Writer(OutputStream out) {
+            this.out = out;
+            binary = false;
+            buffer = new byte[512];
+            size = 0;
+            batcher = null;
+            batched = 0;
+            scheduled = false;
+        }
+
+        /**
+         * Batches the messages until the next tick of the batcher, or flushes
+         * every message right away
+         * @param b The batcher, null to flush every message right away
+         */
+        public synchronized void setBatcher(Batcher b) {
+            batcher = b;
+            if (b == null)
+                flush();
+        }
+
+        /**
+         * Checks if the messages are written as binary frames
+         * @return True for binary frames, false for text lines
+         */
+        public synchronized boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * Switches between text lines and binary frames
+         * @param b True for binary frames, false for text lines
+         */
+        public synchronized void setBinary(boolean b) {
+            binary = b;
+        }
+
+        /**
+         * Writes a text line, or a TEXT frame holding the line in binary mode
+         * @param line The line to write, without the line terminator
+         */
+        public synchronized void println(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            if (binary) {
+                startFrame(TEXT, bytes.length);
+                put(bytes, 0, bytes.length);
+            }
+            else {
+                put(bytes, 0, bytes.length);
+                put((byte) '\n');
+            }
+            messageDone();
+        }
+
+        /**
+         * Writes a line encoded beforehand, in the form of the current mode.
+         * Costs a copy, not an encoding.
+         * @param line The encoded line
+         */
+        public synchronized void write(Encoded line) {
+            byte[] bytes = binary ? line.frame : line.text;
+            put(bytes, 0, bytes.length);
+            messageDone();
+        }
+
+        /**
+         * Writes a binary frame with no payload
+         * @param opcode The opcode of the frame
+         */
+        public synchronized void frame(int opcode) {
+            startFrame(opcode, 0);
+            messageDone();
+        }
+
+        /**
+         * Writes a binary frame with a varint payload
+         * @param opcode The opcode of the frame
+         * @param value The value of the payload, must not be negative
+         */
+        public synchronized void frame(int opcode, int value) {
+            startFrame(opcode, varintSize(value));
+            putVarint(value);
+            messageDone();
+        }
+
+        /**
+         * Writes a binary frame with a payload of two varints
+         * @param opcode The opcode of the frame
+         * @param value1 The first value of the payload, must not be negative
+         * @param value2 The second value of the payload, must not be negative
+         */
+        public synchronized void frame(int opcode, int value1, int value2) {
+            startFrame(opcode, varintSize(value1) + varintSize(value2));
+            putVarint(value1);
+            putVarint(value2);
+            messageDone();
+        }
+
+        /**
+         * Writes a binary frame with the given payload
+         * @param opcode The opcode of the frame
+         * @param payload The buffer holding the payload
+         * @param off The offset of the payload
+         * @param len The length of the payload
+         */
+        public synchronized void frame(int opcode, byte[] payload, int off, int len) {
+            startFrame(opcode, len);
+            put(payload, off, len);
+            messageDone();
+        }
+
+        /**
+         * Writes the frame header
+         */
+        private void startFrame(int opcode, int payloadSize) {
+            putVarint(payloadSize + 1);
+            put((byte) opcode);
+        }
+
+        private void putVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+
+        private void put(byte b) {
+            if (size == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            buffer[size++] = b;
+        }
+
+        private void put(byte[] b, int off, int len) {
+            if (size + len > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + len));
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+
+        /**
+         * Flushes the message that was just written, or adds it to the batch
+         */
+        private void messageDone() {
+            if (batcher == null) {
+                flush();
+                return;
+            }
+            batched++;
+            if (size >= MAX_BATCH_SIZE)
+                flush();
+            else if (!scheduled) {
+                scheduled = true;
+                batcher.schedule(this);
+            }
+        }
+
+        /**
+         * Writes the buffered messages to the output stream. Called by the
+         * batcher at every tick, and by the sender right after an urgent message.
+         * Errors are ignored here, like with an autoflushing PrintWriter; the
+         * reading side notices the closed connection.
+         */
+        public synchronized void flush() {
+            scheduled = false;
+            if (size == 0)
+                return;
+            try {
+                out.write(buffer, 0, size);
+                out.flush();
+            } catch (IOException e) {
+            }
+            size = 0;
+            if (batcher != null)
+                batcher.flushed(batched);
+            batched = 0;
+        }
+    }
+
+    /**
+     * Gets the number of bytes of a varint
+     * @param value The value of the varint, must not be negative
+     * @return The number of bytes needed to write the value
+     */
+    public static int varintSize(int value) {
+        int n = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Reads a varint from a frame payload
+     * @param buf The buffer holding the payload
+     * @param off The offset of the varint
+     * @param end The end of the payload
+     * @return The value of the varint, or -1 if the payload is empty or invalid
+     */
+    public static int readVarint(byte[] buf, int off, int end) {
+        return readVarint(buf, off, end, 0);
+    }
+
+    /**
+     * Reads the n-th of several consecutive varints from a frame payload
+     * @param buf The buffer holding the payload
+     * @param off The offset of the first varint
+     * @param end The end of the payload
+     * @param n The index of the varint to read, starting at 0
+     * @return The value of the varint, or -1 if the payload is too short or invalid
+     */
+    public static int readVarint(byte[] buf, int off, int end, int n) {
+        //skips the first n varints
+        while (n > 0 && off < end) {
+            if ((buf[off++] & 0x80) == 0)
+                n--;
+        }
+        int value = 0;
+        for (int shift = 0; off < end && shift <= 28; shift += 7) {
+            int b = buf[off++] & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        return -1;
+    }
+
+    /**
+     * Packs the String representation of a board (see Board.toString()) into
+     * two cells per byte
+     * @param board The String representation of the board
+     * @return The packed board, BOARD_SIZE / 2 bytes
+     */
+    public static byte[] packBoard(String board) {
+        byte[] packed = new byte[BOARD_SIZE / 2];
+        for (int i = 0; i < packed.length; i++)
+            packed[i] = (byte) (cellValue(board.charAt(2 * i)) | (cellValue(board.charAt(2 * i + 1)) << 4));
+        return packed;
+    }
+
+    /**
+     * Converts the String representation of a board to its cells
+     * @param board The String representation of the board
+     * @param cells The array to fill, one value from 0 to 8 per cell
+     */
+    public static void toCells(String board, byte[] cells) {
+        for (int i = 0; i < BOARD_SIZE; i++)
+            cells[i] = (byte) cellValue(board.charAt(i));
+    }
+
+    /**
+     * Converts the String representation of a board to its cells, reading it
+     * straight from the bytes of a text line
+     * @param buf The buffer holding the String representation of the board
+     * @param off The offset of the board, BOARD_SIZE bytes
+     * @param cells The array to fill, one value from 0 to 8 per cell
+     */
+    public static void toCells(byte[] buf, int off, byte[] cells) {
+        for (int i = 0; i < BOARD_SIZE; i++)
+            cells[i] = (byte) cellValue((char) (buf[off + i] & 0xFF));
+    }
+
+    /**
+     * Converts the cells of a board to its String representation
+     * @param cells The cells of the board, one value from 0 to 8 per cell
+     * @return The String representation of the board
+     */
+    public static String cellsToString(byte[] cells) {
+        char[] chars = new char[BOARD_SIZE];
+        for (int i = 0; i < BOARD_SIZE; i++)
+            chars[i] = (char) ('0' + cells[i]);
+        return new String(chars);
+    }
+
+    /**
+     * Packs the cells of a board into two cells per byte
+     * @param cells The cells of the board, one value from 0 to 8 per cell
+     * @param packed The array to fill, BOARD_SIZE / 2 bytes
+     */
+    public static void packCells(byte[] cells, byte[] packed) {
+        for (int i = 0; i < BOARD_SIZE / 2; i++)
+            packed[i] = (byte) (cells[2 * i] | (cells[2 * i + 1] << 4));
+    }
+
+    /**
+     * Unpacks a board packed by packBoard() or packCells() into its cells
+     * @param buf The buffer holding the packed board
+     * @param off The offset of the packed board
+     * @param cells The array to fill, one value from 0 to 8 per cell
+     */
+    public static void unpackCells(byte[] buf, int off, byte[] cells) {
+        for (int i = 0; i < BOARD_SIZE / 2; i++) {
+            cells[2 * i] = (byte) Math.min(buf[off + i] & 0x0F, 8);
+            cells[2 * i + 1] = (byte) Math.min((buf[off + i] >> 4) & 0x0F, 8);
+        }
+    }
+
+    /**
+     * Applies the payload of a BOARD_DELTA frame to the cells of a board
+     * @param buf The buffer holding the payload
+     * @param off The offset of the payload
+     * @param len The length of the payload
+     * @param cells The cells to update, one value from 0 to 8 per cell
+     * @return True if the delta was valid, false otherwise (the cells are then
+     * partly updated, and the next keyframe will fix them)
+     */
+    public static boolean applyDelta(byte[] buf, int off, int len, byte[] cells) {
+        if (len % 2 != 0)
+            return false;
+        for (int i = off; i < off + len; i += 2) {
+            int index = buf[i] & 0xFF;
+            int value = buf[i + 1];
+            if (index >= BOARD_SIZE || value < 0 || value > 8)
+                return false;
+            cells[index] = (byte) value;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the value of a cell character, any unknown character is a filled cell
+     */
+    private static int cellValue(char c) {
+        return (c >= '0' && c <= '8') ? c - '0' : 8;
+    }
+
+    /**
+     * Converts a garbage line ("X" for filled, "." for holes) to a bit mask
+     * @param line The String representation of the line
+     * @return The mask, bit i is set if cell i is filled
+     */
+    public static int lineToMask(String line) {
+        int mask = 0;
+        for (int i = 0; i < LINE_WIDTH && i < line.length(); i++) {
+            if (line.charAt(i) == 'X')
+                mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    /**
+     * Converts a bit mask back to the String representation of a garbage line
+     * @param mask The mask, bit i is set if cell i is filled
+     * @return The String representation of the line
+     */
+    public static String maskToLine(int mask) {
+        char[] line = new char[LINE_WIDTH];
+        for (int i = 0; i < LINE_WIDTH; i++)
+            line[i] = ((mask >> i) & 1) != 0 ? 'X' : '.';
+        return new String(line);
+    }
+
+    /**
+     * Converts the bytes of a text line to a String
+     * @param buf The buffer holding the line
+     * @param off The offset of the line
+     * @param len The length of the line
+     * @return The text line
+     */
+    public static String toLine(byte[] buf, int off, int len) {
+        return new String(buf, off, len, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,249 @@
+package src.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <b>AdmissionController</b> decides which of the accepted connections the
+ * server starts serving. Up to maxActive connections are served at once; the
+ * connections past that wait in a bounded FIFO wait list, and are told their
+ * position in line with a "BUSY &lt;position&gt;" reply. Once the wait list is
+ * full as well, new connections are rejected with "FAILURE BUSY". A waiting
+ * connection that gets a slot is told so with "BUSY 0".
+ * <p>
+ * Every WATCH_MILLIS a watcher thread takes the waiting connections that
+ * have closed out of the wait list, and tells the others their new positions.
+ * A position is only sent if it is lower than the last one the client was
+ * sent, so the client never sees its position go back up, whichever thread
+ * sends it. A released slot then only costs a "BUSY 0" to the connection that
+ * takes it, whatever the length of the wait list.
+ */
+public class AdmissionController {
+
+    /** The time between two checks of the wait list */
+    public static long WATCH_MILLIS = 500;
+
+    /**
+     * <b>Candidate</b> is a connection that is asking to be admitted
+     */
+    public interface Candidate {
+
+        /**
+         * Starts serving the connection, called once it has been admitted
+         */
+        void start();
+
+        /**
+         * Tells the client its position in the wait list
+         * @param position The position in the wait list, starting at 1, or 0
+         * once the client has left the wait list and is being served
+         */
+        void busy(int position);
+
+        /**
+         * Tells the client that the server is full, and closes the connection
+         */
+        void reject();
+
+        /**
+         * Checks, without blocking, if the client has closed the connection
+         * while waiting, and closes it then. What the client sent meanwhile
+         * is kept, and handled once the connection is served.
+         * @return True if the connection has closed
+         */
+        boolean isClosed();
+    }
+
+    /**
+     * <b>Waiter</b> is a connection in the wait list
+     */
+    private static class Waiter {
+        final Candidate candidate; /** The connection */
+        int sent;                  /** The last position the client was sent, guarded by the Waiter */
+
+        Waiter(Candidate candidate) {
+            this.candidate = candidate;
+            sent = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Tells the client its position, unless it was sent a lower one already
+         * @param position The position in the wait list, 0 once served
+         */
+        synchronized void tell(int position) {
+            if (position < sent) {
+                sent = position;
+                candidate.busy(position);
+            }
+        }
+    }
+
+    private int maxActive;    /** The maximum number of connections served at once */
+    private int maxWaiting;   /** The maximum number of connections in the wait list */
+
+    private int active;                       /** The number of connections being served */
+    private LinkedList<Waiter> waiting;       /** The connections waiting to be served */
+    private ScheduledExecutorService watcher; /** Checks the wait list */
+
+    private long numAccepted;  /** The total number of connections that were admitted */
+    private long numRejected;  /** The total number of connections that were rejected */
+    private long numClosed;    /** The total number of connections that closed while waiting */
+
+    /**
+     * Creates an instance of the AdmissionController
+     * @param maxActive The maximum number of connections served at once
+     * @param maxWaiting The maximum number of connections in the wait list
+     */
+    public AdmissionController(int maxActive, int maxWaiting) {
+        this.maxActive = maxActive;
+        this.maxWaiting = maxWaiting;
+        active = 0;
+        waiting = new LinkedList<Waiter>();
+        numAccepted = 0;
+        numRejected = 0;
+        numClosed = 0;
+
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Admission");
+            t.setDaemon(true);
+            return t;
+        });
+        watcher.scheduleWithFixedDelay(this::watch, WATCH_MILLIS, WATCH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Admits the connection if there is room, and otherwise puts it in the wait
+     * list, or rejects it if the wait list is full. Never blocks.
+     * @param c The connection asking to be admitted
+     * @return 0 if the connection was admitted, its position in the wait list
+     * if it is waiting, -1 if it was rejected
+     */
+    public int admit(Candidate c) {
+        int position;
+        Waiter w = null;
+        synchronized (this) {
+            if (active < maxActive) {
+                active++;
+                numAccepted++;
+                position = 0;
+            }
+            else if (waiting.size() < maxWaiting) {
+                w = new Waiter(c);
+                waiting.add(w);
+                position = waiting.size();
+            }
+            else {
+                numRejected++;
+                position = -1;
+            }
+        }
+
+        //the replies are sent outside of the lock
+        if (position == 0)
+            c.start();
+        else if (position > 0)
+            w.tell(position);
+        else
+            c.reject();
+        return position;
+    }
+
+    /**
+     * Releases the slot of a connection that has closed. If a connection is
+     * waiting, it takes over the slot; the rest of the wait list is told its
+     * new positions by the watcher.
+     */
+    public void release() {
+        Waiter next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                active--;
+                return;
+            }
+            numAccepted++;
+        }
+
+        next.tell(0);
+        next.candidate.start();
+    }
+
+    /**
+     * Takes the connections that have closed out of the wait list, and tells
+     * the others their positions if they have changed. Run every WATCH_MILLIS.
+     */
+    private void watch() {
+        Waiter[] list;
+        synchronized (this) {
+            list = waiting.toArray(new Waiter[0]);
+        }
+        for (Waiter w : list) {
+            //a connection that is being served is no longer the watcher's to check
+            boolean closed;
+            synchronized (w) {
+                closed = w.sent > 0 && w.candidate.isClosed();
+            }
+            if (closed) {
+                synchronized (this) {
+                    if (waiting.remove(w))
+                        numClosed++;
+                }
+            }
+        }
+
+        synchronized (this) {
+            list = waiting.toArray(new Waiter[0]);
+        }
+        for (int i = 0; i < list.length; i++)
+            list[i].tell(i + 1);
+    }
+
+    /**
+     * Gets the number of connections being served
+     * @return The number of active connections
+     */
+    public synchronized int getNumActive() {
+        return active;
+    }
+
+    /**
+     * Gets the number of connections in the wait list
+     * @return The number of waiting connections
+     */
+    public synchronized int getNumWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Gets the total number of connections that were admitted
+     * @return The number of admitted connections
+     */
+    public synchronized long getNumAccepted() {
+        return numAccepted;
+    }
+
+    /**
+     * Gets the total number of connections that were rejected
+     * @return The number of rejected connections
+     */
+    public synchronized long getNumRejected() {
+        return numRejected;
+    }
+
+    /**
+     * Gets the total number of connections that closed while waiting
+     * @return The number of closed waiting connections
+     */
+    public synchronized long getNumClosed() {
+        return numClosed;
+    }
+
+    /**
+     * toString() function for the AdmissionController
+     * @return The String representation of the counters
+     */
+    public String toString() {
+        return "active=" + getNumActive() + " waiting=" + getNumWaiting() +
+                " accepted=" + getNumAccepted() + " rejected=" + getNumRejected() + " closed=" + getNumClosed();
+    }
+}
@@ -0,0 +1,209 @@
+package src.server;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import src.main.TetrisProtocol;
+
+/**
+ * <b>ClusterCoordinator</b> holds the matchmaking pool shared by the nodes of
+ * a cluster (see ClusterNode). The nodes connect to it, send the users who want
+ * to play, and the coordinator pairs them with a Matchmaker, whichever node
+ * they are connected to. It only makes the pairs: the games run on the nodes,
+ * and their traffic never goes through the coordinator.
+ * <p>
+ * It is a small stand-in for a real coordination service, so that a cluster
+ * can run on a single host with no other service: start the coordinator, then
+ * each node with its address (see TetrisServer.main()).
+ */
+public class ClusterCoordinator {
+
+    /** The port the nodes connect to, unless another one is given */
+    public static int PORT = 9000;
+
+    /**
+     * <b>Ticket</b> is a user of a node waiting in the pool
+     */
+    static class Ticket {
+        final NodeSession node; /** The node of the user */
+        final long id;          /** The number of the ticket on its node */
+        final int version;      /** The protocol version of the user's client */
+        final String name;      /** The username */
+        final String stats;     /** The String representation of the user's stats */
+
+        Ticket(NodeSession node, long id, int version, String name, String stats) {
+            this.node = node;
+            this.id = id;
+            this.version = version;
+            this.name = name;
+            this.stats = stats;
+        }
+    }
+
+    private Matchmaker<Ticket> matchmaker; /** Pairs the waiting users of all the nodes */
+    private AtomicLong matchIds;           /** The number of matches between two nodes, numbers them */
+    private Set<NodeSession> nodes;        /** The connected nodes */
+
+    /**
+     * Creates an instance of the ClusterCoordinator
+     */
+    public ClusterCoordinator() {
+        matchmaker = new Matchmaker<Ticket>(this::matched);
+        matchIds = new AtomicLong();
+        nodes = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Gets the matchmaker of the pool, which holds the queue depth and waiting
+     * time counts
+     * @return The matchmaker
+     */
+    public Matchmaker<?> getMatchmaker() {
+        return matchmaker;
+    }
+
+    /**
+     * Tells the nodes of a pair to start its game. A pair of the same node is
+     * left to the node; otherwise the node of the user who waited first hosts
+     * the match, and the node of the other user joins it.
+     * @param a The user who waited first
+     * @param b The other user
+     */
+    private void matched(Ticket a, Ticket b) {
+        a.node.tickets.remove(a.id, a);
+        b.node.tickets.remove(b.id, b);
+        if (a.node == b.node) {
+            a.node.send("PAIR " + a.id + " " + b.id);
+        }
+        else {
+            long id = matchIds.incrementAndGet();
+            long seed = (new Random()).nextLong();
+            a.node.send("HOST " + a.id + " " + id + " " + seed + " " + b.version + " " + b.name + " " + b.stats);
+            b.node.send("GUEST " + b.id + " " + id + " " + a.node.address);
+        }
+        ServerLog.info(ServerLog.Event.GAME, "Coordinator", "MATCH " + a.name + "@" + a.node.address + " vs",
+                b.name + "@" + b.node.address);
+        ServerLog.info(ServerLog.Event.GAME, "Coordinator", "matchmaking", matchmaker);
+    }
+
+    /**
+     * <b>NodeSession</b> is the connection of a node to the coordinator
+     */
+    class NodeSession implements Runnable, TetrisProtocol.Listener {
+
+        private Socket socket;                  /** The connection to the node */
+        private TetrisProtocol.Writer out;      /** Writes to the node */
+        private TetrisProtocol.Decoder decoder; /** Splits the input into lines */
+        String address;                         /** The address of the relay of the node, which names it */
+        ConcurrentHashMap<Long, Ticket> tickets; /** The waiting users of the node, by ticket */
+
+        NodeSession(Socket socket) throws IOException {
+            this.socket = socket;
+            out = new TetrisProtocol.Writer(socket.getOutputStream());
+            decoder = new TetrisProtocol.Decoder(this);
+            address = String.valueOf(socket.getRemoteSocketAddress());
+            tickets = new ConcurrentHashMap<Long, Ticket>();
+        }
+
+        /**
+         * Sends a line to the node
+         * @param line The line
+         */
+        void send(String line) {
+            out.println(line);
+        }
+
+        public void handleLine(byte[] buf, int off, int len) {
+            String[] line = TetrisProtocol.toLine(buf, off, len).split(" ");
+            try {
+                if (line[0].equals("NODE") && line.length > 1) {
+                    address = line[1];
+                    ServerLog.info(ServerLog.Event.SERVER, "Coordinator", "Node joined,", address);
+                }
+                if (line[0].equals("PLAY") && line.length > 7) {
+                    Ticket t = new Ticket(this, Long.parseLong(line[1]), Integer.parseInt(line[3]), line[4],
+                            line[5] + " " + line[6] + " " + line[7]);
+                    tickets.put(t.id, t);
+                    matchmaker.play(t, Math.max(0, Integer.parseInt(line[2])));
+                }
+                if (line[0].equals("CANCEL") && line.length > 1) {
+                    Ticket t = tickets.get(Long.parseLong(line[1]));
+                    if (t != null && matchmaker.cancel(t)) {
+                        tickets.remove(t.id, t);
+                        send("CANCELLED " + t.id);
+                    }
+                }
+            } catch (RuntimeException e) {
+                ServerLog.info(ServerLog.Event.SERVER, "Coordinator", "Invalid line from a node,", e);
+            }
+        }
+
+        public void handleFrame(int opcode, byte[] buf, int off, int len) {
+        }
+
+        /**
+         * Reads the lines of the node until it disconnects, then takes its
+         * users out of the pool
+         */
+        public void run() {
+            try {
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) != -1)
+                    decoder.feed(buf, 0, n);
+            } catch (IOException e) {
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+
+            nodes.remove(this);
+            for (Ticket t : tickets.values())
+                matchmaker.cancel(t);
+            tickets.clear();
+            ServerLog.info(ServerLog.Event.SERVER, "Coordinator", "Node left,", address);
+        }
+    }
+
+    /**
+     * Accepts the nodes, for as long as the coordinator runs
+     * @param port The port the nodes connect to
+     * @throws IOException If the port can't be opened
+     */
+    public void run(int port) throws IOException {
+        ServerSocket s = new ServerSocket(port);
+        ServerLog.info(ServerLog.Event.SERVER, "Coordinator", "Listening on port", port);
+        while (true) {
+            Socket socket = s.accept();
+            socket.setTcpNoDelay(true);
+            NodeSession node = new NodeSession(socket);
+            nodes.add(node);
+            Thread t = new Thread(node, "Node-" + socket.getRemoteSocketAddress());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * The ClusterCoordinator main function
+     * @param args The command line arguments, args[0] is the optional port
+     * (defaults to PORT)
+     */
+    public static void main(String[] args) throws IOException {
+        ServerLog.configure(System.getProperty("tetris.log", "production"));
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : PORT;
+        ClusterCoordinator coordinator = new ClusterCoordinator();
+
+        //the matchmaking of the cluster happens here, so its metrics are here too
+        ServerMetrics.gauge("matchmaking_queue_depth", () -> coordinator.matchmaker.getNumWaiting());
+        ServerMetrics.gauge("cluster_nodes", () -> coordinator.nodes.size());
+        ServerMetrics.register("matchmaking_wait", coordinator.matchmaker.getWaits());
+        String metrics = System.getProperty("tetris.metrics", String.valueOf(port + TetrisServer.METRICS_PORT_OFFSET));
+        ServerMetrics.start(metrics.equals("off") ? 0 : Integer.parseInt(metrics));
+        coordinator.run(port);
+    }
+}
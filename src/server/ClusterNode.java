@@ -0,0 +1,727 @@
+package src.server;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import src.main.TetrisProtocol;
+
+/**
+ * <b>ClusterNode</b> connects a server to the other servers (nodes) of a
+ * cluster. Every node accepts its own clients, but the users who want to play
+ * wait in a single pool, held by the ClusterCoordinator, so that a user can be
+ * matched with a user of any node.
+ * <p>
+ * When the coordinator pairs two users of the same node, the node runs the
+ * Match as usual. When it pairs users of two nodes, the Match runs on the node
+ * of the user who waited first (the host); the other node (the guest) opens a
+ * relay link to the host, and relays the game commands of its client to the
+ * Match and the messages of the Match to its client. All the matches between
+ * two nodes share the link, and its messages are batched like the output of the
+ * clients.
+ * <p>
+ * The coordinator and the relay links speak text lines. To the coordinator:
+ * "NODE address", "PLAY ticket rating version name stats" and "CANCEL ticket";
+ * from the coordinator: "PAIR ticket ticket", "HOST ticket match seed version
+ * name stats", "GUEST ticket match address" and "CANCELLED ticket". Every line
+ * of a relay link starts with the number of the match it belongs to.
+ * <p>
+ * A guest that doesn't join within JOIN_TIMEOUT_MILLIS (or joins too late, and
+ * is told the match was ABORTED), and a host that can't be reached, put their
+ * user back in the pool.
+ * <p>
+ * If the connection to the coordinator is lost, the node leaves the cluster:
+ * its users waiting in the pool are moved to the node's own Matchmaker, and
+ * the users who play from then on are matched there, with the users of this
+ * node only (see isJoined()). The matches already started, and their relay
+ * links, are unaffected.
+ */
+public class ClusterNode {
+
+    /** The time the host of a match waits for the guest node to join, before the user waits again */
+    public static long JOIN_TIMEOUT_MILLIS = 5000;
+
+    /** The time a node waits for a connection to another node or the coordinator to open */
+    public static int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    /** Marks a hosted match whose guest didn't join in time */
+    private static final Object TIMED_OUT = new Object();
+
+    private String address;        /** The address of the relay of this node, host:port, also the name of the node */
+    private Socket coordinator;    /** The connection to the coordinator */
+    private TetrisProtocol.Writer out; /** Writes to the coordinator */
+    private ServerSocket relay;    /** Accepts the links of the guest nodes */
+
+    private AtomicLong ticketIds;  /** The number of tickets given out, numbers the tickets */
+    private ConcurrentHashMap<Long, TetrisServerHandler> waiting;  /** The users of this node in the pool, by ticket */
+    private ConcurrentHashMap<TetrisServerHandler, Long> tickets;  /** The ticket of each user in the pool */
+    private ConcurrentHashMap<Long, Object> joining;               /** The hosted matches not started yet, by match: the RemotePlayer waiting for its guest, the NodeLink of a guest that joined first, or TIMED_OUT */
+    private ConcurrentHashMap<String, NodeLink> links;             /** The links to the hosts of the matches of this node's users, by address */
+    private ScheduledExecutorService timer;                        /** Times out the joins */
+    private ExecutorService linker;                                /** Joins the matches hosted by other nodes, off the coordinator's reader thread */
+    private volatile boolean joined;                               /** True until the connection to the coordinator is lost */
+
+    /**
+     * Creates an instance of the ClusterNode: opens the relay, and joins the
+     * cluster through the coordinator
+     * @param coordinatorAddress The address of the coordinator, host:port
+     * @param relayPort The port of the relay of this node
+     * @throws IOException If the relay can't be opened or the coordinator can't be reached
+     */
+    public ClusterNode(String coordinatorAddress, int relayPort) throws IOException {
+        ticketIds = new AtomicLong();
+        waiting = new ConcurrentHashMap<Long, TetrisServerHandler>();
+        tickets = new ConcurrentHashMap<TetrisServerHandler, Long>();
+        joining = new ConcurrentHashMap<Long, Object>();
+        links = new ConcurrentHashMap<String, NodeLink>();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ClusterNode");
+            t.setDaemon(true);
+            return t;
+        });
+        linker = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ClusterLinker");
+            t.setDaemon(true);
+            return t;
+        });
+
+        relay = new ServerSocket(relayPort);
+        coordinator = connect(coordinatorAddress);
+        //the other nodes reach the relay on the interface the coordinator is reached from
+        address = coordinator.getLocalAddress().getHostAddress() + ":" + relayPort;
+        out = new TetrisProtocol.Writer(coordinator.getOutputStream());
+        out.println("NODE " + address);
+        joined = true;
+
+        TetrisProtocol.Decoder decoder = new TetrisProtocol.Decoder(new TetrisProtocol.Listener() {
+            public void handleLine(byte[] buf, int off, int len) {
+                coordinatorLine(TetrisProtocol.toLine(buf, off, len).split(" "));
+            }
+
+            public void handleFrame(int opcode, byte[] buf, int off, int len) {
+            }
+        });
+        startThread("Coordinator", () -> {
+            read(coordinator, decoder);
+            leave();
+        });
+        startThread("Relay", this::acceptLinks);
+        ServerLog.info(ServerLog.Event.SERVER, "ClusterNode", "Joined the cluster as", address);
+    }
+
+    /**
+     * Gets the address of the relay of this node, which names the node in the
+     * cluster
+     * @return The address, host:port
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Checks if the node is still in the cluster. Once it isn't, the users are
+     * matched by the node's own Matchmaker instead.
+     * @return True until the connection to the coordinator is lost
+     */
+    public boolean isJoined() {
+        return joined;
+    }
+
+    /**
+     * Leaves the cluster once the connection to the coordinator is lost, and
+     * moves the users waiting in the pool to the node's own Matchmaker
+     */
+    private void leave() {
+        joined = false;
+        ServerLog.info(ServerLog.Event.SERVER, "ClusterNode", "Lost the coordinator, matching locally, users moved:", waiting.size());
+        for (Long ticket : waiting.keySet())
+            playLocally(ticket);
+    }
+
+    /**
+     * Moves a user from the pool of the cluster to the node's own Matchmaker,
+     * unless the user has been taken out of the pool already
+     * @param ticket The ticket of the user
+     */
+    private void playLocally(long ticket) {
+        TetrisServerHandler h = take(Long.toString(ticket));
+        if (h == null || h.isClosed())
+            return;
+        Matchmaker<TetrisServerHandler> matchmaker = TetrisServer.getMatchmaker();
+        matchmaker.play(h, TetrisDatabase.getRating(h.getName()));
+        //a user who disconnected meanwhile cancelled with the Matchmaker before being in it
+        if (h.isClosed())
+            matchmaker.cancel(h);
+    }
+
+    /**
+     * Opens a connection to a host:port address, giving up after
+     * CONNECT_TIMEOUT_MILLIS
+     */
+    private static Socket connect(String hostPort) throws IOException {
+        int colon = hostPort.lastIndexOf(':');
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1))),
+                    CONNECT_TIMEOUT_MILLIS);
+            s.setTcpNoDelay(true);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        return s;
+    }
+
+    /**
+     * Starts a daemon thread
+     */
+    private static void startThread(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Feeds everything read from the socket to the decoder, until the connection
+     * closes
+     */
+    private static void read(Socket socket, TetrisProtocol.Decoder decoder) {
+        try {
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                decoder.feed(buf, 0, n);
+        } catch (IOException e) {
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Enters the user in the pool of the cluster. Never blocks on the pool: the
+     * coordinator answers later.
+     * @param h The handler of the user
+     * @param rating The rating of the user
+     */
+    public void play(TetrisServerHandler h, int rating) {
+        long ticket = ticketIds.incrementAndGet();
+        waiting.put(ticket, h);
+        tickets.put(h, ticket);
+        out.println("PLAY " + ticket + " " + rating + " " + h.getVersion() + " " + h.getName() + " " + h.getStatsStr());
+        //the coordinator may have been lost after the caller checked, then nobody reads the line
+        if (!joined)
+            playLocally(ticket);
+    }
+
+    /**
+     * Asks the coordinator to take the user out of the pool, called when a
+     * waiting user disconnects. If the user has been matched already, the game
+     * starts and the user forfeits it.
+     * @param h The handler of the user
+     */
+    public void cancel(TetrisServerHandler h) {
+        Long ticket = tickets.get(h);
+        if (ticket != null)
+            out.println("CANCEL " + ticket);
+    }
+
+    /**
+     * Takes a user of this node out of the pool
+     * @param ticket The ticket of the user
+     * @return The handler of the user, null if the ticket is unknown
+     */
+    private TetrisServerHandler take(String ticket) {
+        TetrisServerHandler h = waiting.remove(Long.parseLong(ticket));
+        if (h != null)
+            tickets.remove(h);
+        return h;
+    }
+
+    /**
+     * Handles a line sent by the coordinator
+     * @param line The words of the line
+     */
+    private void coordinatorLine(String[] line) {
+        try {
+            if (line[0].equals("PAIR") && line.length > 2) {
+                TetrisServerHandler a = take(line[1]);
+                TetrisServerHandler b = take(line[2]);
+                if (a != null && b != null)
+                    TetrisServerHandler.startMatch(a, b);
+            }
+            if (line[0].equals("HOST") && line.length > 8) {
+                TetrisServerHandler h = take(line[1]);
+                if (h != null)
+                    host(h, Long.parseLong(line[2]), Long.parseLong(line[3]), Integer.parseInt(line[4]), line[5],
+                            line[6] + " " + line[7] + " " + line[8]);
+            }
+            if (line[0].equals("GUEST") && line.length > 3) {
+                TetrisServerHandler h = take(line[1]);
+                long id = Long.parseLong(line[2]);
+                String hostAddress = line[3];
+                //an unreachable host mustn't hold up the other lines of the coordinator
+                if (h != null)
+                    linker.execute(() -> guest(h, id, hostAddress));
+            }
+            if (line[0].equals("CANCELLED") && line.length > 1)
+                take(line[1]);
+        } catch (RuntimeException e) {
+            ServerLog.info(ServerLog.Event.SERVER, "ClusterNode", "Invalid line from the coordinator,", e);
+        }
+    }
+
+    /**
+     * Hosts the match of a user of this node and a user of another node. The
+     * match starts once the guest node has joined.
+     * @param h The handler of the user of this node
+     * @param id The number of the match in the cluster
+     * @param seed The seed of the match
+     * @param version The protocol version of the remote user's client
+     * @param name The username of the remote user
+     * @param stats The String representation of the remote user's stats
+     */
+    private void host(TetrisServerHandler h, long id, long seed, int version, String name, String stats) {
+        RemotePlayer rp = new RemotePlayer(id, name, version, h);
+        rp.match = new Match(seed, h, h.getStatsStr(), rp, stats);
+        ServerLog.info(ServerLog.Event.GAME, "ClusterNode", "MATCH hosted, opponent", name);
+
+        //the guest may have joined already, since the coordinator tells both nodes at once
+        Object joined = joining.putIfAbsent(id, rp);
+        if (joined instanceof NodeLink) {
+            joining.remove(id);
+            start(rp, (NodeLink) joined);
+            return;
+        }
+
+        //a guest that never joins must not keep the user out of the pool
+        timer.schedule(() -> {
+            if (joining.replace(id, rp, TIMED_OUT)) {
+                ServerLog.info(ServerLog.Event.GAME, "ClusterNode", "MATCH guest never joined, match", id);
+                if (!h.isClosed())
+                    play(h, TetrisDatabase.getRating(h.getName()));
+            }
+        }, JOIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Joins the match of a user of this node hosted by another node. Run by
+     * the linker, since opening the link may wait up to CONNECT_TIMEOUT_MILLIS.
+     * @param h The handler of the user of this node
+     * @param id The number of the match in the cluster
+     * @param hostAddress The address of the relay of the host
+     */
+    private void guest(TetrisServerHandler h, long id, String hostAddress) {
+        NodeLink link;
+        try {
+            link = linkTo(hostAddress);
+        } catch (IOException e) {
+            //the host's join times out, and its user waits again; so does this one
+            ServerLog.info(ServerLog.Event.GAME, "ClusterNode", "MATCH host unreachable,", hostAddress);
+            if (!h.isClosed())
+                play(h, TetrisDatabase.getRating(h.getName()));
+            return;
+        }
+
+        RemoteGame g = new RemoteGame(link, id, h);
+        link.games.put(id, g);
+        h.setMatch(g);
+        link.send(id + " JOIN", true);
+        //the user may have disconnected while being taken out of the pool
+        if (h.isClosed())
+            g.lose(h, -1);
+    }
+
+    /**
+     * Gets the link to a host, opening it on the first match with that host
+     * @param hostAddress The address of the relay of the host
+     * @return The link
+     * @throws IOException If the host can't be reached
+     */
+    private NodeLink linkTo(String hostAddress) throws IOException {
+        NodeLink link = links.get(hostAddress);
+        if (link != null)
+            return link;
+
+        //connects without the lock, so that an unreachable host doesn't hold up the links to the others
+        Socket s = connect(hostAddress);
+        synchronized (links) {
+            link = links.get(hostAddress);
+            if (link != null) {
+                //another match with the same host opened a link first
+                s.close();
+                return link;
+            }
+            NodeLink opened = new NodeLink(s, false);
+            links.put(hostAddress, opened);
+            startThread("Link-" + hostAddress, () -> {
+                opened.run();
+                links.remove(hostAddress, opened);
+            });
+            return opened;
+        }
+    }
+
+    /**
+     * Accepts the links of the guest nodes, for as long as the server runs
+     */
+    private void acceptLinks() {
+        while (true) {
+            try {
+                Socket s = relay.accept();
+                s.setTcpNoDelay(true);
+                NodeLink link = new NodeLink(s, true);
+                startThread("Link-" + s.getRemoteSocketAddress(), link::run);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A guest node has joined a hosted match, which starts if the coordinator
+     * has told this node about it
+     * @param link The link to the guest node
+     * @param id The number of the match
+     */
+    private void joined(NodeLink link, long id) {
+        Object hosted = joining.putIfAbsent(id, link);
+        if (hosted == TIMED_OUT) {
+            //the host's user waits again, and so must the guest's
+            joining.remove(id);
+            link.send(id + " ABORTED", true);
+        }
+        else if (hosted instanceof RemotePlayer) {
+            joining.remove(id);
+            start((RemotePlayer) hosted, link);
+        }
+    }
+
+    /**
+     * Starts a hosted match once both nodes are ready
+     * @param rp The remote player of the match
+     * @param link The link to the guest node
+     */
+    private void start(RemotePlayer rp, NodeLink link) {
+        rp.link = link;
+        link.players.put(rp.id, rp);
+        rp.local.setMatch(rp.match);
+        rp.match.start();
+        //the user may have disconnected while waiting for the guest
+        if (rp.local.isClosed())
+            rp.match.lose(rp.local, -1);
+    }
+
+    /**
+     * <b>NodeLink</b> is a relay link between a guest node and a host node,
+     * shared by all the matches the host runs for the guest's users. Both ends
+     * have one, reading the lines of the other end on their own thread.
+     */
+    class NodeLink implements TetrisProtocol.Listener {
+
+        private Socket socket;                  /** The connection to the other node */
+        private SocketOutput output;            /** Writes to the other node on a thread of its own */
+        private TetrisProtocol.Writer out;      /** Writes to the other node, batched */
+        private TetrisProtocol.Decoder decoder; /** Splits the input into lines */
+        private boolean hosting;                /** True on the host's end of the link */
+
+        ConcurrentHashMap<Long, RemotePlayer> players; /** The remote players of the matches, on the host's end */
+        ConcurrentHashMap<Long, RemoteGame> games;     /** The games of this node's users, on the guest's end */
+
+        /**
+         * Creates an instance of the NodeLink
+         * @param socket The connection to the other node
+         * @param hosting True on the host's end of the link
+         * @throws IOException If the connection is closed
+         */
+        NodeLink(Socket socket, boolean hosting) throws IOException {
+            this.socket = socket;
+            this.hosting = hosting;
+            //the Matches and the TickFlusher write to the link, they mustn't wait on the other node
+            output = new SocketOutput(socket, null, "Link-" + socket.getRemoteSocketAddress());
+            out = new TetrisProtocol.Writer(output);
+            out.setBatcher(TetrisServer.getFlusher());
+            decoder = new TetrisProtocol.Decoder(this);
+            players = new ConcurrentHashMap<Long, RemotePlayer>();
+            games = new ConcurrentHashMap<Long, RemoteGame>();
+        }
+
+        /**
+         * Sends a line to the other node
+         * @param line The line
+         * @param urgent True to flush it right away, instead of at the next tick
+         */
+        void send(String line, boolean urgent) {
+            out.println(line);
+            if (urgent)
+                out.flush();
+        }
+
+        /**
+         * Reads the lines of the other node until the link closes, then ends the
+         * matches that were using it
+         */
+        void run() {
+            read(socket, decoder);
+            output.close();
+            ServerLog.info(ServerLog.Event.SERVER, "ClusterNode", "Link closed,", socket.getRemoteSocketAddress());
+            //the remote users are gone: they forfeit their games
+            for (RemotePlayer rp : players.values())
+                rp.match.lose(rp, -1);
+            players.clear();
+            //the matches are gone: the users of this node win by default
+            for (RemoteGame g : games.values())
+                g.handler.opponentLose();
+            games.clear();
+        }
+
+        public void handleLine(byte[] buf, int off, int len) {
+            String[] line = TetrisProtocol.toLine(buf, off, len).split(" ");
+            try {
+                if (line.length < 2)
+                    return;
+                long id = Long.parseLong(line[0]);
+                if (hosting)
+                    guestLine(id, line);
+                else
+                    hostLine(id, line);
+            } catch (RuntimeException e) {
+                ServerLog.info(ServerLog.Event.SERVER, "ClusterNode", "Invalid line from a node,", e);
+            }
+        }
+
+        public void handleFrame(int opcode, byte[] buf, int off, int len) {
+        }
+
+        /**
+         * Handles a line of the guest node, the game commands of its user
+         * @param id The number of the match
+         * @param line The words of the line, [1] is the command
+         */
+        private void guestLine(long id, String[] line) {
+            if (line[1].equals("JOIN")) {
+                joined(this, id);
+                return;
+            }
+            RemotePlayer rp = players.get(id);
+            if (rp == null)
+                return;
+            Match m = rp.match;
+            switch (line[1]) {
+                case "MOVE":
+                    m.move(rp, Integer.parseInt(line[2]));
+                    break;
+                case "BOARD":
+                    if (line[2].length() == TetrisProtocol.BOARD_SIZE) {
+                        TetrisProtocol.toCells(line[2], rp.cells);
+                        m.board(rp, rp.cells);
+                    }
+                    break;
+                case "SEND":
+                    m.send(rp);
+                    break;
+                case "TICK":
+                    m.tick(rp);
+                    break;
+                case "APPLY":
+                    m.apply(rp);
+                    break;
+                case "RESYNC":
+                    m.resync(rp);
+                    break;
+                case "LOSE":
+                    m.lose(rp, Integer.parseInt(line[2]));
+                    break;
+                case "WIN":
+                    m.win(rp, Integer.parseInt(line[2]));
+                    break;
+            }
+        }
+
+        /**
+         * Handles a line of the host node, the messages of a match to the user
+         * of this node
+         * @param id The number of the match
+         * @param line The words of the line, [1] is the message
+         */
+        private void hostLine(long id, String[] line) {
+            RemoteGame g = games.get(id);
+            if (g == null)
+                return;
+            TetrisServerHandler h = g.handler;
+            switch (line[1]) {
+                case "MATCHED":
+                    h.matched(line[3], line[4] + " " + line[5] + " " + line[6], Long.parseLong(line[2]));
+                    break;
+                case "OPPONENT_MOVE":
+                    h.opponentMove(Integer.parseInt(line[2]));
+                    break;
+                case "OPPONENT_BOARD":
+                    if (line[2].length() == TetrisProtocol.BOARD_SIZE) {
+                        TetrisProtocol.toCells(line[2], g.cells);
+                        h.opponentBoard(g.cells);
+                    }
+                    break;
+                case "SENT":
+                    h.sent(line[2]);
+                    break;
+                case "OPPONENT_SEND":
+                    h.opponentSend(line[2]);
+                    break;
+                case "OPPONENT_LOSE":
+                    h.opponentLose();
+                    break;
+                case "ABORTED":
+                    games.remove(id);
+                    h.endMatch(g);
+                    if (!h.isClosed())
+                        play(h, TetrisDatabase.getRating(h.getName()));
+                    break;
+                case "ENDED":
+                    games.remove(id);
+                    if (line.length > 4 && !line[4].equals("-"))
+                        g.replay = line[4];
+                    h.ended(g, line[2].equals("1"), Integer.parseInt(line[3]));
+                    break;
+                case "HASH":
+                    h.hash(Integer.parseInt(line[2]), Integer.parseInt(line[3]));
+                    break;
+                case "SYNC":
+                    h.sync(line[2], Integer.parseInt(line[3]));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * <b>RemotePlayer</b> is the user of a guest node in a Match hosted by this
+     * node. What the Match tells the player is relayed to the guest node.
+     */
+    class RemotePlayer implements Player {
+
+        private long id;           /** The number of the match */
+        private String name;       /** The username of the remote user */
+        private int version;       /** The protocol version of the remote user's client */
+        TetrisServerHandler local; /** The user of this node in the match */
+        Match match;               /** The hosted match */
+        NodeLink link;             /** The link to the guest node, null until it has joined */
+        byte[] cells;              /** The last board relayed by the guest node, only used by the link thread */
+
+        RemotePlayer(long id, String name, int version, TetrisServerHandler local) {
+            this.id = id;
+            this.name = name;
+            this.version = version;
+            this.local = local;
+            cells = new byte[TetrisProtocol.BOARD_SIZE];
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public void matched(String opponentName, String opponentStats, long seed) {
+            link.send(id + " MATCHED " + seed + " " + opponentName + " " + opponentStats, true);
+        }
+
+        public void opponentMove(int keyPressed) {
+            link.send(id + " OPPONENT_MOVE " + keyPressed, false);
+        }
+
+        public void opponentBoard(byte[] cells) {
+            link.send(id + " OPPONENT_BOARD " + TetrisProtocol.cellsToString(cells), false);
+        }
+
+        public void sent(String line) {
+            link.send(id + " SENT " + line, false);
+        }
+
+        public void opponentSend(String lineSent) {
+            link.send(id + " OPPONENT_SEND " + lineSent, false);
+        }
+
+        public void opponentLose() {
+            link.send(id + " OPPONENT_LOSE", true);
+        }
+
+        public void ended(Game g, boolean isWin, int score) {
+            link.players.remove(id);
+            String replay = g.getReplay();
+            link.send(id + " ENDED " + (isWin ? 1 : 0) + " " + score + " " + (replay == null ? "-" : replay), true);
+        }
+
+        public void hash(int numPieces, int hash) {
+            link.send(id + " HASH " + numPieces + " " + hash, false);
+        }
+
+        public void sync(String board, int score) {
+            link.send(id + " SYNC " + board + " " + score, true);
+        }
+
+        public void resumed(Game g, String opponentName, String opponentStats, long seed, String snapshot) {
+            //the games of users of two nodes aren't kept when a connection closes, so they are never resumed
+        }
+    }
+
+    /**
+     * <b>RemoteGame</b> is the game of a user of this node hosted by another
+     * node. The game commands of the user are relayed to the host.
+     */
+    class RemoteGame implements Game {
+
+        private NodeLink link;       /** The link to the host */
+        private long id;             /** The number of the match */
+        TetrisServerHandler handler; /** The user of this node */
+        byte[] cells;                /** The last board of the opponent, only used by the link thread */
+        volatile String replay;      /** The name of the replay file on the host, once the game has ended */
+
+        RemoteGame(NodeLink link, long id, TetrisServerHandler handler) {
+            this.link = link;
+            this.id = id;
+            this.handler = handler;
+            cells = new byte[TetrisProtocol.BOARD_SIZE];
+        }
+
+        public void move(Player p, int keyPressed) {
+            link.send(id + " MOVE " + keyPressed, false);
+        }
+
+        public void board(Player p, byte[] cells) {
+            link.send(id + " BOARD " + TetrisProtocol.cellsToString(cells), false);
+        }
+
+        public void send(Player p) {
+            link.send(id + " SEND", false);
+        }
+
+        public void tick(Player p) {
+            link.send(id + " TICK", false);
+        }
+
+        public void apply(Player p) {
+            link.send(id + " APPLY", false);
+        }
+
+        public void resync(Player p) {
+            link.send(id + " RESYNC", true);
+        }
+
+        public void lose(Player p, int score) {
+            link.send(id + " LOSE " + score, true);
+        }
+
+        public void win(Player p, int score) {
+            link.send(id + " WIN " + score, true);
+        }
+
+        public String getReplay() {
+            return replay;
+        }
+    }
+}
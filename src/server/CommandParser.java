@@ -0,0 +1,108 @@
+package src.server;
+
+import src.main.TetrisProtocol;
+
+/**
+ * <b>CommandParser</b> recognizes the frequent game commands of the text
+ * protocol ("MOVE &lt;keyCode&gt;", "BOARD &lt;board&gt;" and "SEND") straight
+ * from the bytes of a line, by their prefix, without creating a String or an
+ * array per line. Every other line, and any game command it can't parse
+ * exactly, is left to the String-based handling of the line.
+ */
+public class CommandParser {
+
+    /** The line is not a frequent game command */
+    public static final int OTHER = 0;
+    /** "MOVE &lt;keyCode&gt;", the keyCode is in getKeyCode() */
+    public static final int MOVE = 1;
+    /** "BOARD &lt;board&gt;", the cells are in getCells() */
+    public static final int BOARD = 2;
+    /** "SEND" */
+    public static final int SEND = 3;
+
+    private static final byte[] MOVE_PREFIX = { 'M', 'O', 'V', 'E', ' ' };
+    private static final byte[] BOARD_PREFIX = { 'B', 'O', 'A', 'R', 'D', ' ' };
+    private static final byte[] SEND_PREFIX = { 'S', 'E', 'N', 'D' };
+
+    private int keyCode;   /** The keyCode of the last MOVE */
+    private byte[] cells;  /** The cells of the last BOARD, reused for every line */
+
+    /**
+     * Creates an instance of the CommandParser
+     */
+    public CommandParser() {
+        keyCode = -1;
+        cells = new byte[TetrisProtocol.BOARD_SIZE];
+    }
+
+    /**
+     * Parses a line
+     * @param buf The buffer holding the line
+     * @param off The offset of the line
+     * @param len The length of the line, without the line terminator
+     * @return MOVE, BOARD or SEND if the line is one of these commands, OTHER
+     * otherwise
+     */
+    public int parse(byte[] buf, int off, int len) {
+        if (startsWith(buf, off, len, MOVE_PREFIX)) {
+            keyCode = parseInt(buf, off + MOVE_PREFIX.length, off + len);
+            return (keyCode >= 0) ? MOVE : OTHER;
+        }
+        if (startsWith(buf, off, len, BOARD_PREFIX)) {
+            if (len != BOARD_PREFIX.length + TetrisProtocol.BOARD_SIZE)
+                return OTHER;
+            TetrisProtocol.toCells(buf, off + BOARD_PREFIX.length, cells);
+            return BOARD;
+        }
+        //"SEND", with or without arguments
+        if (startsWith(buf, off, len, SEND_PREFIX) && (len == SEND_PREFIX.length || buf[off + SEND_PREFIX.length] == ' '))
+            return SEND;
+        return OTHER;
+    }
+
+    /**
+     * Gets the keyCode of the last MOVE
+     * @return The keyCode of the key the client pressed
+     */
+    public int getKeyCode() {
+        return keyCode;
+    }
+
+    /**
+     * Gets the cells of the last BOARD. The array is reused by the next line.
+     * @return The cells of the board, one value from 0 to 8 per cell
+     */
+    public byte[] getCells() {
+        return cells;
+    }
+
+    /**
+     * Checks if the line starts with the prefix
+     */
+    private static boolean startsWith(byte[] buf, int off, int len, byte[] prefix) {
+        if (len < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (buf[off + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a non-negative decimal number filling the bytes up to end
+     * @return The number, -1 if the bytes are not only digits, or too many
+     */
+    private static int parseInt(byte[] buf, int off, int end) {
+        if (off == end || end - off > 9)
+            return -1;
+        int value = 0;
+        for (int i = off; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
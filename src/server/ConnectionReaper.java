@@ -0,0 +1,185 @@
+package src.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <b>ConnectionReaper</b> closes the connections whose client has gone away
+ * without closing them, such as a half-open TCP connection left by a crashed
+ * client or a dropped network. Those would otherwise keep their slot, their
+ * logged in user and their place in the matchmaking queue or their game
+ * forever, as nothing is ever read from them.
+ * <p>
+ * Every SWEEP_MILLIS, it checks how long each connection has been silent:
+ * <ul>
+ * <li>A client speaking the heartbeat (protocol version 5 or newer) is sent
+ * "PING" once it has been silent for PING_MILLIS, which it answers with
+ * "PONG", and is closed once it has been silent for IDLE_TIMEOUT_MILLIS.</li>
+ * <li>An older client only sends while playing (a board or a tick at every
+ * step of its timer), so it is only closed if it has been silent for
+ * IDLE_TIMEOUT_MILLIS during a game.</li>
+ * </ul>
+ * A closed connection is cleaned up as if the client had closed it: its slot
+ * is freed, its user is logged out, and a game in progress is forfeited, which
+ * tells the opponent that they have won.
+ */
+public class ConnectionReaper implements Runnable {
+
+    /** The time between two checks of the connections */
+    public static long SWEEP_MILLIS = 2000;
+
+    /** The silence after which a client speaking the heartbeat is sent PING */
+    public static long PING_MILLIS = 10000;
+
+    /** The silence after which a connection is closed */
+    public static long IDLE_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * <b>Connection</b> is a client connection watched by the reaper
+     */
+    public interface Connection {
+
+        /**
+         * Gets when the connection last read anything from the client
+         * @return The time, from System.nanoTime()
+         */
+        long getLastRead();
+
+        /**
+         * Checks if the client answers PING
+         * @return True if the client speaks the heartbeat
+         */
+        boolean isHeartbeating();
+
+        /**
+         * Checks if the client is in a game
+         * @return True if the client is playing
+         */
+        boolean isPlaying();
+
+        /**
+         * Sends "PING" to the client
+         */
+        void ping();
+
+        /**
+         * Closes the connection, from the reaper's thread. The connection is
+         * then cleaned up as if the client had closed it.
+         */
+        void kill();
+    }
+
+    private Set<Connection> connections;      /** The connections being watched */
+    private ScheduledExecutorService sweeper; /** Runs the checks */
+    private AtomicLong numPings;              /** The total number of PINGs sent */
+    private AtomicLong numReaped;             /** The total number of connections closed */
+
+    /**
+     * Creates an instance of the ConnectionReaper, and starts checking
+     */
+    public ConnectionReaper() {
+        connections = ConcurrentHashMap.newKeySet();
+        numPings = new AtomicLong();
+        numReaped = new AtomicLong();
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ConnectionReaper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts watching a connection
+     * @param c The connection
+     */
+    public void add(Connection c) {
+        connections.add(c);
+    }
+
+    /**
+     * Stops watching a connection, called once it has closed
+     * @param c The connection
+     */
+    public void remove(Connection c) {
+        connections.remove(c);
+    }
+
+    /**
+     * Checks every connection once: pings the silent ones, and closes those
+     * that have been silent for too long
+     */
+    public void run() {
+        long now = System.nanoTime();
+        int reaped = 0;
+        for (Connection c : connections) {
+            long silentMillis = (now - c.getLastRead()) / 1000000;
+            boolean timedOut = silentMillis >= IDLE_TIMEOUT_MILLIS;
+            if (c.isHeartbeating()) {
+                if (!timedOut && silentMillis >= PING_MILLIS) {
+                    c.ping();
+                    numPings.incrementAndGet();
+                    continue;
+                }
+            }
+            else if (!c.isPlaying())
+                continue;
+            if (!timedOut)
+                continue;
+
+            connections.remove(c);
+            ServerLog.info(ServerLog.Event.SERVER, "REAPER", "Closing a connection silent for (ms)", silentMillis);
+            try {
+                c.kill();
+            } catch (RuntimeException e) {
+                ServerLog.info(ServerLog.Event.SERVER, "REAPER", "close failed,", e);
+            }
+            reaped++;
+        }
+        if (reaped > 0) {
+            numReaped.addAndGet(reaped);
+            ServerLog.info(ServerLog.Event.SERVER, "REAPER", "reaped " + reaped + ",", this);
+        }
+    }
+
+    /**
+     * Gets the number of connections being watched
+     * @return The number of connections
+     */
+    public int getNumConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Gets the total number of PINGs sent
+     * @return The number of PINGs
+     */
+    public long getNumPings() {
+        return numPings.get();
+    }
+
+    /**
+     * Gets the total number of connections closed by the reaper
+     * @return The number of connections reclaimed
+     */
+    public long getNumReaped() {
+        return numReaped.get();
+    }
+
+    /**
+     * Stops checking the connections
+     */
+    public void shutdown() {
+        sweeper.shutdown();
+    }
+
+    /**
+     * toString() function for the ConnectionReaper
+     * @return The String representation of the counters
+     */
+    public String toString() {
+        return "connections=" + getNumConnections() + " pings=" + getNumPings() + " reaped=" + getNumReaped();
+    }
+}
@@ -0,0 +1,202 @@
+package src.server;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <b>DatabasePool</b> keeps a few long-lived connections to the SQLite
+ * database, so that a call to TetrisDatabase costs a query instead of opening
+ * the database file, reading its schema and closing it again.
+ * <p>
+ * Each connection is lent to one thread at a time, and keeps its prepared
+ * statements: every statement of TetrisDatabase is compiled once per
+ * connection, then only bound and run. The connections put the database in
+ * WAL journal mode, in which the readers read a snapshot of the database
+ * while a writer appends to the log, so that the logins and the leaderboard
+ * never wait for the end of a game being written. Writers still take turns,
+ * waiting up to BUSY_TIMEOUT_MILLIS for each other.
+ */
+public class DatabasePool {
+
+    /** The maximum number of connections, and so of concurrent calls */
+    public static int SIZE = 4;
+
+    /** The time a call waits for a free connection, or a writer for the other writers */
+    public static int BUSY_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * <b>Handle</b> is a connection of the pool, lent to one thread at a time
+     * with its prepared statements. Closing it gives it back to the pool.
+     */
+    public class Handle implements AutoCloseable {
+
+        private Connection connection;                     /** The connection to the database */
+        private HashMap<String, PreparedStatement> statements; /** The prepared statements, by SQL */
+
+        /**
+         * Opens a connection, in WAL journal mode
+         * @throws SQLException If the database can't be opened
+         */
+        Handle() throws SQLException {
+            connection = DriverManager.getConnection(url);
+            statements = new HashMap<String, PreparedStatement>();
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = WAL;");
+                //in WAL mode, the log is only synced at checkpoints: a power loss can lose the last commits, not corrupt the file
+                stmt.execute("PRAGMA synchronous = NORMAL;");
+                stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS + ";");
+            }
+        }
+
+        /**
+         * Gets the prepared statement of an SQL statement, preparing it on its
+         * first use by this connection
+         * @param sql The SQL statement, with ? for its parameters
+         * @return The statement, its parameters cleared
+         * @throws SQLException If the statement can't be prepared
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            else
+                stmt.clearParameters();
+            return stmt;
+        }
+
+        /**
+         * Gets the connection, for the statements that aren't worth preparing
+         * such as the creation of the tables
+         * @return The connection
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Gives the connection back to the pool
+         */
+        public void close() {
+            release(this);
+        }
+
+        /**
+         * Closes the connection and its statements
+         */
+        void destroy() {
+            try {
+                for (PreparedStatement stmt : statements.values())
+                    stmt.close();
+                connection.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+
+    private String url;                        /** The JDBC URL of the database */
+    private ArrayBlockingQueue<Handle> idle;   /** The connections not lent */
+    private Semaphore permits;                 /** One permit per connection that can be lent */
+    private AtomicInteger numOpen;             /** The number of connections open */
+    private volatile boolean closed;           /** True once the pool has been shut down */
+
+    /**
+     * Creates an instance of the DatabasePool. The connections are opened when
+     * they are first needed.
+     * @param url The JDBC URL of the database
+     */
+    public DatabasePool(String url) {
+        this.url = url;
+        idle = new ArrayBlockingQueue<Handle>(SIZE);
+        permits = new Semaphore(SIZE);
+        numOpen = new AtomicInteger();
+        closed = false;
+    }
+
+    /**
+     * Gets the JDBC URL of the database
+     * @return The URL
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Lends a connection, opening one if none is idle, or waiting for one if
+     * SIZE are lent
+     * @return The connection, to be closed once done with it
+     * @throws SQLException If no connection is free in time, or the database
+     * can't be opened
+     */
+    public Handle borrow() throws SQLException {
+        try {
+            if (!permits.tryAcquire(BUSY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                throw new SQLTransientConnectionException("No free database connection");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection");
+        }
+        Handle h = idle.poll();
+        if (h != null)
+            return h;
+        try {
+            h = new Handle();
+            numOpen.incrementAndGet();
+            return h;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes back a lent connection. A connection that has been closed, or left
+     * in the middle of a transaction, is dropped and replaced on the next
+     * borrow().
+     * @param h The connection
+     */
+    void release(Handle h) {
+        boolean usable;
+        try {
+            usable = !closed && !h.connection.isClosed() && h.connection.getAutoCommit();
+        } catch (SQLException e) {
+            usable = false;
+        }
+        if (!usable || !idle.offer(h)) {
+            h.destroy();
+            numOpen.decrementAndGet();
+        }
+        permits.release();
+    }
+
+    /**
+     * Gets the number of connections open
+     * @return The number of connections, lent or idle
+     */
+    public int getNumOpen() {
+        return numOpen.get();
+    }
+
+    /**
+     * Closes the idle connections, and the lent ones once they are given back
+     */
+    public void shutdown() {
+        closed = true;
+        Handle h;
+        while ((h = idle.poll()) != null) {
+            h.destroy();
+            numOpen.decrementAndGet();
+        }
+    }
+
+    /**
+     * toString() function for the DatabasePool
+     * @return The String representation of the pool
+     */
+    public String toString() {
+        return "url=" + url + " open=" + getNumOpen() + " idle=" + idle.size();
+    }
+}
@@ -0,0 +1,72 @@
+package src.server;
+
+/**
+ * <b>Game</b> is the game a player is in, as seen by the player's handler:
+ * where it posts the game commands of its client. The game either runs on this
+ * node (Match), or on the node of the opponent, which the commands are relayed
+ * to (ClusterNode.RemoteGame). None of the calls wait for the game.
+ */
+interface Game {
+
+    /**
+     * The player has moved their piece, called when the client sends "MOVE"
+     * @param p The player
+     * @param keyPressed The keyCode of the key the client pressed
+     */
+    void move(Player p, int keyPressed);
+
+    /**
+     * The player has sent their board. The caller can reuse the cells once the
+     * call returns.
+     * @param p The player
+     * @param cells The cells of the client's board
+     */
+    void board(Player p, byte[] cells);
+
+    /**
+     * The player has cleared lines, called when the client sends "SEND"
+     * @param p The player
+     */
+    void send(Player p);
+
+    /**
+     * The timer of the player's game has stepped, called when the client sends
+     * TICK
+     * @param p The player
+     */
+    void tick(Player p);
+
+    /**
+     * The player has added the oldest line sent by the opponent, called when
+     * the client sends APPLY
+     * @param p The player
+     */
+    void apply(Player p);
+
+    /**
+     * The player asks for the simulated board and score, called when the
+     * client sends RESYNC
+     * @param p The player
+     */
+    void resync(Player p);
+
+    /**
+     * The player has lost, called when the client sends "LOSE" or disconnects
+     * @param p The player
+     * @param score The user's score for this game, -1 if the client didn't send it
+     */
+    void lose(Player p, int score);
+
+    /**
+     * The player has won, called when the client sends "WIN"
+     * @param p The player
+     * @param score The user's score for this game, -1 if the client didn't send it
+     */
+    void win(Player p, int score);
+
+    /**
+     * Gets the replay file the game is recorded to (see ReplayRecorder)
+     * @return The name of the file, null if the game isn't recorded
+     */
+    String getReplay();
+}
@@ -0,0 +1,362 @@
+package src.server;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <b>GameResultWriter</b> writes the results of the games to the database
+ * behind the handlers' backs. A handler only puts the result of its game in a
+ * bounded queue, and a single writer thread takes the results out in batches:
+ * it waits up to BATCH_MILLIS after the first result of a batch for the others
+ * to come in, or until BATCH_SIZE of them are waiting, and writes the whole
+ * batch in one transaction (see TetrisDatabase.addGames()). The end of a round
+ * of a tournament, where many games end at once, then costs a few commits
+ * instead of several statements per player, each committed on its own.
+ * <p>
+ * A batch that fails because the database is busy is tried again, MAX_RETRIES
+ * times with a growing wait. If it still fails, or fails because of one of
+ * its rows, its results are written one at a time, so that only the rows at
+ * fault are lost.
+ * <p>
+ * The rating changes of the games go through the same thread, and are applied
+ * in the transaction of the next batch, so that two games ending at once for
+ * the same user can't both read the rating before either writes it, and
+ * adding a rating change never waits on the database.
+ * <p>
+ * Adding a result only waits on the database when the queue is full, because
+ * the database can't keep up: the thread adding it then writes it itself, in
+ * a transaction of its own, instead of dropping it. That is the backpressure
+ * of the writer, a Match thread ending a game then waits for one short
+ * commit, but never for the writer's batch (see getNumDirect()). When the
+ * server exits, the writer writes what is left in the queue, and checkpoints
+ * the database so that the results are on disk (see
+ * TetrisDatabase.checkpoint()).
+ */
+public class GameResultWriter {
+
+    /** The number of results the queue holds */
+    public static int QUEUE_SIZE = 4096;
+
+    /** The time the writer waits for more results after the first one of a batch */
+    public static long BATCH_MILLIS = 50;
+
+    /** The most results written in one transaction */
+    public static int BATCH_SIZE = 256;
+
+    /** The number of times a batch is tried again while the database is busy */
+    public static int MAX_RETRIES = 3;
+
+    /** The wait before the first retry of a batch, doubled for each retry after it */
+    public static long RETRY_MILLIS = 50;
+
+    /**
+     * <b>Result</b> is the result of a game for one of its players
+     */
+    public static class Result {
+        public final String username;  /** The username of the player */
+        public final boolean isWin;    /** True if the player won */
+        public final int score;        /** The score of the player, -1 if unknown */
+        public final String replay;    /** The name of the replay file, null if the game wasn't recorded */
+        public final long time;        /** When the game ended, in milliseconds since the epoch */
+
+        /**
+         * Creates an instance of the Result, for a game that has just ended
+         * @param username The username of the player
+         * @param isWin True if the player won
+         * @param score The score of the player, -1 if unknown
+         * @param replay The name of the replay file, null if the game wasn't recorded
+         */
+        public Result(String username, boolean isWin, int score, String replay) {
+            this.username = username;
+            this.isWin = isWin;
+            this.score = score;
+            this.replay = replay;
+            time = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * <b>Rating</b> is the change of the ratings of the players of a game,
+     * worked out from their ratings when it is written
+     */
+    public static class Rating {
+        public final String winner;  /** The username of the player who won */
+        public final String loser;   /** The username of the player who lost */
+
+        /**
+         * Creates an instance of the Rating
+         * @param winner The username of the player who won
+         * @param loser The username of the player who lost
+         */
+        public Rating(String winner, String loser) {
+            this.winner = winner;
+            this.loser = loser;
+        }
+    }
+
+    private ArrayBlockingQueue<Result> queue;  /** The results waiting to be written */
+    private ConcurrentLinkedQueue<Rating> ratings; /** The rating changes waiting to be written, one per game so never many */
+    private Thread writer;                     /** Writes the results */
+    private volatile boolean closed;           /** True once the server is exiting */
+    private AtomicLong numAdded;               /** The total number of results added */
+    private AtomicLong numWritten;             /** The total number of results written */
+    private AtomicLong numFailed;              /** The total number of results that couldn't be written */
+    private AtomicLong numBatches;             /** The total number of transactions committed */
+    private AtomicLong numDirect;              /** The total number of results written by the threads adding them */
+
+    /**
+     * Creates an instance of the GameResultWriter, and starts its writer
+     * thread
+     */
+    public GameResultWriter() {
+        queue = new ArrayBlockingQueue<Result>(QUEUE_SIZE);
+        ratings = new ConcurrentLinkedQueue<Rating>();
+        numAdded = new AtomicLong();
+        numWritten = new AtomicLong();
+        numFailed = new AtomicLong();
+        numBatches = new AtomicLong();
+        numDirect = new AtomicLong();
+        closed = false;
+
+        writer = new Thread(this::run, "GameResultWriter");
+        writer.setDaemon(true);
+        writer.start();
+        //writes what is left when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Adds the result of a game, to be written with the next batch. If the
+     * queue is full, or the server is exiting, the result is written right
+     * away instead, on the calling thread.
+     * @param r The result
+     */
+    public void add(Result r) {
+        numAdded.incrementAndGet();
+        if (!closed && queue.offer(r)) {
+            //close() may have drained the queue since the check, in which case the result is still in it
+            if (!closed || !queue.remove(r))
+                return;
+        }
+        writeDirect(r);
+    }
+
+    /**
+     * Writes a result in a transaction of its own, on the thread adding it.
+     * Doesn't hold the writer's lock, so the thread never waits for a batch.
+     * @param r The result
+     */
+    private void writeDirect(Result r) {
+        numDirect.incrementAndGet();
+        if (commit(Collections.singletonList(r), Collections.<Rating>emptyList())) {
+            numWritten.incrementAndGet();
+            numBatches.incrementAndGet();
+        } else
+            failed(r.username);
+        //flush() sees it within BATCH_MILLIS, notifying it would wait for the writer's lock
+    }
+
+    /**
+     * Adds the rating change of a game, to be written with the next batch.
+     * Never blocks the caller, unless the server is exiting.
+     * @param r The rating change
+     */
+    public void rate(Rating r) {
+        ratings.add(r);
+        //close() may have drained the changes since, and then this writes it
+        if (closed)
+            write(Collections.<Result>emptyList());
+    }
+
+    /**
+     * The loop of the writer thread
+     */
+    private void run() {
+        ArrayList<Result> batch = new ArrayList<Result>(BATCH_SIZE);
+        while (!closed) {
+            try {
+                Result first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (ratings.isEmpty())
+                        continue;
+                } else
+                    batch.add(first);
+
+                //gathers the results that come in during the batch window
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_MILLIS);
+                while (batch.size() < BATCH_SIZE && !closed) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long left = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || left <= 0)
+                        break;
+                    Result r = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (r != null)
+                        batch.add(r);
+                }
+            } catch (InterruptedException e) {
+                //not interrupted on purpose: an interrupt would fail the batch's wait for a connection
+            }
+            if (!batch.isEmpty() || !ratings.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of results, with the rating changes waiting, in one
+     * transaction, or one at a time if the transaction fails, and wakes up
+     * the threads waiting in flush()
+     * @param batch The results
+     */
+    private synchronized void write(List<Result> batch) {
+        ArrayList<Rating> changes = new ArrayList<Rating>();
+        Rating c;
+        while ((c = ratings.poll()) != null)
+            changes.add(c);
+
+        if (commit(batch, changes)) {
+            numWritten.addAndGet(batch.size());
+            numBatches.incrementAndGet();
+        } else if (batch.size() + changes.size() > 1) {
+            ServerLog.info(ServerLog.Event.GAME, "GameResultWriter", "Batch failed, writing it one at a time", batch.size());
+            for (Result r : batch) {
+                if (commit(Collections.singletonList(r), Collections.<Rating>emptyList())) {
+                    numWritten.incrementAndGet();
+                    numBatches.incrementAndGet();
+                } else
+                    failed(r.username);
+            }
+            for (Rating r : changes) {
+                if (!commit(Collections.<Result>emptyList(), Collections.singletonList(r)))
+                    ServerLog.info(ServerLog.Event.GAME, "GameResultWriter", "Rating change lost, " + r.winner + " beat", r.loser);
+            }
+        } else if (batch.size() == 1)
+            failed(batch.get(0).username);
+        else if (changes.size() == 1)
+            ServerLog.info(ServerLog.Event.GAME, "GameResultWriter", "Rating change lost, " + changes.get(0).winner + " beat", changes.get(0).loser);
+        notifyAll();
+    }
+
+    /**
+     * Writes results and rating changes in one transaction, trying again
+     * while the database is busy
+     * @param games The results
+     * @param changes The rating changes
+     * @return True if the transaction was committed, false if it wasn't
+     */
+    private boolean commit(List<Result> games, List<Rating> changes) {
+        for (int retry = 0; ; retry++) {
+            try {
+                TetrisDatabase.addGames(games, changes);
+                return true;
+            } catch (SQLException e) {
+                if (!TetrisDatabase.isTransient(e) || retry >= MAX_RETRIES)
+                    return false;
+            } catch (RuntimeException e) {
+                return false;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS << retry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Counts and logs a result that couldn't be written
+     * @param username The username of the player of the result
+     */
+    private void failed(String username) {
+        numFailed.incrementAndGet();
+        ServerLog.info(ServerLog.Event.GAME, "GameResultWriter", "Write failed, result lost for", username);
+    }
+
+    /**
+     * Waits until every result added so far is written, or has failed to be
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        long target = numAdded.get();
+        synchronized (this) {
+            while (numWritten.get() + numFailed.get() < target && writer.isAlive())
+                wait(BATCH_MILLIS);
+        }
+    }
+
+    /**
+     * Stops the writer thread, writes the results left in the queue, and
+     * checkpoints the database. Called when the server exits.
+     */
+    public void close() {
+        //the thread sees it within its batch window, and writes the batch it was gathering
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        //an add() that saw the writer open before this either left its result in the queue, or writes it itself
+        ArrayList<Result> batch = new ArrayList<Result>(BATCH_SIZE);
+        while (queue.drainTo(batch, BATCH_SIZE) > 0 || !ratings.isEmpty()) {
+            write(batch);
+            batch.clear();
+        }
+        TetrisDatabase.checkpoint();
+    }
+
+    /**
+     * Gets the number of results waiting to be written
+     * @return The number of results in the queue
+     */
+    public int getNumQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the total number of results written
+     * @return The number of results written
+     */
+    public long getNumWritten() {
+        return numWritten.get();
+    }
+
+    /**
+     * Gets the total number of results that couldn't be written
+     * @return The number of results lost
+     */
+    public long getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * Gets the total number of results written by the threads adding them,
+     * because the queue was full or the server was exiting
+     * @return The number of results written outside the batches
+     */
+    public long getNumDirect() {
+        return numDirect.get();
+    }
+
+    /**
+     * Gets the total number of transactions committed
+     * @return The number of batches written
+     */
+    public long getNumBatches() {
+        return numBatches.get();
+    }
+
+    /**
+     * toString() function for the GameResultWriter
+     * @return The String representation of the counters
+     */
+    public String toString() {
+        return "queued=" + getNumQueued() + " written=" + getNumWritten() + " failed=" + getNumFailed()
+                + " batches=" + getNumBatches() + " direct=" + getNumDirect();
+    }
+}
@@ -0,0 +1,177 @@
+package src.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import src.main.TetrisEngine;
+
+/**
+ * <b>HeadlessGame</b> is the server's own simulation of a player's game. It
+ * runs a TetrisEngine from the match seed and the client's inputs (timer steps,
+ * keys, and the lines it applied), so the server holds the authoritative board
+ * and score of the player without the client uploading them.
+ */
+public class HeadlessGame implements TetrisEngine.Listener {
+
+    /**
+     * <b>Owner</b> is told about the events of the simulated game
+     */
+    public interface Owner {
+
+        /**
+         * Called after an input changed the simulated game
+         * @param game The simulated game
+         */
+        void simulationChanged(HeadlessGame game);
+
+        /**
+         * Called after a piece has landed
+         * @param game The simulated game
+         * @param numPieces The number of pieces spawned so far
+         * @param hash The hash of the board (see TetrisEngine.hash())
+         */
+        void simulationLocked(HeadlessGame game, int numPieces, int hash);
+
+        /**
+         * Called when the simulated game is over
+         * @param game The simulated game
+         */
+        void simulationOver(HeadlessGame game);
+    }
+
+    private Owner owner;             /** Told about the events of the game */
+    private TetrisEngine engine;     /** The rules and state of the game */
+    private Queue<String> pendingLines; /** The lines sent by the opponent that the client hasn't applied yet */
+    private boolean changed;         /** True if the current input moved a piece */
+    private boolean over;            /** True once the game is over */
+
+    /**
+     * Creates an instance of the HeadlessGame, and starts the game
+     * @param owner Told about the events of the game
+     * @param seed The seed of the match
+     */
+    public HeadlessGame(Owner owner, long seed) {
+        this.owner = owner;
+        engine = new TetrisEngine(this);
+        pendingLines = new ConcurrentLinkedQueue<String>();
+        changed = false;
+        over = false;
+        engine.start(seed);
+    }
+
+    /**
+     * Applies a step of the client's gravity timer
+     */
+    public void tick() {
+        if (!engine.isStarted())
+            return;
+        engine.tick();
+        inputDone();
+    }
+
+    /**
+     * Applies a key pressed by the client
+     * @param keyCode The keyCode of the key
+     */
+    public void move(int keyCode) {
+        engine.movePiece(keyCode);
+        inputDone();
+    }
+
+    /**
+     * Queues a line sent by the opponent, until the client has applied it. Can
+     * be called from any thread.
+     * @param line The String representation of the line
+     */
+    public void queueLine(String line) {
+        pendingLines.add(line);
+    }
+
+    /**
+     * Applies the oldest line sent by the opponent, once the client has applied it
+     */
+    public void applyLine() {
+        String line = pendingLines.poll();
+        if (line == null)
+            return;
+        engine.addLine(line);
+        changed = true;
+        inputDone();
+    }
+
+    /**
+     * Checks if the client has lines of the opponent left to apply
+     * @return True if a line sent by the opponent hasn't been applied yet
+     */
+    public boolean hasPendingLine() {
+        return !pendingLines.isEmpty();
+    }
+
+    /**
+     * Tells the owner about the changes of the last input, once per input
+     */
+    private void inputDone() {
+        if (changed) {
+            changed = false;
+            owner.simulationChanged(this);
+        }
+    }
+
+    /**
+     * Gets the score of the game
+     * @return The number of lines cleared
+     */
+    public int getScore() {
+        return engine.getScore();
+    }
+
+    /**
+     * Checks if the game is over
+     * @return True if the game is over, false otherwise
+     */
+    public boolean isOver() {
+        return over;
+    }
+
+    /**
+     * Exports the board as its cells
+     * @param cells The array to fill, one value from 0 to 8 per cell
+     */
+    public void toCells(byte[] cells) {
+        engine.toCells(cells);
+    }
+
+    /**
+     * Exports the state of the game, for a client to continue it
+     * @return The snapshot of the game (see TetrisEngine.toSnapshot())
+     */
+    public String toSnapshot() {
+        return engine.toSnapshot();
+    }
+
+    /**
+     * toString() function for the HeadlessGame
+     * @return The String representation of the board (see Board.toString())
+     */
+    public String toString() {
+        return engine.toString();
+    }
+
+    public void pieceMoved() {
+        changed = true;
+    }
+
+    public void scoreChanged(int numLinesRemoved) {
+    }
+
+    public void linesCleared(int numFullLines) {
+    }
+
+    public void pieceLocked() {
+        owner.simulationLocked(this, engine.getNumPieces(), engine.hash());
+    }
+
+    public void gameOver() {
+        over = true;
+        owner.simulationOver(this);
+    }
+}
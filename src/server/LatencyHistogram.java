@@ -0,0 +1,123 @@
+package src.server;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * <b>LatencyHistogram</b> counts latencies, in microseconds, in log-linear
+ * buckets: exact below 128 us, within 1/64 of the value above, up to about 20
+ * hours. Recording is lock-free and allocates nothing, so that any number of
+ * threads can share one histogram on a hot path.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 30;
+
+    private AtomicLongArray counts;  /** The number of latencies of each bucket */
+    private LongAdder count;         /** The number of latencies */
+    private LongAdder sum;           /** The sum of the latencies */
+    private AtomicLong max;          /** The longest latency */
+
+    /**
+     * Creates an instance of the LatencyHistogram
+     */
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(2 * SUB + MAX_SHIFT * SUB);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Counts a latency
+     * @param micros The latency in microseconds
+     */
+    public void record(long micros) {
+        micros = Math.max(0, micros);
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        sum.add(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros));
+    }
+
+    /**
+     * Counts the time since a start
+     * @param startNanos The start, from System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * Gets the bucket of a value
+     */
+    private static int bucket(long v) {
+        if (v < 2 * SUB)
+            return (int) v;
+        int shift = Math.min(MAX_SHIFT, 63 - Long.numberOfLeadingZeros(v) - SUB_BITS);
+        long top = Math.min(2 * SUB - 1, v >> shift);
+        return 2 * SUB + (shift - 1) * SUB + (int) (top - SUB);
+    }
+
+    /**
+     * Gets the middle of the values of a bucket
+     */
+    private static long valueOf(int bucket) {
+        if (bucket < 2 * SUB)
+            return bucket;
+        int shift = (bucket - 2 * SUB) / SUB + 1;
+        long top = (bucket - 2 * SUB) % SUB + SUB;
+        return (top << shift) + ((1L << shift) >> 1);
+    }
+
+    /**
+     * Gets the number of latencies counted
+     * @return The count
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the sum of the latencies counted
+     * @return The sum in microseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Gets the longest latency counted
+     * @return The latency in microseconds, 0 if none were counted
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets a percentile of the latencies
+     * @param q The fraction of the latencies at or under the percentile, such
+     * as 0.99
+     * @return The latency in microseconds, 0 if none were counted
+     */
+    public long percentile(double q) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target)
+                return Math.min(valueOf(i), getMax());
+        }
+        return getMax();
+    }
+}
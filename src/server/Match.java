@@ -0,0 +1,609 @@
+package src.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import src.main.TetrisProtocol;
+
+/**
+ * <b>Match</b> is a game between two players. It owns everything the two
+ * players share: the relay between them, the server's simulation of their
+ * games, and the end of the game. The handlers never call into each other;
+ * they post the commands of their client to the mailbox of the Match, and the
+ * Match processes the commands of both players one at a time, in order, on the
+ * single thread it is pinned to. Reading a command therefore never waits on the
+ * opponent, and only the Match thread writes to the players about the game.
+ * <p>
+ * Boards are not queued one by one: the latest board of each player is kept,
+ * and the Match sends the one that is current when it gets to it.
+ * <p>
+ * In a cluster, a Match between players of two nodes runs on the node of the
+ * player who waited first, and the other player is a ClusterNode.RemotePlayer.
+ * <p>
+ * Any user of the node can watch a running Match (see Spectator). Each event
+ * is encoded once for all the spectators, and only if there are any.
+ */
+class Match implements Game, HeadlessGame.Owner {
+
+    /** The number of threads running the matches */
+    public static int NUM_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** The maximum number of commands processed in a row, before letting the other matches of the thread run */
+    public static int MAX_BATCH = 64;
+
+    private static ExecutorService[] executors;   /** The threads running the matches, one executor per thread */
+    private static AtomicLong numMatches = new AtomicLong(); /** The number of matches created, also used to spread them on the threads */
+    private static AtomicInteger numActive = new AtomicInteger(); /** The number of matches started whose players haven't both ended their games */
+    private static ConcurrentHashMap<String, Match> live = new ConcurrentHashMap<String, Match>(); /** The running matches, by username of their players */
+
+    private long id;                          /** The number of the match */
+    private long seed;                        /** The seed both clients use to generate their pieces */
+    private Player[] players;                 /** The two players */
+    private String[] stats;                   /** The stats of the players when they were matched */
+    private HeadlessGame[] games;             /** The server's simulations of the games, null for a client that simulates its own */
+    private boolean[] playing;                /** True until the player has lost, won or disconnected */
+    private boolean over;                     /** True once one of the players has lost */
+    private int[] scores;                     /** The final score of each player, -1 until their game has ended */
+    private int winner;                       /** The index of the player who won, -1 until one has lost */
+    private ServerEvents.MatchEnd event;      /** The JFR event of the match, begun when it started, only used by the Match thread */
+    private ReplayRecorder recorder;          /** Records the inputs of the game, null if recording is off, only used by the Match thread */
+    private volatile String replay;           /** The name of the replay file, null if recording is off */
+
+    private byte[][] latestBoards;            /** The latest board of each player, guarded by itself */
+    private boolean[] boardPending;           /** True if the latest board of a player is waiting to be sent, guarded by its latestBoards */
+    private byte[][] sentBoards;              /** The boards being sent, only used by the Match thread */
+    private Runnable[] boardTasks;            /** The tasks sending the latest boards */
+
+    private ExecutorService executor;         /** The thread this match is pinned to */
+    private ConcurrentLinkedQueue<Runnable> mailbox; /** The commands waiting to be processed */
+    private AtomicBoolean scheduled;          /** True while the mailbox is queued on or being drained by the executor */
+    private Runnable drainTask;               /** Drains the mailbox */
+
+    private ArrayList<Spectator> spectators;  /** The users watching the match, only used by the Match thread */
+
+    /**
+     * Creates an instance of the Match. start() must be called once the
+     * players have been told which Match they are in.
+     * @param seed The seed both clients use to randomly generate their pieces
+     * @param p0 The first player
+     * @param stats0 The stats of the first player
+     * @param p1 The second player
+     * @param stats1 The stats of the second player
+     */
+    Match(long seed, Player p0, String stats0, Player p1, String stats1) {
+        id = numMatches.incrementAndGet();
+        this.seed = seed;
+        players = new Player[] { p0, p1 };
+        stats = new String[] { stats0, stats1 };
+        games = new HeadlessGame[2];
+        playing = new boolean[] { true, true };
+        over = false;
+        scores = new int[] { -1, -1 };
+        winner = -1;
+
+        latestBoards = new byte[2][TetrisProtocol.BOARD_SIZE];
+        boardPending = new boolean[2];
+        sentBoards = new byte[2][TetrisProtocol.BOARD_SIZE];
+        boardTasks = new Runnable[] { () -> sendBoard(0), () -> sendBoard(1) };
+
+        executor = executorFor(id);
+        mailbox = new ConcurrentLinkedQueue<Runnable>();
+        scheduled = new AtomicBoolean(false);
+        drainTask = this::drain;
+
+        spectators = new ArrayList<Spectator>();
+    }
+
+    /**
+     * Gets the executor of a match, creating the threads on the first match
+     */
+    private static synchronized ExecutorService executorFor(long id) {
+        if (executors == null) {
+            executors = new ExecutorService[NUM_THREADS];
+            for (int i = 0; i < NUM_THREADS; i++) {
+                String name = "Match-" + i;
+                executors[i] = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        return executors[(int) (id % executors.length)];
+    }
+
+    /**
+     * Gets the number of matches created since the server started
+     * @return The number of matches
+     */
+    public static long getNumMatches() {
+        return numMatches.get();
+    }
+
+    /**
+     * Gets the number of matches being played
+     * @return The number of matches started whose players haven't both ended
+     * their games
+     */
+    public static int getNumActive() {
+        return numActive.get();
+    }
+
+    /**
+     * Finds the running match of a user
+     * @param username The username of one of the players
+     * @return The Match, null if the user isn't playing
+     */
+    public static Match find(String username) {
+        return live.get(username);
+    }
+
+    /**
+     * Starts the game: tells both clients that they've been matched, and starts
+     * the simulations
+     */
+    void start() {
+        post(() -> {
+            numActive.incrementAndGet();
+            event = ServerEvents.matchStart(id, players[0].getName(), players[1].getName(), seed);
+            recorder = ReplayRecorder.start(id, seed, players);
+            if (recorder != null)
+                replay = recorder.getFile().getFileName().toString();
+            for (int i = 0; i < 2; i++)
+                live.put(players[i].getName(), this);
+            for (int i = 0; i < 2; i++) {
+                if (players[i].getVersion() >= TetrisProtocol.SIMULATION_VERSION)
+                    games[i] = new HeadlessGame(this, seed);
+                players[i].matched(players[1 - i].getName(), stats[1 - i], seed);
+            }
+        });
+    }
+
+    /**
+     * The player has moved their piece, called when the client sends "MOVE"
+     * @param p The player
+     * @param keyPressed The keyCode of the key the client pressed
+     */
+    public void move(Player p, int keyPressed) {
+        post(() -> {
+            int i = indexOf(p);
+            if (!playing[i])
+                return;
+            record(ReplayRecorder.MOVE, i, keyPressed);
+            if (games[i] != null)
+                games[i].move(keyPressed);
+            if (!over) {
+                players[1 - i].opponentMove(keyPressed);
+                if (!spectators.isEmpty())
+                    broadcast("WATCH MOVE " + i + " " + keyPressed);
+            }
+        });
+    }
+
+    /**
+     * The player has sent their board. The cells are copied right away, so the
+     * caller can reuse its array.
+     * @param p The player
+     * @param cells The cells of the client's board
+     */
+    public void board(Player p, byte[] cells) {
+        int i = indexOf(p);
+        boolean post;
+        synchronized (latestBoards[i]) {
+            System.arraycopy(cells, 0, latestBoards[i], 0, TetrisProtocol.BOARD_SIZE);
+            post = !boardPending[i];
+            boardPending[i] = true;
+        }
+        if (post)
+            post(boardTasks[i]);
+    }
+
+    /**
+     * Sends the latest board of the player to the opponent
+     * @param i The index of the player
+     */
+    private void sendBoard(int i) {
+        synchronized (latestBoards[i]) {
+            System.arraycopy(latestBoards[i], 0, sentBoards[i], 0, TetrisProtocol.BOARD_SIZE);
+            boardPending[i] = false;
+        }
+        if (playing[i] && games[i] == null && !over) {
+            players[1 - i].opponentBoard(sentBoards[i]);
+            if (!spectators.isEmpty())
+                broadcast(boardLine(i));
+        }
+    }
+
+    /**
+     * The player has cleared lines, and sends a random line to the opponent.
+     * Called when the client sends "SEND"
+     * @param p The player
+     */
+    public void send(Player p) {
+        post(() -> {
+            int i = indexOf(p);
+            if (!playing[i])
+                return;
+            String line = randomLine();
+            record(ReplayRecorder.SEND, i, TetrisProtocol.lineToMask(line));
+            players[i].sent(line);
+            if (!over && playing[1 - i]) {
+                //the simulation adds the line once the client tells it has added it
+                if (games[1 - i] != null)
+                    games[1 - i].queueLine(line);
+                players[1 - i].opponentSend(line);
+                if (!spectators.isEmpty())
+                    broadcast("WATCH SEND " + i + " " + line);
+            }
+        });
+    }
+
+    /**
+     * The timer of the player's game has stepped, called when the client sends
+     * TICK
+     * @param p The player
+     */
+    public void tick(Player p) {
+        post(() -> {
+            int i = indexOf(p);
+            HeadlessGame g = games[i];
+            if (g != null) {
+                record(ReplayRecorder.TICK, i, -1);
+                g.tick();
+            }
+        });
+    }
+
+    /**
+     * The player has added the oldest line sent by the opponent, called when the
+     * client sends APPLY
+     * @param p The player
+     */
+    public void apply(Player p) {
+        post(() -> {
+            int i = indexOf(p);
+            HeadlessGame g = games[i];
+            if (g != null) {
+                record(ReplayRecorder.APPLY, i, -1);
+                g.applyLine();
+            }
+        });
+    }
+
+    /**
+     * Sends the player the simulated board and score, called when the client
+     * sends RESYNC
+     * @param p The player
+     */
+    public void resync(Player p) {
+        post(() -> {
+            HeadlessGame g = games[indexOf(p)];
+            if (g != null)
+                p.sync(g.toString(), g.getScore());
+        });
+    }
+
+    /**
+     * Hands the game of a player whose connection closed over to their new
+     * connection, called when the client sends "RESUME". The lines the
+     * opponent sent in the meantime never reached the client, so they are
+     * applied first; the client is then sent the state of its game, the
+     * opponent's board, and the end of the opponent's game if it has ended.
+     * @param old The player on the closed connection
+     * @param p The player on the new connection
+     */
+    void resume(Player old, Player p) {
+        post(() -> {
+            int i = (players[0] == old) ? 0 : 1;
+            HeadlessGame g = games[i];
+            if (players[i] != old || !playing[i] || g == null) {
+                p.resumed(null, null, null, seed, null);
+                return;
+            }
+            players[i] = p;
+            while (g.hasPendingLine()) {
+                record(ReplayRecorder.APPLY, i, -1);
+                g.applyLine();
+            }
+            p.resumed(this, players[1 - i].getName(), stats[1 - i], seed, g.toSnapshot());
+            p.opponentBoard(sentBoards[1 - i]);
+            if (over)
+                p.opponentLose();
+            ServerLog.info(ServerLog.Event.GAME, "Match-" + id, "resumed by", p.getName());
+        });
+    }
+
+    /**
+     * The player has lost, called when the client sends "LOSE" or disconnects
+     * @param p The player
+     * @param score The user's score for this game, -1 if the client didn't send it
+     */
+    public void lose(Player p, int score) {
+        post(() -> lost(indexOf(p), score));
+    }
+
+    /**
+     * The player has won, called when the client sends "WIN"
+     * @param p The player
+     * @param score The user's score for this game, -1 if the client didn't send it
+     */
+    public void win(Player p, int score) {
+        post(() -> {
+            int i = indexOf(p);
+            if (!playing[i])
+                return;
+            playing[i] = false;
+            int finalScore = finalScore(i, score);
+            scores[i] = finalScore;
+            record(ReplayRecorder.WIN, i, finalScore + 1);
+            if (!playing[1 - i]) {
+                finish();
+                bothEnded();
+            }
+            players[i].ended(this, true, finalScore);
+        });
+    }
+
+    /**
+     * Ends the game of a player who has lost, and tells the opponent
+     * @param i The index of the player
+     * @param score The user's score for this game, -1 if unknown
+     */
+    private void lost(int i, int score) {
+        if (!playing[i])
+            return;
+        playing[i] = false;
+        score = finalScore(i, score);
+        scores[i] = score;
+        record(ReplayRecorder.LOSE, i, score + 1);
+        //tells the opponent that the user has lost before disconnecting
+        if (!over && playing[1 - i])
+            players[1 - i].opponentLose();
+        if (!over) {
+            winner = 1 - i;
+            TetrisDatabase.updateRatings(players[1 - i].getName(), players[i].getName());
+            broadcast("WATCH LOSE " + i);
+            finish();
+        }
+        over = true;
+        if (!playing[1 - i])
+            bothEnded();
+        players[i].ended(this, false, score);
+    }
+
+    /**
+     * Closes the replay, stops counting the match as active and records its
+     * JFR event, called once both players' games have ended
+     */
+    private void bothEnded() {
+        numActive.decrementAndGet();
+        if (recorder != null)
+            recorder.close();
+        ServerEvents.matchEnd(event, scores, (winner < 0) ? null : players[winner].getName(), replay);
+    }
+
+    /**
+     * Gets the score of a player at the end of their game: the simulated score
+     * if the server simulates the game, the score sent by the client otherwise
+     */
+    private int finalScore(int i, int score) {
+        if (games[i] != null) {
+            score = games[i].getScore();
+            games[i] = null;
+        }
+        return score;
+    }
+
+    /**
+     * Gets the replay file the match is recorded to
+     * @return The name of the file, null if recording is off
+     */
+    public String getReplay() {
+        return replay;
+    }
+
+    /**
+     * Sends the opponent the simulated board, once per input of the client
+     * @param g The simulated game
+     */
+    public void simulationChanged(HeadlessGame g) {
+        int i = indexOf(g);
+        if (i >= 0 && !over) {
+            g.toCells(sentBoards[i]);
+            players[1 - i].opponentBoard(sentBoards[i]);
+            if (!spectators.isEmpty())
+                broadcast(boardLine(i));
+        }
+    }
+
+    /**
+     * Sends the client the hash of the simulated board after a piece has
+     * landed, so that the client can check that its own board matches it
+     * @param g The simulated game
+     * @param numPieces The number of pieces spawned so far
+     * @param hash The hash of the simulated board
+     */
+    public void simulationLocked(HeadlessGame g, int numPieces, int hash) {
+        int i = indexOf(g);
+        if (i >= 0)
+            players[i].hash(numPieces, hash);
+    }
+
+    /**
+     * The simulated game is over, so the client has lost, whether or not it
+     * agrees
+     * @param g The simulated game
+     */
+    public void simulationOver(HeadlessGame g) {
+        int i = indexOf(g);
+        if (i >= 0) {
+            ServerLog.info(ServerLog.Event.GAME, "Match-" + id, "simulated game over, score", g.getScore());
+            lost(i, -1);
+        }
+    }
+
+    /**
+     * Adds a spectator to the match, who is sent the players and their current
+     * boards, then every event of the game
+     * @param s The spectator
+     */
+    void watch(Spectator s) {
+        s.setMatch(this);
+        post(() -> {
+            if (over || s.getMatch() != this) {
+                s.left(this);
+                s.offer(new TetrisProtocol.Encoded("FAILURE NOTFOUND"));
+                return;
+            }
+            spectators.add(s);
+            s.offer(new TetrisProtocol.Encoded("WATCH " + players[0].getName() + " " + players[1].getName()));
+            sendBoards(s);
+        });
+    }
+
+    /**
+     * Removes a spectator from the match
+     * @param s The spectator
+     */
+    void unwatch(Spectator s) {
+        s.left(this);
+        post(() -> spectators.remove(s));
+    }
+
+    /**
+     * Sends an event to all the spectators, encoded once. A spectator who has
+     * fallen behind drops the events it hasn't been sent yet, and is sent the
+     * current boards instead.
+     * @param line The event
+     */
+    private void broadcast(String line) {
+        if (spectators.isEmpty())
+            return;
+        TetrisProtocol.Encoded encoded = new TetrisProtocol.Encoded(line);
+        for (Spectator s : spectators) {
+            if (!s.offer(encoded)) {
+                s.reset();
+                sendBoards(s);
+            }
+        }
+    }
+
+    /**
+     * Sends the current boards of both players to a spectator
+     */
+    private void sendBoards(Spectator s) {
+        for (int i = 0; i < 2; i++)
+            s.offer(new TetrisProtocol.Encoded(boardLine(i)));
+    }
+
+    /**
+     * Gets the event of a player's board, from the board last sent to the opponent
+     */
+    private String boardLine(int i) {
+        return "WATCH BOARD " + i + " " + TetrisProtocol.cellsToString(sentBoards[i]);
+    }
+
+    /**
+     * Records an input of a player, if the match is recorded
+     * @param type The type of the input (see ReplayRecorder)
+     * @param i The index of the player
+     * @param value The value of the input, -1 for the inputs without one
+     */
+    private void record(int type, int i, int value) {
+        if (recorder == null)
+            return;
+        if (value < 0)
+            recorder.record(type, i);
+        else
+            recorder.record(type, i, value);
+    }
+
+    /**
+     * Takes the match out of the running matches, and lets its spectators go
+     */
+    private void finish() {
+        for (int i = 0; i < 2; i++)
+            live.remove(players[i].getName(), this);
+        for (Spectator s : spectators)
+            s.left(this);
+        spectators.clear();
+    }
+
+    /**
+     * Gets the index of a player
+     */
+    private int indexOf(Player p) {
+        return (players[0] == p) ? 0 : 1;
+    }
+
+    /**
+     * Gets the index of the player whose game is simulated, -1 if the game is
+     * no longer running
+     */
+    private int indexOf(HeadlessGame g) {
+        if (games[0] == g)
+            return 0;
+        return (games[1] == g) ? 1 : -1;
+    }
+
+    /**
+     * Generates a garbage line with 1 to 3 holes
+     * @return The String representation of the line
+     */
+    private static String randomLine() {
+        String line = "XXXXXXXXXX";
+
+        //30% chance of getting 1 hole
+        //40% chance of getting 2 holes
+        //30% chance of getting 3 holes
+        Random r = ThreadLocalRandom.current();
+        double p = r.nextDouble();
+        int numHoles = 0;
+        if(p < 0.3) numHoles = 1;
+        else if(p < 0.7) numHoles = 2;
+        else numHoles = 3;
+
+        //while there are still holes to add, add holes
+        while(numHoles != 0){
+            int i = r.nextInt(10);
+            if(line.charAt(i)== 'X'){
+                line = line.substring(0,i)+'.'+line.substring(i+1);
+                numHoles--;
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Adds a command to the mailbox, and schedules the mailbox on the executor
+     * unless it is already
+     * @param command The command
+     */
+    private void post(Runnable command) {
+        mailbox.add(command);
+        if (scheduled.compareAndSet(false, true))
+            executor.execute(drainTask);
+    }
+
+    /**
+     * Processes the commands in the mailbox, on the executor. After MAX_BATCH
+     * commands the mailbox is rescheduled behind the other matches of the thread.
+     */
+    private void drain() {
+        for (int n = 0; n < MAX_BATCH; n++) {
+            Runnable command = mailbox.poll();
+            if (command == null)
+                break;
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                ServerLog.info(ServerLog.Event.GAME, "Match-" + id, "command failed,", e);
+            }
+        }
+
+        scheduled.set(false);
+        //a command posted after the last poll finds scheduled still set, so it is picked up here
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true))
+            executor.execute(drainTask);
+    }
+}
@@ -0,0 +1,392 @@
+package src.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
+
+/**
+ * <b>Matchmaker</b> pairs the players who want to play, by rating. The waiting
+ * players are kept in a concurrent skip list ordered by rating (and by arrival
+ * for equal ratings), which works as a set of rating buckets of width 1: an
+ * arriving player looks up the closest waiting rating above and below their own
+ * in O(log n), and is matched with the closer one if it is close enough.
+ * Otherwise they wait in the index.
+ * <p>
+ * How close is close enough widens with the time waited: a player accepts
+ * opponents within BASE_WINDOW rating points at first, WIDEN_PER_SECOND more
+ * points for every second waited, and any opponent once MAX_WAIT_MILLIS have
+ * passed. A sweep every SWEEP_MILLIS pairs the neighbours of the index whose
+ * windows have grown enough, so a waiting player is matched within about
+ * MAX_WAIT_MILLIS + SWEEP_MILLIS as long as anyone else is waiting, however
+ * many players wait.
+ * <p>
+ * Nothing is locked: each ticket has a state, changed only by compareAndSet.
+ * An arriving player takes a WAITING ticket straight to MATCHED. The sweep
+ * first marks both tickets of a pair CLAIMED, then MATCHED one after the
+ * other; a player who leaves meanwhile marks their ticket CANCELLED, and the
+ * sweep then puts the other one back to WAITING instead of matching it. A
+ * ticket stays in the index until its state is final, so a player who has
+ * left is never put back in it.
+ * @param <P> The type of the players
+ */
+public class Matchmaker<P> {
+
+    /** The rating difference a player accepts right away */
+    public static int BASE_WINDOW = 50;
+
+    /** The rating difference added to the window for every second waited */
+    public static int WIDEN_PER_SECOND = 50;
+
+    /** The wait after which a player accepts any opponent, the latency target of the matchmaking */
+    public static long MAX_WAIT_MILLIS = 10000;
+
+    /** The time between two sweeps of the index */
+    public static long SWEEP_MILLIS = 100;
+
+    /** The state of a ticket in the index, that any thread can match or cancel */
+    private static final int WAITING = 0;
+
+    /** The state of a ticket the sweep is pairing, its player can still cancel it */
+    private static final int CLAIMED = 1;
+
+    /** The state of a ticket whose player has been matched */
+    private static final int MATCHED = 2;
+
+    /** The state of a ticket whose player left before being matched */
+    private static final int CANCELLED = 3;
+
+    /**
+     * <b>Ticket</b> is a player waiting in the index
+     */
+    private static class Ticket<P> {
+        final P player;     /** The waiting player */
+        final int rating;   /** The rating of the player */
+        final long key;     /** The key of the ticket in the index: the rating, then the arrival */
+        final long since;   /** When the player started waiting, from System.nanoTime() */
+        final AtomicInteger state; /** WAITING, CLAIMED, MATCHED or CANCELLED */
+
+        Ticket(P player, int rating, long arrival) {
+            this.player = player;
+            this.rating = rating;
+            key = ((long) rating << 32) | (arrival & 0xFFFFFFFFL);
+            since = System.nanoTime();
+            state = new AtomicInteger(WAITING);
+        }
+
+        /**
+         * Gets the rating difference the player accepts
+         * @param now The current time, from System.nanoTime()
+         * @return The window, Integer.MAX_VALUE once any opponent is accepted
+         */
+        int window(long now) {
+            long waited = (now - since) / 1000000;
+            if (waited >= MAX_WAIT_MILLIS)
+                return Integer.MAX_VALUE;
+            return (int) Math.min(Integer.MAX_VALUE, BASE_WINDOW + waited * WIDEN_PER_SECOND / 1000);
+        }
+    }
+
+    private BiConsumer<P, P> onMatch;                       /** Starts the game of a pair */
+    private ConcurrentSkipListMap<Long, Ticket<P>> index;   /** The waiting players, ordered by rating */
+    private ConcurrentHashMap<P, Ticket<P>> tickets;        /** The ticket of each waiting player */
+    private AtomicLong arrivals;                            /** The number of players who asked to play, orders equal ratings */
+    private ScheduledExecutorService sweeper;               /** Runs the sweeps */
+
+    private AtomicInteger numWaiting;  /** The number of players in the index */
+    private AtomicLong numMatches;     /** The total number of pairs matched */
+    private AtomicLong numCancelled;   /** The total number of waiting players who left before being matched */
+    private AtomicLong waitNanos;      /** The total time the matched players waited */
+    private AtomicLong maxWaitNanos;   /** The longest time a matched player waited */
+    private LatencyHistogram waits;    /** The times the matched players waited */
+
+    /**
+     * Creates an instance of the Matchmaker, and starts sweeping
+     * @param onMatch Starts the game of a pair, called by the thread that made
+     * the pair with the waiting player first
+     */
+    public Matchmaker(BiConsumer<P, P> onMatch) {
+        this.onMatch = onMatch;
+        index = new ConcurrentSkipListMap<Long, Ticket<P>>();
+        tickets = new ConcurrentHashMap<P, Ticket<P>>();
+        arrivals = new AtomicLong();
+        numWaiting = new AtomicInteger();
+        numMatches = new AtomicLong();
+        numCancelled = new AtomicLong();
+        waitNanos = new AtomicLong();
+        maxWaitNanos = new AtomicLong();
+        waits = new LatencyHistogram();
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Matchmaker");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Matches the player with the closest waiting player within the window, or
+     * makes them wait. Never blocks.
+     * @param player The player who wants to play
+     * @param rating The rating of the player, must not be negative
+     * @return True if the player was matched right away, false if they wait
+     */
+    public boolean play(P player, int rating) {
+        if (tickets.containsKey(player))
+            return false;
+
+        Ticket<P> mine = new Ticket<P>(player, rating, arrivals.incrementAndGet());
+        while (true) {
+            long now = System.nanoTime();
+            Ticket<P> best = closest(rating, now);
+            if (best == null) {
+                tickets.put(player, mine);
+                index.put(mine.key, mine);
+                numWaiting.incrementAndGet();
+                return false;
+            }
+            if (best.state.compareAndSet(WAITING, MATCHED)) {
+                remove(best);
+                waited(best, now);
+                waits.record(0);
+                matched(best.player, player);
+                return true;
+            }
+            //another thread is pairing or has taken the player, tries again once the ticket is settled
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Finds the waiting player with the closest rating, if it is within the
+     * window of either player
+     * @param rating The rating of the arriving player
+     * @param now The current time, from System.nanoTime()
+     * @return The ticket of the waiting player, null if nobody is close enough
+     */
+    private Ticket<P> closest(int rating, long now) {
+        long key = (long) rating << 32;
+        Map.Entry<Long, Ticket<P>> above = index.ceilingEntry(key);
+        Map.Entry<Long, Ticket<P>> below = index.lowerEntry(key);
+
+        Ticket<P> best = null;
+        long bestDistance = Long.MAX_VALUE;
+        if (above != null) {
+            best = above.getValue();
+            bestDistance = best.rating - rating;
+        }
+        if (below != null && rating - below.getValue().rating < bestDistance) {
+            best = below.getValue();
+            bestDistance = rating - best.rating;
+        }
+        if (best == null || bestDistance > Math.max(BASE_WINDOW, best.window(now)))
+            return null;
+        return best;
+    }
+
+    /**
+     * Takes a ticket whose state is final out of the index
+     * @param t The ticket of the player
+     */
+    private void remove(Ticket<P> t) {
+        if (index.remove(t.key, t)) {
+            tickets.remove(t.player, t);
+            numWaiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Counts the wait of a matched player
+     * @param t The ticket of the player
+     * @param now The current time, from System.nanoTime()
+     */
+    private void waited(Ticket<P> t, long now) {
+        long waited = now - t.since;
+        waitNanos.addAndGet(waited);
+        long max;
+        while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited));
+        waits.record(waited / 1000);
+    }
+
+    /**
+     * Counts and starts the game of a pair
+     */
+    private void matched(P first, P second) {
+        numMatches.incrementAndGet();
+        try {
+            onMatch.accept(first, second);
+        } catch (RuntimeException e) {
+            ServerLog.info(ServerLog.Event.GAME, "Matchmaker", "match failed,", e);
+        }
+    }
+
+    /**
+     * Pairs the neighbours of the index whose windows have grown enough to
+     * accept each other. Run every SWEEP_MILLIS.
+     */
+    private void sweep() {
+        long now = System.nanoTime();
+        Ticket<P> prev = null;
+        for (Ticket<P> t : index.values()) {
+            if (t.state.get() != WAITING)
+                continue;
+            if (prev != null && t.rating - prev.rating <= Math.max(prev.window(now), t.window(now))
+                    && pair(prev, t, now)) {
+                prev = null;
+                continue;
+            }
+            prev = t;
+        }
+    }
+
+    /**
+     * Matches two waiting players, unless another thread takes one of them
+     * first or one of them leaves while they are being paired
+     * @param first The ticket of the first player
+     * @param second The ticket of the second player
+     * @param now The current time, from System.nanoTime()
+     * @return True if the players were matched
+     */
+    private boolean pair(Ticket<P> first, Ticket<P> second, long now) {
+        if (!first.state.compareAndSet(WAITING, CLAIMED))
+            return false;
+        if (!second.state.compareAndSet(WAITING, CLAIMED)) {
+            //second was taken by an arriving player, so first waits again
+            requeue(first, CLAIMED);
+            return false;
+        }
+        if (!first.state.compareAndSet(CLAIMED, MATCHED)) {
+            //first has left
+            remove(first);
+            requeue(second, CLAIMED);
+            return false;
+        }
+        if (!second.state.compareAndSet(CLAIMED, MATCHED)) {
+            //second has left, and first may have since
+            remove(second);
+            requeue(first, MATCHED);
+            return false;
+        }
+        remove(first);
+        remove(second);
+        waited(first, now);
+        waited(second, now);
+        matched(first.player, second.player);
+        return true;
+    }
+
+    /**
+     * Gives a ticket the sweep couldn't pair back to the waiting players. The
+     * ticket never left the index, so the player keeps their place, unless
+     * they have left in the meantime, in which case the ticket is dropped.
+     * @param t The ticket of the player
+     * @param from The state the sweep left the ticket in
+     */
+    private void requeue(Ticket<P> t, int from) {
+        if (!t.state.compareAndSet(from, WAITING)) {
+            remove(t);
+            //a player who left a CLAIMED ticket was counted by cancel(), one who left a MATCHED one was told they were matched
+            if (from == MATCHED)
+                numCancelled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes the player out of the index, called when a waiting player
+     * disconnects
+     * @param player The player
+     * @return True if the player was waiting, false if they had been matched
+     * already or were not waiting
+     */
+    public boolean cancel(P player) {
+        Ticket<P> t = tickets.get(player);
+        if (t == null)
+            return false;
+        while (true) {
+            int state = t.state.get();
+            if (state == WAITING || state == CLAIMED) {
+                if (t.state.compareAndSet(state, CANCELLED)) {
+                    //the sweep takes a CLAIMED ticket out of the index once it sees it cancelled
+                    if (state == WAITING)
+                        remove(t);
+                    numCancelled.incrementAndGet();
+                    return true;
+                }
+            } else {
+                //matched already; if the sweep is still pairing the ticket, this tells it the player has left
+                if (state == MATCHED)
+                    t.state.compareAndSet(MATCHED, CANCELLED);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stops sweeping
+     */
+    public void shutdown() {
+        sweeper.shutdown();
+    }
+
+    /**
+     * Gets the number of players waiting to be matched
+     * @return The queue depth
+     */
+    public int getNumWaiting() {
+        return numWaiting.get();
+    }
+
+    /**
+     * Gets the total number of pairs matched
+     * @return The number of matches
+     */
+    public long getNumMatches() {
+        return numMatches.get();
+    }
+
+    /**
+     * Gets the total number of waiting players who left before being matched
+     * @return The number of cancelled waits
+     */
+    public long getNumCancelled() {
+        return numCancelled.get();
+    }
+
+    /**
+     * Gets the average time the matched players waited for an opponent, the
+     * arriving players of each pair counting as 0
+     * @return The average wait in milliseconds, 0 before the first match
+     */
+    public double getAverageWaitMillis() {
+        long matches = numMatches.get();
+        return (matches == 0) ? 0 : waitNanos.get() / 1e6 / (2 * matches);
+    }
+
+    /**
+     * Gets the longest time a matched player waited for an opponent
+     * @return The longest wait in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * Gets the times the matched players waited for an opponent, the arriving
+     * players of each pair counting as 0
+     * @return The histogram of the waits, in microseconds
+     */
+    public LatencyHistogram getWaits() {
+        return waits;
+    }
+
+    /**
+     * toString() function for the Matchmaker
+     * @return The String representation of the counters
+     */
+    public String toString() {
+        return "waiting=" + getNumWaiting() + " matches=" + getNumMatches() + " cancelled=" + getNumCancelled() +
+                " averageWait=" + String.format("%.1f", getAverageWaitMillis()) + "ms" +
+                " maxWait=" + String.format("%.1f", getMaxWaitMillis()) + "ms";
+    }
+}
@@ -0,0 +1,208 @@
+package src.server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * NioConnection is a single client connection served by a NioEventLoop. It
+ * passes the incoming bytes to its TetrisServerHandler, and queues the outgoing
+ * bytes until the channel can take them.
+ */
+class NioConnection {
+
+    private NioEventLoop loop;          /** The event loop serving this connection */
+    private SocketChannel channel;      /** The channel connected with this client */
+    private SelectionKey key;           /** The selection key of the channel */
+    private String name;                /** The name of the connection, for readability in debug prints */
+    private TetrisServerHandler handler; /** The command logic for this client */
+
+    private Queue<ByteBuffer> pending;  /** The outgoing bytes not yet written to the channel */
+    private AtomicLong pendingBytes;    /** The number of bytes in pending */
+    private AtomicBoolean flushScheduled; /** True if a flush has been handed to the event loop */
+    private volatile boolean closed;    /** True once the connection has closed */
+
+    /**
+     * Creates an instance of the NioConnection
+     * @param loop The event loop serving this connection
+     * @param channel The channel connected with this client
+     * @param key The selection key of the channel
+     * @param name The name of the connection
+     */
+    public NioConnection(NioEventLoop loop, SocketChannel channel, SelectionKey key, String name) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.name = name;
+        pending = new ConcurrentLinkedQueue<ByteBuffer>();
+        pendingBytes = new AtomicLong();
+        flushScheduled = new AtomicBoolean(false);
+        closed = false;
+    }
+
+    /**
+     * Binds the command logic to this connection
+     * @param h The TetrisServerHandler for this client
+     */
+    public void open(TetrisServerHandler h) {
+        handler = h;
+        ServerLog.debug(ServerLog.Event.SERVER, "SERVER", "Registered connection", name);
+    }
+
+    /**
+     * <b>Output</b> is an OutputStream that queues its bytes on a connection
+     */
+    abstract class Output extends OutputStream {
+
+        /**
+         * Gets the number of bytes queued on the connection, which the client
+         * hasn't taken yet
+         * @return The number of bytes
+         */
+        long getBacklog() {
+            return pendingBytes.get();
+        }
+
+        /**
+         * Closes the connection, from any thread: the event loop closes it,
+         * and lets the handler clean up
+         */
+        public void close() {
+            loop.execute(NioConnection.this::close);
+        }
+    }
+
+    /**
+     * Gets an OutputStream that queues its bytes on this connection. It can be
+     * written from any thread; the bytes are handed to the event loop on flush.
+     * @return The OutputStream for this connection
+     */
+    public OutputStream getOutputStream() {
+        return new Output() {
+            private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+            public void write(int b) {
+                buffer.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) {
+                buffer.write(b, off, len);
+            }
+
+            public void flush() {
+                if (buffer.size() == 0)
+                    return;
+                enqueue(ByteBuffer.wrap(buffer.toByteArray()));
+                buffer.reset();
+            }
+        };
+    }
+
+    /**
+     * Queues the bytes to be written to the client, and makes sure the event
+     * loop will flush them
+     * @param bytes The bytes to write
+     */
+    public void enqueue(ByteBuffer bytes) {
+        if (closed)
+            return;
+        pendingBytes.addAndGet(bytes.remaining());
+        pending.add(bytes);
+        if (flushScheduled.compareAndSet(false, true))
+            loop.execute(this::flushPending);
+    }
+
+    /**
+     * Writes as much of the pending output as the channel takes. If the channel
+     * is full, waits for OP_WRITE instead of blocking. Only called on the loop thread.
+     */
+    void flushPending() {
+        if (closed)
+            return;
+        try {
+            ByteBuffer head;
+            while ((head = pending.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    //the socket buffer is full, continue once it is writable
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pendingBytes.addAndGet(-head.limit());
+                pending.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            flushScheduled.set(false);
+
+            //bytes queued after the loop above, but before the flag was cleared
+            if (!pending.isEmpty() && flushScheduled.compareAndSet(false, true))
+                loop.execute(this::flushPending);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Reads the available bytes, and passes them to the handler to decode.
+     * Only called on the loop thread.
+     */
+    void read() {
+        ByteBuffer buf = loop.getReadBuffer();
+        buf.clear();
+        int n;
+        try {
+            n = channel.read(buf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close();
+            return;
+        }
+
+        try {
+            handler.feed(buf.array(), 0, n);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Passes bytes that were read before the connection was registered to the
+     * handler. Only called on the loop thread.
+     * @param bytes The bytes
+     */
+    void feed(byte[] bytes) {
+        try {
+            handler.feed(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection, and lets the handler clean up. Only called on the
+     * loop thread.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        pending.clear();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        try {
+            if (handler != null)
+                handler.disconnect();
+        } finally {
+            //frees the slot even if the handler fails to clean up
+            loop.connectionClosed();
+        }
+    }
+}
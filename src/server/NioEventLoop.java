@@ -0,0 +1,126 @@
+package src.server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * NioEventLoop is a single selector thread of the TetrisNioServer. All the
+ * reads, writes and command handling for its connections happen on this thread;
+ * other threads hand work to it through the task queue.
+ */
+class NioEventLoop implements Runnable, Executor {
+
+    private TetrisNioServer server;     /** The server this event loop belongs to */
+    private Selector selector;          /** The selector for this loop's connections */
+    private Queue<Runnable> tasks;      /** Work handed to this loop by other threads */
+    private ByteBuffer readBuffer;      /** The read buffer, shared by all of this loop's connections */
+
+    /**
+     * Creates an instance of the NioEventLoop
+     * @param server The server this event loop belongs to
+     * @throws IOException If the selector could not be opened
+     */
+    public NioEventLoop(TetrisNioServer server) throws IOException {
+        this.server = server;
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        readBuffer = ByteBuffer.allocate(8192);
+    }
+
+    /**
+     * Runs the task on this event loop's thread
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a newly accepted connection to this event loop
+     * @param channel The accepted channel
+     * @param name The name of the connection, for readability in debug prints
+     * @param unread What the client sent before the connection was handed over
+     */
+    public void register(SocketChannel channel, String name, byte[] unread) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection conn = new NioConnection(this, channel, key, name);
+                key.attach(conn);
+                conn.open(server.newHandler(name, conn.getOutputStream(), this));
+                if (unread.length > 0)
+                    conn.feed(unread);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                }
+                server.connectionClosed();
+            }
+        });
+    }
+
+    /**
+     * Called by a connection of this loop once it has closed
+     */
+    void connectionClosed() {
+        server.connectionClosed();
+    }
+
+    /**
+     * Gets the shared read buffer, only to be used on this loop's thread
+     * @return The shared read buffer
+     */
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * The run function for the NioEventLoop, which selects the ready connections
+     * and services them until the server stops. An exception thrown while
+     * servicing a connection closes only that connection.
+     */
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                ServerLog.info(ServerLog.Event.SERVER, "NioEventLoop", "select failed,", e);
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.info(ServerLog.Event.SERVER, "NioEventLoop", "task failed,", e);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioConnection conn = (NioConnection) key.attachment();
+                if (conn == null)
+                    continue;
+                try {
+                    if (key.isValid() && key.isReadable())
+                        conn.read();
+                    if (key.isValid() && key.isWritable())
+                        conn.flushPending();
+                } catch (RuntimeException e) {
+                    ServerLog.info(ServerLog.Event.SERVER, "NioEventLoop", "connection failed, closing it,", e);
+                    conn.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package src.server;
+
+/**
+ * <b>Player</b> is one side of a Match, as seen by the Match: what it tells
+ * the player about the game. A player is either a client connected to this
+ * node (TetrisServerHandler), or a client connected to another node of the
+ * cluster, whose messages are relayed there (ClusterNode.RemotePlayer).
+ */
+interface Player {
+
+    /**
+     * Gets the username of the player
+     * @return The username
+     */
+    String getName();
+
+    /**
+     * Gets the protocol version agreed on with the player's client
+     * @return The protocol version
+     */
+    int getVersion();
+
+    /**
+     * The player has been matched, and the game starts
+     * @param opponentName The username of the opponent
+     * @param opponentStats The String representation of the opponent's stats
+     * @param seed The seed both clients will use to randomly generate their pieces
+     */
+    void matched(String opponentName, String opponentStats, long seed);
+
+    /**
+     * The opponent has moved their piece
+     * @param keyPressed The keyCode of the key the opponent pressed
+     */
+    void opponentMove(int keyPressed);
+
+    /**
+     * The opponent's board has changed. The cells may be reused once the call
+     * returns.
+     * @param cells The cells of the opponent's board
+     */
+    void opponentBoard(byte[] cells);
+
+    /**
+     * The player has sent a line to the opponent
+     * @param line The String representation of the line
+     */
+    void sent(String line);
+
+    /**
+     * The opponent has sent a line to the player
+     * @param lineSent The String representation of the line
+     */
+    void opponentSend(String lineSent);
+
+    /**
+     * The opponent has lost
+     */
+    void opponentLose();
+
+    /**
+     * The player's game is over
+     * @param g The game
+     * @param isWin True if the player won, false if they lost
+     * @param score The player's score for this game, -1 if unknown
+     */
+    void ended(Game g, boolean isWin, int score);
+
+    /**
+     * A piece has landed in the server's simulation of the player's game
+     * @param numPieces The number of pieces spawned so far
+     * @param hash The hash of the simulated board
+     */
+    void hash(int numPieces, int hash);
+
+    /**
+     * The simulated board and score, asked for by the player's client
+     * @param board The String representation of the simulated board
+     * @param score The simulated score
+     */
+    void sync(String board, int score);
+
+    /**
+     * The player's client has resumed its session on a new connection, and is
+     * sent the state of its game to continue it
+     * @param g The game, null if the player's game has already ended
+     * @param opponentName The username of the opponent
+     * @param opponentStats The String representation of the opponent's stats
+     * @param seed The seed of the pieces
+     * @param snapshot The state of the player's game (see TetrisEngine.toSnapshot())
+     */
+    void resumed(Game g, String opponentName, String opponentStats, long seed, String snapshot);
+}
@@ -0,0 +1,306 @@
+package src.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <b>ReplayRecorder</b> records a Match to an append-only replay file. A game
+ * is fully determined by its seed and the inputs of the two players, so only
+ * those are recorded, never the boards: the seed and the players first, then
+ * every input with the time since the previous one.
+ * <p>
+ * The Match thread only encodes the inputs into the memory of its recorder.
+ * Every CHUNK_SIZE bytes, and at the end of the game, the bytes are handed to a
+ * single background thread that appends them to the file, so recording never
+ * makes a Match wait on the disk. A file that fails to be written is deleted,
+ * and the rest of its chunks skipped, so that a replay is either whole or
+ * missing, never cut in the middle. When the server exits, the writer appends
+ * the chunks left in its queue before the process ends.
+ * <p>
+ * The file is made of varints (as in TetrisProtocol) and bytes:
+ * <pre>
+ * header: "TBR" FORMAT_VERSION, seed (8 bytes), start time (8 bytes, ms since
+ *         the epoch), then for both players: the username (varint length and
+ *         UTF-8 bytes) and the protocol version (varint)
+ * input:  the time since the previous input (varint, ms), type &lt;&lt; 1 | player
+ *         (byte), then the value of the input for MOVE (the keyCode), SEND (the
+ *         mask of the line sent to the opponent), LOSE and WIN (the final score
+ *         plus 1, so that an unknown score is 0)
+ * </pre>
+ * TICK and APPLY have no value, and are only sent by the clients that the
+ * server simulates (see TetrisProtocol.SIMULATION_VERSION).
+ */
+public class ReplayRecorder {
+
+    /** The directory of the replay files, null to record nothing */
+    public static String DIRECTORY = "replays";
+
+    /** The number of bytes recorded before they are handed to the disk */
+    public static int CHUNK_SIZE = 4096;
+
+    /** The version of the file format */
+    public static final int FORMAT_VERSION = 1;
+
+    /** The player moved their piece */
+    public static final int MOVE = 0;
+    /** The timer of the player's game stepped */
+    public static final int TICK = 1;
+    /** The player added the oldest line sent by the opponent */
+    public static final int APPLY = 2;
+    /** The player sent a line to the opponent */
+    public static final int SEND = 3;
+    /** The player lost, the last input of the player */
+    public static final int LOSE = 4;
+    /** The player won, the last input of the player */
+    public static final int WIN = 5;
+
+    /**
+     * <b>Chunk</b> is a run of bytes to append to a replay file
+     */
+    private static class Chunk {
+        final Path file;     /** The replay file */
+        final byte[] bytes;  /** The bytes, owned by the writer thread */
+        final int size;      /** The number of bytes */
+        final boolean last;  /** True for the last chunk of the file */
+
+        Chunk(Path file, byte[] bytes, int size, boolean last) {
+            this.file = file;
+            this.bytes = bytes;
+            this.size = size;
+            this.last = last;
+        }
+    }
+
+    /** Stops the writer thread once it reaches it in the queue */
+    private static final Chunk END = new Chunk(null, new byte[0], 0, true);
+
+    private static LinkedBlockingQueue<Chunk> chunks;   /** The chunks waiting to be appended */
+    private static Thread writer;                       /** Appends the chunks */
+    private static long pid = ProcessHandle.current().pid(); /** Tells apart the files of the servers sharing the directory */
+
+    private Path file;        /** The replay file */
+    private byte[] buffer;    /** The bytes not handed to the writer yet */
+    private int size;         /** The number of bytes in buffer */
+    private long lastMillis;  /** The time of the previous input, from System.nanoTime() */
+    private boolean closed;   /** True once the game has ended */
+
+    /**
+     * Starts recording a match, unless recording is off
+     * @param id The number of the match
+     * @param seed The seed of the match
+     * @param players The players of the match
+     * @return The recorder, null if recording is off
+     */
+    static ReplayRecorder start(long id, long seed, Player[] players) {
+        if (DIRECTORY == null)
+            return null;
+        return new ReplayRecorder(id, seed, players);
+    }
+
+    /**
+     * Creates an instance of the ReplayRecorder, and records the header
+     */
+    private ReplayRecorder(long id, long seed, Player[] players) {
+        long now = System.currentTimeMillis();
+        file = Paths.get(DIRECTORY, now + "-" + pid + "-" + id + ".replay");
+        buffer = new byte[512];
+        size = 0;
+        lastMillis = System.nanoTime() / 1000000;
+        closed = false;
+
+        put((byte) 'T');
+        put((byte) 'B');
+        put((byte) 'R');
+        put((byte) FORMAT_VERSION);
+        putLong(seed);
+        putLong(now);
+        for (Player p : players) {
+            byte[] name = p.getName().getBytes(StandardCharsets.UTF_8);
+            putVarint(name.length);
+            for (byte b : name)
+                put(b);
+            putVarint(p.getVersion());
+        }
+    }
+
+    /**
+     * Gets the replay file
+     * @return The path of the file
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Records an input without a value
+     * @param type The type of the input, TICK or APPLY
+     * @param player The index of the player
+     */
+    void record(int type, int player) {
+        if (closed)
+            return;
+        putHeader(type, player);
+        inputDone();
+    }
+
+    /**
+     * Records an input with a value
+     * @param type The type of the input
+     * @param player The index of the player
+     * @param value The value, must not be negative
+     */
+    void record(int type, int player, int value) {
+        if (closed)
+            return;
+        putHeader(type, player);
+        putVarint(value);
+        inputDone();
+    }
+
+    /**
+     * Hands the rest of the file to the writer, called once both players'
+     * games have ended
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        handOff(true);
+    }
+
+    private void putHeader(int type, int player) {
+        long now = System.nanoTime() / 1000000;
+        putVarint((int) Math.min(Integer.MAX_VALUE, now - lastMillis));
+        lastMillis = now;
+        put((byte) (type << 1 | player));
+    }
+
+    private void inputDone() {
+        if (size >= CHUNK_SIZE)
+            handOff(false);
+    }
+
+    /**
+     * Hands the recorded bytes to the writer thread, and starts a new buffer
+     */
+    private void handOff(boolean last) {
+        writer().add(new Chunk(file, buffer, size, last));
+        buffer = new byte[Math.max(512, CHUNK_SIZE + 16)];
+        size = 0;
+    }
+
+    private void putLong(long v) {
+        for (int i = 56; i >= 0; i -= 8)
+            put((byte) (v >>> i));
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        put((byte) value);
+    }
+
+    private void put(byte b) {
+        if (size == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        buffer[size++] = b;
+    }
+
+    /**
+     * Gets the queue of the writer thread, starting the thread on the first use
+     */
+    private static synchronized LinkedBlockingQueue<Chunk> writer() {
+        if (writer == null) {
+            chunks = new LinkedBlockingQueue<Chunk>();
+            writer = new Thread(ReplayRecorder::appendChunks, "ReplayWriter");
+            writer.setDaemon(true);
+            writer.start();
+            //appends what is left when the server exits
+            Runtime.getRuntime().addShutdownHook(new Thread(ReplayRecorder::flush));
+        }
+        return chunks;
+    }
+
+    /**
+     * Stops the writer thread once it has appended the chunks queued so far,
+     * and waits for it. Called when the server exits.
+     */
+    private static void flush() {
+        chunks.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Appends the chunks to their files, until the server exits. The files of
+     * the running games stay open between their chunks.
+     */
+    private static void appendChunks() {
+        Map<Path, FileChannel> open = new HashMap<Path, FileChannel>();
+        Set<Path> failed = new HashSet<Path>();  //the files deleted after a failed write, until their last chunk
+        while (true) {
+            Chunk c;
+            try {
+                c = chunks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (c == END)
+                break;
+
+            if (failed.contains(c.file)) {
+                if (c.last)
+                    failed.remove(c.file);
+                continue;
+            }
+
+            try {
+                FileChannel channel = open.get(c.file);
+                if (channel == null) {
+                    Files.createDirectories(c.file.getParent());
+                    channel = FileChannel.open(c.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND);
+                    open.put(c.file, channel);
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(c.bytes, 0, c.size);
+                while (bytes.hasRemaining())
+                    channel.write(bytes);
+                if (c.last) {
+                    open.remove(c.file);
+                    channel.close();
+                }
+            } catch (IOException e) {
+                ServerLog.info(ServerLog.Event.GAME, "ReplayWriter", "Could not record " + c.file + ", deleting it,", e);
+                close(open.remove(c.file));
+                try {
+                    Files.deleteIfExists(c.file);
+                } catch (IOException ex) {
+                }
+                if (!c.last)
+                    failed.add(c.file);
+            }
+        }
+
+        //the games still running when the server exits keep what they have recorded so far
+        for (FileChannel channel : open.values())
+            close(channel);
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package src.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import src.main.TetrisProtocol;
+
+/**
+ * <b>ReplayVerifier</b> re-simulates recorded games (see ReplayRecorder) and
+ * checks their final scores. Every player the server simulated is run again
+ * from the seed and the recorded inputs on a HeadlessGame, as fast as the
+ * engine goes: no timers, no painting, and the times between the inputs are
+ * skipped. The replayed score is checked against the final score in the file
+ * and against the score TetrisDatabase.addGame() recorded for the player.
+ * <p>
+ * The replays are independent of each other, so they are split between the
+ * cores with fork/join: a task verifies at most BATCH_SIZE replays itself, and
+ * forks the rest in halves.
+ * <p>
+ * The players whose clients simulate their own game (older clients, see
+ * TetrisProtocol.SIMULATION_VERSION) can't be replayed, as their inputs aren't
+ * recorded; their scores are only checked against the database.
+ */
+public class ReplayVerifier {
+
+    /** The maximum number of replays a task verifies without forking */
+    public static int BATCH_SIZE = 16;
+
+    /** The maximum number of mismatches printed */
+    public static int MAX_PRINTED = 50;
+
+    /**
+     * <b>Result</b> counts the verified players of a run of replays
+     */
+    static class Result {
+        int numReplays;       /** The number of replays read */
+        int numMatched;       /** The players whose replayed score matches */
+        int numMismatched;    /** The players whose replayed score doesn't match */
+        int numUnrecorded;    /** The players the database has no game of */
+        int numClientScored;  /** The players who weren't simulated, so can't be replayed */
+        int numUnreadable;    /** The replays that couldn't be read */
+        long numInputs;       /** The number of inputs replayed */
+        List<String> mismatches = new ArrayList<String>(); /** The descriptions of the mismatches and errors */
+
+        /**
+         * Adds the counts of another Result to this one
+         * @param r The other Result
+         * @return This Result
+         */
+        Result add(Result r) {
+            numReplays += r.numReplays;
+            numMatched += r.numMatched;
+            numMismatched += r.numMismatched;
+            numUnrecorded += r.numUnrecorded;
+            numClientScored += r.numClientScored;
+            numUnreadable += r.numUnreadable;
+            numInputs += r.numInputs;
+            mismatches.addAll(r.mismatches);
+            return this;
+        }
+    }
+
+    /**
+     * <b>VerifyTask</b> verifies a range of the replays, forking the halves of
+     * the ranges bigger than BATCH_SIZE
+     */
+    private class VerifyTask extends RecursiveTask<Result> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;  /** The index of the first replay */
+        private final int to;    /** The index after the last replay */
+
+        VerifyTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Result compute() {
+            if (to - from <= BATCH_SIZE) {
+                Result r = new Result();
+                for (int i = from; i < to; i++)
+                    verify(files.get(i), r);
+                return r;
+            }
+            int mid = (from + to) >>> 1;
+            VerifyTask left = new VerifyTask(from, mid);
+            left.fork();
+            Result right = new VerifyTask(mid, to).compute();
+            return left.join().add(right);
+        }
+    }
+
+    /** Ignores the events of the replayed games */
+    private static final HeadlessGame.Owner NO_OWNER = new HeadlessGame.Owner() {
+        public void simulationChanged(HeadlessGame game) {
+        }
+
+        public void simulationLocked(HeadlessGame game, int numPieces, int hash) {
+        }
+
+        public void simulationOver(HeadlessGame game) {
+        }
+    };
+
+    private List<Path> files;                  /** The replay files */
+    private Map<String, List<Pair<String, Integer>>> recorded;  /** The scores in the database by replay file, null to skip the database */
+
+    /**
+     * Creates an instance of the ReplayVerifier
+     * @param files The replay files
+     * @param recorded The scores in the database by replay file (see
+     * TetrisDatabase.getReplayScores()), null to only check the replays
+     * against themselves
+     */
+    public ReplayVerifier(List<Path> files, Map<String, List<Pair<String, Integer>>> recorded) {
+        this.files = files;
+        this.recorded = recorded;
+    }
+
+    /**
+     * Verifies all the replays on a pool of threads
+     * @param pool The pool running the tasks
+     * @return The counts of the verified players
+     */
+    public Result verifyAll(ForkJoinPool pool) {
+        return pool.invoke(new VerifyTask(0, files.size()));
+    }
+
+    /**
+     * Verifies a replay, and adds its players to the counts
+     * @param file The replay file
+     * @param r The counts
+     */
+    void verify(Path file, Result r) {
+        r.numReplays++;
+        String name = file.getFileName().toString();
+        try {
+            Replay replay = new Replay(Files.readAllBytes(file));
+            int[][] scores = replay.run();
+            r.numInputs += replay.numInputs;
+            List<Pair<String, Integer>> rows = (recorded == null) ? null : recorded.get(name);
+
+            for (int i = 0; i < 2; i++) {
+                int replayed = scores[i][0];
+                int inFile = scores[i][1];
+                Integer db = null;
+                if (rows != null) {
+                    for (Pair<String, Integer> p : rows) {
+                        if (p.getKey().equals(replay.names[i]))
+                            db = p.getValue();
+                    }
+                }
+
+                if (replayed < 0) {
+                    //older client, only the score it sent can be compared
+                    r.numClientScored++;
+                    if (db != null && inFile >= 0 && db != inFile) {
+                        r.numMismatched++;
+                        r.mismatches.add(name + " " + replay.names[i] + ": recorded " + inFile + ", database " + db);
+                    }
+                }
+                else if (replayed != inFile || (db != null && db != replayed)) {
+                    r.numMismatched++;
+                    r.mismatches.add(name + " " + replay.names[i] + ": replayed " + replayed + ", recorded " + inFile
+                            + ", database " + (db == null ? "-" : db));
+                }
+                else if (recorded != null && db == null) {
+                    r.numUnrecorded++;
+                }
+                else {
+                    r.numMatched++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            r.numUnreadable++;
+            r.mismatches.add(name + ": unreadable, " + e);
+        }
+    }
+
+    /**
+     * <b>Replay</b> is a replay file being replayed. The inputs are decoded
+     * as they are applied, straight from the bytes of the file.
+     */
+    static class Replay {
+
+        private byte[] bytes;     /** The contents of the file */
+        private int pos;          /** The position of the next byte to decode */
+        long seed;                /** The seed of the match */
+        long startMillis;         /** The start time of the match, ms since the epoch */
+        String[] names;           /** The usernames of the players */
+        int[] versions;           /** The protocol versions of the players' clients */
+        int numInputs;            /** The number of inputs replayed */
+
+        /**
+         * Creates an instance of the Replay, and reads the header of the file
+         * @param bytes The contents of the file
+         * @throws IOException If the file isn't a replay
+         */
+        Replay(byte[] bytes) throws IOException {
+            this.bytes = bytes;
+            pos = 0;
+            if (bytes.length < 4 || bytes[0] != 'T' || bytes[1] != 'B' || bytes[2] != 'R')
+                throw new IOException("not a replay file");
+            pos = 3;
+            if (bytes[pos++] != ReplayRecorder.FORMAT_VERSION)
+                throw new IOException("unknown format version " + bytes[pos - 1]);
+            seed = getLong();
+            startMillis = getLong();
+            names = new String[2];
+            versions = new int[2];
+            for (int i = 0; i < 2; i++) {
+                int len = getVarint();
+                names[i] = new String(bytes, pos, len, StandardCharsets.UTF_8);
+                pos += len;
+                versions[i] = getVarint();
+            }
+        }
+
+        /**
+         * Replays the inputs, the way the Match applied them
+         * @return For both players, the replayed score (-1 if the player
+         * wasn't simulated) and the final score in the file (-1 if unknown)
+         * @throws IOException If the file ends before both games have ended
+         */
+        int[][] run() throws IOException {
+            HeadlessGame[] games = new HeadlessGame[2];
+            int[][] scores = { { -1, -1 }, { -1, -1 } };
+            boolean[] playing = { true, true };
+            boolean over = false;
+            for (int i = 0; i < 2; i++) {
+                if (versions[i] >= TetrisProtocol.SIMULATION_VERSION)
+                    games[i] = new HeadlessGame(NO_OWNER, seed);
+            }
+
+            while (playing[0] || playing[1]) {
+                if (pos >= bytes.length)
+                    throw new EOFException("the game doesn't end");
+                getVarint();  //the time since the previous input
+                int b = bytes[pos++];
+                int type = b >> 1;
+                int i = b & 1;
+                HeadlessGame g = games[i];
+                numInputs++;
+                switch (type) {
+                    case ReplayRecorder.MOVE:
+                        int keyCode = getVarint();
+                        if (g != null)
+                            g.move(keyCode);
+                        break;
+                    case ReplayRecorder.TICK:
+                        if (g != null)
+                            g.tick();
+                        break;
+                    case ReplayRecorder.APPLY:
+                        if (g != null)
+                            g.applyLine();
+                        break;
+                    case ReplayRecorder.SEND:
+                        int mask = getVarint();
+                        if (!over && playing[1 - i] && games[1 - i] != null)
+                            games[1 - i].queueLine(TetrisProtocol.maskToLine(mask));
+                        break;
+                    case ReplayRecorder.LOSE:
+                    case ReplayRecorder.WIN:
+                        scores[i][1] = getVarint() - 1;
+                        if (g != null) {
+                            scores[i][0] = g.getScore();
+                            games[i] = null;
+                        }
+                        playing[i] = false;
+                        if (type == ReplayRecorder.LOSE)
+                            over = true;
+                        break;
+                    default:
+                        throw new IOException("unknown input " + type);
+                }
+            }
+            return scores;
+        }
+
+        private long getLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++)
+                v = (v << 8) | (bytes[pos++] & 0xFF);
+            return v;
+        }
+
+        private int getVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = bytes[pos++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalStateException("varint too long");
+        }
+    }
+
+    /**
+     * The ReplayVerifier main function
+     * @param args The command line arguments, args[0] is the optional directory
+     * of the replays (defaults to ReplayRecorder.DIRECTORY), args[1] is the
+     * optional number of threads (defaults to the number of cores). The
+     * scores are checked against tetris.db, unless "tetris.verify.db" is set
+     * to "off".
+     */
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get((args.length > 0) ? args[0] : ReplayRecorder.DIRECTORY);
+        int numThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.toString().endsWith(".replay")).sorted().collect(Collectors.toList());
+        }
+        Map<String, List<Pair<String, Integer>>> recorded = null;
+        if (!System.getProperty("tetris.verify.db", "on").equals("off")) {
+            recorded = TetrisDatabase.getReplayScores();
+            if (recorded == null)
+                System.out.println("Could not read tetris.db, only checking the replays against themselves");
+        }
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        Result r = new ReplayVerifier(files, recorded).verifyAll(pool);
+        pool.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (int i = 0; i < r.mismatches.size() && i < MAX_PRINTED; i++)
+            System.out.println("MISMATCH " + r.mismatches.get(i));
+        if (r.mismatches.size() > MAX_PRINTED)
+            System.out.println("... and " + (r.mismatches.size() - MAX_PRINTED) + " more");
+        System.out.printf("Replayed %d games (%d inputs) in %.2f s on %d threads: %.0f games/s, %.0f inputs/s%n",
+                r.numReplays, r.numInputs, seconds, numThreads, r.numReplays / seconds, r.numInputs / seconds);
+        System.out.println("Players: " + r.numMatched + " matched, " + r.numMismatched + " mismatched, "
+                + r.numUnrecorded + " not in the database, " + r.numClientScored + " not simulated, "
+                + r.numUnreadable + " unreadable replays");
+        if (r.numMismatched > 0 || r.numUnreadable > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,300 @@
+package src.server;
+
+import jdk.jfr.*;
+
+/**
+ * <b>ServerEvents</b> are the Java Flight Recorder events of the server, in
+ * the "Tetris" category of JDK Mission Control. They cover the lifecycle of
+ * the connections (Connect, Disconnect), the logins and registrations, the
+ * matchmaking queue (QueueEnter, QueueExit), the matches (MatchStart, MatchEnd),
+ * a sample of the relayed game messages (Relay), and every call to the
+ * database (Sql).
+ * <p>
+ * The events cost next to nothing while no recording runs; the server script
+ * starts the server with an always-on recording of the last hour, dumped with
+ * "jcmd &lt;pid&gt; JFR.dump name=tetris filename=tetris.jfr". The game
+ * messages are the only frequent events, so only one out of RELAY_SAMPLE of
+ * each connection is recorded.
+ */
+public class ServerEvents {
+
+    /** One out of RELAY_SAMPLE relayed messages of each connection is recorded */
+    public static int RELAY_SAMPLE = 64;
+
+    /**
+     * <b>Connect</b> is a client connection accepted by the server
+     */
+    @Name("tetris.Connect")
+    @Label("Connect")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class Connect extends Event {
+        @Label("Connection") String connection;  /** The address or name of the connection */
+    }
+
+    /**
+     * <b>Disconnect</b> is a client connection closed, lasting from its accept
+     * to its close
+     */
+    @Name("tetris.Disconnect")
+    @Label("Disconnect")
+    @Description("A client connection, from its accept to its close")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class Disconnect extends Event {
+        @Label("Connection") String connection;  /** The address or name of the connection */
+        @Label("User") String user;              /** The user logged in when it closed, null if none */
+    }
+
+    /**
+     * <b>Login</b> is a LOGIN or REGISTER handled, database call included
+     */
+    @Name("tetris.Login")
+    @Label("Login")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class Login extends Event {
+        @Label("User") String user;            /** The username sent */
+        @Label("Register") boolean register;   /** True for a REGISTER, false for a LOGIN */
+        @Label("Success") boolean success;     /** True if the user is now logged in */
+    }
+
+    /**
+     * <b>QueueEnter</b> is a user asking to play
+     */
+    @Name("tetris.QueueEnter")
+    @Label("Queue Enter")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class QueueEnter extends Event {
+        @Label("User") String user;     /** The user */
+        @Label("Rating") int rating;    /** The rating of the user */
+    }
+
+    /**
+     * <b>QueueExit</b> is a user leaving the matchmaking queue, lasting from
+     * the moment they asked to play
+     */
+    @Name("tetris.QueueExit")
+    @Label("Queue Exit")
+    @Description("A user waiting for an opponent, until they are matched or leave")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class QueueExit extends Event {
+        @Label("User") String user;          /** The user */
+        @Label("Matched") boolean matched;   /** True if the user was matched, false if they left */
+    }
+
+    /**
+     * <b>MatchStart</b> is a match starting
+     */
+    @Name("tetris.MatchStart")
+    @Label("Match Start")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class MatchStart extends Event {
+        @Label("Match") long id;               /** The number of the match */
+        @Label("Player 0") String player0;     /** The user who waited first */
+        @Label("Player 1") String player1;     /** The other user */
+        @Label("Seed") long seed;              /** The seed of the pieces */
+    }
+
+    /**
+     * <b>MatchEnd</b> is a match ended, lasting from its start until both
+     * players' games have ended
+     */
+    @Name("tetris.MatchEnd")
+    @Label("Match End")
+    @Description("A match, from its start until both players' games have ended")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class MatchEnd extends Event {
+        @Label("Match") long id;               /** The number of the match */
+        @Label("Player 0") String player0;     /** The user who waited first */
+        @Label("Player 1") String player1;     /** The other user */
+        @Label("Score 0") int score0;          /** The final score of player 0, -1 if unknown */
+        @Label("Score 1") int score1;          /** The final score of player 1, -1 if unknown */
+        @Label("Winner") String winner;        /** The user who won, null if neither lost */
+        @Label("Replay") String replay;        /** The name of the replay file, null if recording is off */
+    }
+
+    /**
+     * <b>Relay</b> is a game message of a player, handled and passed on to
+     * their match
+     */
+    @Name("tetris.Relay")
+    @Label("Relay")
+    @Description("One out of RELAY_SAMPLE game messages of a connection")
+    @Category("Tetris")
+    @StackTrace(false)
+    public static class Relay extends Event {
+        @Label("User") String user;            /** The player who sent the message */
+        @Label("Command") String command;      /** MOVE, BOARD, BOARD_DELTA or SEND */
+        @Label("Handling") @Timespan(Timespan.NANOSECONDS) long handling; /** The time from reading the message to passing it on */
+    }
+
+    /**
+     * <b>Sql</b> is a call to a TetrisDatabase method, connection included
+     */
+    @Name("tetris.Sql")
+    @Label("SQL Call")
+    @Category("Tetris")
+    public static class Sql extends Event {
+        @Label("Method") String method;        /** The name of the TetrisDatabase method */
+        @Label("Call Time") @Timespan(Timespan.NANOSECONDS) long time; /** The time the call took */
+    }
+
+    /**
+     * Records a connection accepted
+     * @param connection The address or name of the connection
+     * @return The Disconnect event of the connection, begun now
+     */
+    public static Disconnect connect(String connection) {
+        Connect e = new Connect();
+        if (e.isEnabled()) {
+            e.connection = connection;
+            e.commit();
+        }
+        Disconnect d = new Disconnect();
+        d.connection = connection;
+        d.begin();
+        return d;
+    }
+
+    /**
+     * Records a connection closed
+     * @param d The event returned by connect()
+     * @param user The user logged in, null if none
+     */
+    public static void disconnect(Disconnect d, String user) {
+        d.end();
+        if (d.shouldCommit()) {
+            d.user = user;
+            d.commit();
+        }
+    }
+
+    /**
+     * Records a LOGIN or REGISTER handled
+     * @param e The event, begun when the command was read
+     * @param user The username sent
+     * @param register True for a REGISTER
+     * @param success True if the user is now logged in
+     */
+    public static void login(Login e, String user, boolean register, boolean success) {
+        e.end();
+        if (e.shouldCommit()) {
+            e.user = user;
+            e.register = register;
+            e.success = success;
+            e.commit();
+        }
+    }
+
+    /**
+     * Records a user asking to play
+     * @param user The user
+     * @param rating The rating of the user
+     * @return The QueueExit event of the user, begun now
+     */
+    public static QueueExit queueEnter(String user, int rating) {
+        QueueEnter e = new QueueEnter();
+        if (e.isEnabled()) {
+            e.user = user;
+            e.rating = rating;
+            e.commit();
+        }
+        QueueExit exit = new QueueExit();
+        exit.user = user;
+        exit.begin();
+        return exit;
+    }
+
+    /**
+     * Records a user leaving the queue
+     * @param e The event returned by queueEnter(), nothing is recorded if null
+     * @param matched True if the user was matched, false if they left
+     */
+    public static void queueExit(QueueExit e, boolean matched) {
+        if (e == null)
+            return;
+        e.end();
+        if (e.shouldCommit()) {
+            e.matched = matched;
+            e.commit();
+        }
+    }
+
+    /**
+     * Records a match starting
+     * @param id The number of the match
+     * @param player0 The user who waited first
+     * @param player1 The other user
+     * @param seed The seed of the pieces
+     * @return The MatchEnd event, begun now
+     */
+    public static MatchEnd matchStart(long id, String player0, String player1, long seed) {
+        MatchStart e = new MatchStart();
+        if (e.isEnabled()) {
+            e.id = id;
+            e.player0 = player0;
+            e.player1 = player1;
+            e.seed = seed;
+            e.commit();
+        }
+        MatchEnd m = new MatchEnd();
+        m.id = id;
+        m.player0 = player0;
+        m.player1 = player1;
+        m.begin();
+        return m;
+    }
+
+    /**
+     * Records a match ended
+     * @param m The event returned by matchStart()
+     * @param scores The final scores of the players, -1 if unknown
+     * @param winner The user who won, null if neither lost
+     * @param replay The name of the replay file, null if recording is off
+     */
+    public static void matchEnd(MatchEnd m, int[] scores, String winner, String replay) {
+        m.end();
+        if (m.shouldCommit()) {
+            m.score0 = scores[0];
+            m.score1 = scores[1];
+            m.winner = winner;
+            m.replay = replay;
+            m.commit();
+        }
+    }
+
+    /**
+     * Records a relayed game message
+     * @param user The player who sent the message
+     * @param command The command of the message
+     * @param startNanos When the message was read, from System.nanoTime()
+     */
+    public static void relay(String user, String command, long startNanos) {
+        Relay e = new Relay();
+        if (e.isEnabled()) {
+            e.user = user;
+            e.command = command;
+            e.handling = System.nanoTime() - startNanos;
+            e.commit();
+        }
+    }
+
+    /**
+     * Records a call to the database
+     * @param method The name of the TetrisDatabase method
+     * @param startNanos When the method was called, from System.nanoTime()
+     */
+    public static void sql(String method, long startNanos) {
+        Sql e = new Sql();
+        if (e.isEnabled()) {
+            e.method = method;
+            e.time = System.nanoTime() - startNanos;
+            e.commit();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package src.server;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <b>ServerLog</b> is the log of the server. The handler threads only put their
+ * entries in a ring buffer, and a single background thread formats and prints
+ * them, so logging never makes the handlers wait on each other or on the
+ * console. Each entry is one line:
+ * <pre>
+ * &lt;time&gt; &lt;level&gt; &lt;event&gt; &lt;source&gt;: &lt;text&gt; [&lt;value&gt;]
+ * </pre>
+ * Every type of event has its own level, and the frequent ones can be sampled,
+ * keeping only one entry out of N. When the ring buffer is full, new entries
+ * are dropped and counted instead of blocking the handler.
+ * <p>
+ * The levels are set with configure(), from the "tetris.log" system property
+ * when the server starts: "production" (the default) turns the MOVE and BOARD
+ * events off, "development" logs every event at DEBUG, and a comma-separated
+ * list of EVENT=LEVEL or EVENT=LEVEL/N (sampling 1 out of N) changes single
+ * events on top of the production levels, e.g. "MOVE=INFO/100,BOARD=DEBUG".
+ */
+public class ServerLog {
+
+    /**
+     * <b>Level</b> is the level of detail of an entry
+     */
+    public enum Level { OFF, INFO, DEBUG }
+
+    /**
+     * <b>Event</b> is the type of event an entry is about
+     */
+    public enum Event {
+        /** Server startup, connections and counters */
+        SERVER,
+        /** HELLO, REGISTER, LOGIN and LEADERBOARD */
+        AUTH,
+        /** Matchmaking, the start and the end of games */
+        GAME,
+        /** The relayed moves */
+        MOVE,
+        /** The relayed boards */
+        BOARD,
+        /** The relayed lines */
+        SEND
+    }
+
+    /** The number of entries the ring buffer holds, must be a power of 2 */
+    public static int RING_SIZE = 8192;
+
+    private static final Level[] levels = new Level[Event.values().length];   /** The level of each type of event */
+    private static final int[] sampling = new int[Event.values().length];    /** 1 out of how many entries of each type are kept */
+    private static final AtomicLong[] sampled = new AtomicLong[Event.values().length]; /** The entries of each type seen so far, for the sampling */
+
+    private static volatile Entry[] ring; /** The ring buffer, every slot is reused */
+    private static int mask;           /** RING_SIZE - 1 */
+    private static AtomicLong tail;    /** The sequence number of the next entry to claim */
+    private static volatile long head; /** The sequence number of the next entry to print */
+    private static AtomicLong dropped; /** The number of entries dropped because the ring buffer was full */
+    private static Thread printer;     /** Prints the entries */
+    private static long reported;      /** The number of dropped entries already reported, only used by the printer */
+    private static SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS"); /** Formats the time of the entries, only used by the printer */
+
+    static {
+        for (int i = 0; i < sampled.length; i++)
+            sampled[i] = new AtomicLong();
+        configure("production");
+    }
+
+    /**
+     * <b>Entry</b> is a slot of the ring buffer
+     */
+    private static class Entry {
+        volatile long sequence = -1;  /** The sequence number of the entry in this slot, set once it is complete */
+        long time;
+        Level level;
+        Event event;
+        String source;
+        String text;
+        Object value;
+    }
+
+    /**
+     * Sets the levels and the sampling of every type of event
+     * @param spec "production", "development", or a comma-separated list of
+     * EVENT=LEVEL or EVENT=LEVEL/N applied on top of the production levels
+     */
+    public static synchronized void configure(String spec) {
+        boolean development = spec.equals("development");
+        for (Event e : Event.values()) {
+            if (development)
+                levels[e.ordinal()] = Level.DEBUG;
+            else if (e == Event.MOVE || e == Event.BOARD)
+                levels[e.ordinal()] = Level.OFF;
+            else
+                levels[e.ordinal()] = Level.INFO;
+            sampling[e.ordinal()] = 1;
+        }
+        if (development || spec.equals("production"))
+            return;
+
+        for (String item : spec.split(",")) {
+            try {
+                String[] kv = item.trim().split("=");
+                String[] ls = kv[1].split("/");
+                Event e = Event.valueOf(kv[0].toUpperCase());
+                levels[e.ordinal()] = Level.valueOf(ls[0].toUpperCase());
+                sampling[e.ordinal()] = (ls.length > 1) ? Math.max(1, Integer.parseInt(ls[1])) : 1;
+            } catch (Exception ex) {
+                System.out.println("SERVER: Invalid log setting " + item);
+            }
+        }
+    }
+
+    /**
+     * Sets the level of a type of event
+     * @param e The type of event
+     * @param level The highest level of detail logged for it, OFF for none
+     */
+    public static void setLevel(Event e, Level level) {
+        levels[e.ordinal()] = level;
+    }
+
+    /**
+     * Keeps only one out of n entries of a type of event
+     * @param e The type of event
+     * @param n The sampling, 1 to keep every entry
+     */
+    public static void setSampling(Event e, int n) {
+        sampling[e.ordinal()] = Math.max(1, n);
+    }
+
+    /**
+     * Checks if the entries of a type of event are logged at a level, so that
+     * callers can skip building expensive entries
+     * @param e The type of event
+     * @param level The level of the entry
+     * @return True if such entries are logged
+     */
+    public static boolean isEnabled(Event e, Level level) {
+        return level.compareTo(levels[e.ordinal()]) <= 0 && level != Level.OFF;
+    }
+
+    /**
+     * Logs an entry at the INFO level
+     * @param e The type of event
+     * @param source The connection or component the entry is about
+     * @param text The text of the entry
+     */
+    public static void info(Event e, String source, String text) {
+        log(Level.INFO, e, source, text, null);
+    }
+
+    /**
+     * Logs an entry at the INFO level, followed by a value. The value is only
+     * turned into text on the printing thread.
+     * @param e The type of event
+     * @param source The connection or component the entry is about
+     * @param text The text of the entry
+     * @param value The value printed after the text
+     */
+    public static void info(Event e, String source, String text, Object value) {
+        log(Level.INFO, e, source, text, value);
+    }
+
+    /**
+     * Logs an entry at the DEBUG level
+     * @param e The type of event
+     * @param source The connection or component the entry is about
+     * @param text The text of the entry
+     */
+    public static void debug(Event e, String source, String text) {
+        log(Level.DEBUG, e, source, text, null);
+    }
+
+    /**
+     * Logs an entry at the DEBUG level, followed by a value
+     * @param e The type of event
+     * @param source The connection or component the entry is about
+     * @param text The text of the entry
+     * @param value The value printed after the text
+     */
+    public static void debug(Event e, String source, String text, Object value) {
+        log(Level.DEBUG, e, source, text, value);
+    }
+
+    /**
+     * Gets the number of entries dropped because the ring buffer was full
+     * @return The number of dropped entries
+     */
+    public static long getNumDropped() {
+        return (dropped == null) ? 0 : dropped.get();
+    }
+
+    /**
+     * Puts an entry in the ring buffer, unless its type is off at this level,
+     * it is left out by the sampling, or the ring buffer is full
+     */
+    private static void log(Level level, Event e, String source, String text, Object value) {
+        if (!isEnabled(e, level))
+            return;
+        int n = sampling[e.ordinal()];
+        if (n > 1 && sampled[e.ordinal()].getAndIncrement() % n != 0)
+            return;
+        if (ring == null)
+            start();
+
+        //claims a slot, or drops the entry if the printer is a whole ring behind
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        Entry entry = ring[(int) seq & mask];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.event = e;
+        entry.source = source;
+        entry.text = text;
+        entry.value = value;
+        entry.sequence = seq;
+    }
+
+    /**
+     * Creates the ring buffer and starts the printing thread, on the first entry
+     */
+    private static synchronized void start() {
+        if (ring != null)
+            return;
+        Entry[] r = new Entry[RING_SIZE];
+        for (int i = 0; i < r.length; i++)
+            r[i] = new Entry();
+        mask = RING_SIZE - 1;
+        tail = new AtomicLong();
+        dropped = new AtomicLong();
+        head = 0;
+
+        printer = new Thread(ServerLog::print, "ServerLog");
+        printer.setDaemon(true);
+        ring = r;
+        printer.start();
+        //prints what is left when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(new PrintWriter(System.out))));
+    }
+
+    /**
+     * The loop of the printing thread
+     */
+    private static void print() {
+        PrintWriter w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        while (true) {
+            if (!drain(w))
+                LockSupport.parkNanos(1000000);
+        }
+    }
+
+    /**
+     * Prints every complete entry in the ring buffer, in order
+     * @param w Where the entries are printed
+     * @return True if any entry was printed
+     */
+    private static synchronized boolean drain(PrintWriter w) {
+        if (ring == null)
+            return false;
+        boolean printed = false;
+        long seq = head;
+        while (true) {
+            Entry entry = ring[(int) seq & mask];
+            if (entry.sequence != seq)
+                break;
+            w.print(timeFormat.format(new Date(entry.time)));
+            w.print(' ');
+            w.print(entry.level);
+            w.print(' ');
+            w.print(entry.event);
+            w.print(' ');
+            w.print(entry.source);
+            w.print(": ");
+            w.print(entry.text);
+            if (entry.value != null) {
+                w.print(' ');
+                w.print(entry.value);
+            }
+            w.println();
+
+            entry.source = null;
+            entry.text = null;
+            entry.value = null;
+            seq++;
+            head = seq;
+            printed = true;
+        }
+
+        long d = dropped.get() - reported;
+        if (d > 0) {
+            reported += d;
+            w.println("SERVER: Log buffer full, dropped " + d + " entries");
+        }
+        if (printed || d > 0)
+            w.flush();
+        return printed;
+    }
+}
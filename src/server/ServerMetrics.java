@@ -0,0 +1,246 @@
+package src.server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+import javax.management.*;
+import src.main.TetrisProtocol;
+
+/**
+ * <b>ServerMetrics</b> holds the runtime metrics of the server, and exposes
+ * them both as the attributes of a JMX MBean (src.server:type=ServerMetrics,
+ * for jconsole or any JMX client) and as plain text on a small HTTP endpoint
+ * bound to the loopback address (GET /metrics, one "name value" line per
+ * metric, which Prometheus can also scrape).
+ * <p>
+ * The metrics are:
+ * <ul>
+ * <li>command_*: the latency of each protocol command, from the moment its
+ * line or frame is read to the moment the connection's thread is done with it
+ * (a command relayed to the Match thread counts until it is posted). A command
+ * counts the same whether it came as a text line or as a binary frame; the
+ * lines that aren't a known command count as OTHER.</li>
+ * <li>db_*: the latency of each TetrisDatabase method, connection included</li>
+ * <li>matchmaking_wait: the time the matched players waited for an opponent
+ * (see Matchmaker)</li>
+ * <li>the gauges registered by the server, such as the active matches, the
+ * logged in users and the depth of the matchmaking queue</li>
+ * </ul>
+ * Each latency is a LatencyHistogram, in microseconds, shown as its count,
+ * sum, p50, p99, p999 and max. Recording one takes two reads of the clock and
+ * a few atomic increments, and allocates nothing.
+ */
+public class ServerMetrics {
+
+    /** The protocol commands timed, every other line counts as OTHER */
+    public static final String[] COMMANDS = { "HELLO", "BINARY", "REGISTER", "LOGIN", "LEADERBOARD", "PLAY",
+            "WATCH", "UNWATCH", "MOVE", "BOARD", "BOARD_DELTA", "SEND", "LOSE", "WIN", "TICK", "APPLY", "RESYNC",
+            "PONG", "RESUME", "OTHER" };
+
+    /** The name of the MBean */
+    public static final String MBEAN_NAME = "src.server:type=ServerMetrics";
+
+    /** The prefix of the metric names on the HTTP endpoint */
+    public static final String PREFIX = "tetris_";
+
+    private static final Map<String, LatencyHistogram> commands = new HashMap<String, LatencyHistogram>(); /** The latency of each command, never changed once filled */
+    private static final LatencyHistogram[] frames = new LatencyHistogram[16]; /** The latency of the command of each frame opcode */
+    private static final ConcurrentSkipListMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>(); /** Every latency, by metric name */
+    private static final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>(); /** The gauges, by metric name */
+    private static HttpServer http;  /** Serves the text endpoint, null if it isn't running */
+
+    static {
+        for (String command : COMMANDS)
+            commands.put(command, histogram("command_" + command));
+        frames[TetrisProtocol.MOVE] = commands.get("MOVE");
+        frames[TetrisProtocol.BOARD] = commands.get("BOARD");
+        frames[TetrisProtocol.BOARD_DELTA] = commands.get("BOARD_DELTA");
+        frames[TetrisProtocol.SEND] = commands.get("SEND");
+        frames[TetrisProtocol.LOSE] = commands.get("LOSE");
+        frames[TetrisProtocol.WIN] = commands.get("WIN");
+        frames[TetrisProtocol.TICK] = commands.get("TICK");
+        frames[TetrisProtocol.APPLY] = commands.get("APPLY");
+        frames[TetrisProtocol.RESYNC] = commands.get("RESYNC");
+    }
+
+    /**
+     * Gets a latency histogram, creating it if it doesn't exist
+     * @param name The name of the metric, such as "command_MOVE"
+     * @return The histogram
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Shows a latency histogram kept elsewhere, such as the waits of the
+     * Matchmaker
+     * @param name The name of the metric
+     * @param h The histogram
+     */
+    public static void register(String name, LatencyHistogram h) {
+        histograms.put(name, h);
+    }
+
+    /**
+     * Shows a value read when the metrics are, such as the number of active
+     * matches
+     * @param name The name of the metric
+     * @param value Reads the value, from any thread
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Counts a command handled by a connection
+     * @param command The command, the first word of its line
+     * @param startNanos When its line was read, from System.nanoTime()
+     */
+    public static void command(String command, long startNanos) {
+        LatencyHistogram h = commands.get(command);
+        (h == null ? commands.get("OTHER") : h).recordSince(startNanos);
+    }
+
+    /**
+     * Counts a command handled by a connection, sent as a binary frame
+     * @param opcode The opcode of the frame
+     * @param startNanos When the frame was read, from System.nanoTime()
+     */
+    public static void frame(int opcode, long startNanos) {
+        LatencyHistogram h = (opcode >= 0 && opcode < frames.length) ? frames[opcode] : null;
+        (h == null ? commands.get("OTHER") : h).recordSince(startNanos);
+    }
+
+    /**
+     * Counts a call to the database
+     * @param method The name of the TetrisDatabase method
+     * @param startNanos When the method was called, from System.nanoTime()
+     */
+    public static void database(String method, long startNanos) {
+        histogram("db_" + method).recordSince(startNanos);
+    }
+
+    /**
+     * Reads every metric
+     * @return The values, by name, in order: the gauges, then the count, sum,
+     * percentiles and max of each histogram
+     */
+    public static LinkedHashMap<String, Long> snapshot() {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+            try {
+                values.put(g.getKey(), g.getValue().getAsLong());
+            } catch (RuntimeException e) {
+                //the state behind the gauge isn't there yet
+            }
+        }
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            String name = e.getKey();
+            LatencyHistogram h = e.getValue();
+            values.put(name + "_count", h.getCount());
+            values.put(name + "_sum_us", h.getSum());
+            values.put(name + "_p50_us", h.percentile(0.5));
+            values.put(name + "_p99_us", h.percentile(0.99));
+            values.put(name + "_p999_us", h.percentile(0.999));
+            values.put(name + "_max_us", h.getMax());
+        }
+        return values;
+    }
+
+    /**
+     * Formats every metric as the text of the HTTP endpoint
+     * @return One "name value" line per metric, each name starting with PREFIX
+     */
+    public static String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : snapshot().entrySet())
+            sb.append(PREFIX).append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Registers the MBean, and starts the HTTP endpoint. The server runs
+     * without them if they can't be started.
+     * @param port The port of the HTTP endpoint on the loopback address, 0
+     * for no endpoint
+     */
+    public static synchronized void start(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(new MBean(), name);
+        } catch (Exception e) {
+            ServerLog.info(ServerLog.Event.SERVER, "METRICS", "MBean not registered,", e);
+        }
+
+        if (port <= 0 || http != null)
+            return;
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = format().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            ServerLog.info(ServerLog.Event.SERVER, "METRICS", "Serving the metrics on http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            http = null;
+            ServerLog.info(ServerLog.Event.SERVER, "METRICS", "HTTP endpoint not started,", e);
+        }
+    }
+
+    /**
+     * <b>MBean</b> shows every metric of the snapshot as a read-only Long
+     * attribute
+     */
+    private static class MBean implements DynamicMBean {
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                if (values.containsKey(a))
+                    list.add(new Attribute(a, values.get(a)));
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(action));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : snapshot().keySet())
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false));
+            return new MBeanInfo(ServerMetrics.class.getName(), "The runtime metrics of the Tetris server",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
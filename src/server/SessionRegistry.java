@@ -0,0 +1,244 @@
+package src.server;
+
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <b>SessionRegistry</b> lets a client whose connection dropped pick up its
+ * login and its game on a new connection, without logging in again.
+ * <p>
+ * Every login of a client that can resume (protocol version 6 or newer) opens
+ * a session, identified by a random token sent to the client. When the
+ * connection closes, the session is parked instead of being ended: the user
+ * stays logged in and their game keeps running for GRACE_MILLIS. A client
+ * that reconnects within that window sends the token, and its new connection
+ * takes the place of the parked one. Once the window has passed, the session
+ * expires, and is ended as if the connection had just closed.
+ * @param <S> The type of the sessions, the connections of the users
+ */
+public class SessionRegistry<S extends SessionRegistry.Session> {
+
+    /** The time a closed connection's login and game are kept for the client to resume them */
+    public static long GRACE_MILLIS = 15000;
+
+    /** The number of random bytes of a token */
+    public static int TOKEN_BYTES = 16;
+
+    /**
+     * <b>Session</b> is the connection of a logged in user
+     */
+    public interface Session {
+
+        /**
+         * Gets the name of the user
+         * @return The username
+         */
+        String getName();
+
+        /**
+         * Closes the connection, whose client has reconnected on another one.
+         * The connection is then parked as usual.
+         */
+        void kill();
+
+        /**
+         * Ends the session once it has been parked for GRACE_MILLIS without
+         * being resumed: logs the user out and forfeits their game
+         */
+        void expire();
+    }
+
+    private HashMap<String, S> sessions;                 /** The open sessions, by token */
+    private HashMap<String, ScheduledFuture<?>> parked;  /** The expiry of each parked session, by token */
+    private ScheduledExecutorService timer;              /** Expires the parked sessions */
+    private SecureRandom random;                         /** Generates the tokens */
+    private AtomicLong numParked;                        /** The total number of sessions parked */
+    private AtomicLong numResumed;                       /** The total number of sessions resumed */
+    private AtomicLong numExpired;                       /** The total number of sessions expired */
+
+    /**
+     * Creates an instance of the SessionRegistry
+     */
+    public SessionRegistry() {
+        sessions = new HashMap<String, S>();
+        parked = new HashMap<String, ScheduledFuture<?>>();
+        random = new SecureRandom();
+        numParked = new AtomicLong();
+        numResumed = new AtomicLong();
+        numExpired = new AtomicLong();
+
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SessionRegistry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Opens the session of a user who has just logged in
+     * @param s The session
+     * @return The token of the session, to be sent to the client
+     */
+    public String open(S s) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        synchronized (this) {
+            sessions.put(token, s);
+        }
+        return token;
+    }
+
+    /**
+     * Ends a session right away, when its connection closes without being
+     * parked
+     * @param token The token of the session
+     */
+    public synchronized void close(String token) {
+        sessions.remove(token);
+        ScheduledFuture<?> expiry = parked.remove(token);
+        if (expiry != null)
+            expiry.cancel(false);
+    }
+
+    /**
+     * Parks a session whose connection has closed, until it is resumed or
+     * expires
+     * @param token The token of the session
+     * @return True if the session is parked, false if it isn't open
+     */
+    public synchronized boolean park(String token) {
+        if (!sessions.containsKey(token) || parked.containsKey(token))
+            return false;
+        parked.put(token, timer.schedule(() -> expire(token), GRACE_MILLIS, TimeUnit.MILLISECONDS));
+        numParked.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Resumes a parked session on a new connection, which takes its place
+     * under the same token. A session whose connection is still open (its
+     * client reconnected before the server noticed the old connection was
+     * gone) is closed, so that the next attempt finds it parked.
+     * @param token The token of the session
+     * @param replacement The new connection
+     * @return The parked session, null if it isn't parked
+     */
+    public S resume(String token, S replacement) {
+        S open;
+        synchronized (this) {
+            ScheduledFuture<?> expiry = parked.remove(token);
+            if (expiry != null) {
+                expiry.cancel(false);
+                numResumed.incrementAndGet();
+                return sessions.put(token, replacement);
+            }
+            open = sessions.get(token);
+        }
+        if (open != null)
+            open.kill();
+        return null;
+    }
+
+    /**
+     * Checks if a session is open, parked or not
+     * @param token The token of the session
+     * @return True if the session hasn't ended
+     */
+    public synchronized boolean isOpen(String token) {
+        return sessions.containsKey(token);
+    }
+
+    /**
+     * Expires the parked session of a user right away, when the user logs in
+     * again with their password instead of resuming it
+     * @param username The username
+     * @return True if a parked session of the user was expired
+     */
+    public boolean expireUser(String username) {
+        String token = null;
+        synchronized (this) {
+            for (String t : parked.keySet()) {
+                if (username.equals(sessions.get(t).getName())) {
+                    token = t;
+                    break;
+                }
+            }
+        }
+        return token != null && expire(token);
+    }
+
+    /**
+     * Expires a parked session, unless it has been resumed in the meantime
+     * @param token The token of the session
+     * @return True if the session was expired
+     */
+    private boolean expire(String token) {
+        S s;
+        synchronized (this) {
+            ScheduledFuture<?> expiry = parked.remove(token);
+            if (expiry == null)
+                return false;
+            expiry.cancel(false);
+            s = sessions.remove(token);
+        }
+        numExpired.incrementAndGet();
+        ServerLog.info(ServerLog.Event.AUTH, "SESSIONS", "Session expired, User", s.getName());
+        try {
+            s.expire();
+        } catch (RuntimeException e) {
+            ServerLog.info(ServerLog.Event.AUTH, "SESSIONS", "expiry failed,", e);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of sessions parked right now
+     * @return The number of sessions waiting to be resumed
+     */
+    public synchronized int getNumWaiting() {
+        return parked.size();
+    }
+
+    /**
+     * Gets the total number of sessions parked
+     * @return The number of connections closed with a session
+     */
+    public long getNumParked() {
+        return numParked.get();
+    }
+
+    /**
+     * Gets the total number of sessions resumed
+     * @return The number of sessions resumed
+     */
+    public long getNumResumed() {
+        return numResumed.get();
+    }
+
+    /**
+     * Gets the total number of sessions expired
+     * @return The number of sessions expired
+     */
+    public long getNumExpired() {
+        return numExpired.get();
+    }
+
+    /**
+     * Stops expiring the sessions
+     */
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    /**
+     * toString() function for the SessionRegistry
+     * @return The String representation of the counters
+     */
+    public String toString() {
+        return "waiting=" + getNumWaiting() + " parked=" + getNumParked() + " resumed=" + getNumResumed()
+                + " expired=" + getNumExpired();
+    }
+}
@@ -0,0 +1,119 @@
+package src.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <b>SocketOutput</b> is the output stream of a blocking socket, whose writes
+ * never block. The bytes flushed to it are queued, and a thread of its own
+ * writes them to the socket, so that the threads sending to a client (the
+ * Match, the TickFlusher, the ConnectionReaper, the spectators' fan-out) never
+ * wait on that client. A client that stops reading only stalls its own writer
+ * thread, and its backlog grows until the connection is closed; the
+ * ConnectionReaper closes a client that doesn't answer its PINGs.
+ * <p>
+ * In the NIO server mode the connections have NioConnection.Output instead,
+ * which queues its bytes for the event loop the same way.
+ */
+class SocketOutput extends OutputStream {
+
+    /** Stops the writer thread once it reaches it in the queue */
+    private static final byte[] END = new byte[0];
+
+    private Socket socket;                  /** The socket connected with the client */
+    private OutputStream out;               /** The output stream of the socket, only used by the writer thread */
+    private ByteArrayOutputStream buffer;   /** The bytes written since the last flush */
+    private LinkedBlockingQueue<byte[]> pending; /** The flushed bytes not yet written to the socket */
+    private AtomicLong pendingBytes;        /** The number of bytes in pending */
+    private volatile boolean closed;        /** True once the connection has closed */
+
+    /**
+     * Creates an instance of the SocketOutput, and starts its writer thread
+     * @param socket The socket connected with the client
+     * @param executor Runs the writer thread, one task per connection (a
+     * virtual thread in the virtual thread mode), or null for a daemon thread
+     * @param name The name of the connection, for readability in debug prints
+     * @throws IOException If the socket is closed
+     */
+    public SocketOutput(Socket socket, Executor executor, String name) throws IOException {
+        this.socket = socket;
+        out = socket.getOutputStream();
+        buffer = new ByteArrayOutputStream();
+        pending = new LinkedBlockingQueue<byte[]>();
+        pendingBytes = new AtomicLong();
+        closed = false;
+
+        if (executor != null)
+            executor.execute(this::drain);
+        else {
+            Thread t = new Thread(this::drain, name + "-Output");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public synchronized void write(int b) {
+        buffer.write(b);
+    }
+
+    public synchronized void write(byte[] b, int off, int len) {
+        buffer.write(b, off, len);
+    }
+
+    /**
+     * Hands the bytes written since the last flush to the writer thread
+     */
+    public synchronized void flush() {
+        if (buffer.size() == 0)
+            return;
+        if (!closed) {
+            byte[] bytes = buffer.toByteArray();
+            pendingBytes.addAndGet(bytes.length);
+            pending.add(bytes);
+        }
+        buffer.reset();
+    }
+
+    /**
+     * Gets the number of bytes queued for the client, which the client hasn't
+     * taken yet
+     * @return The number of bytes
+     */
+    long getBacklog() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * Closes the socket, from any thread, and stops the writer thread. The
+     * bytes still queued are dropped.
+     */
+    public void close() {
+        closed = true;
+        pending.clear();
+        pendingBytes.set(0);
+        pending.add(END);
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * The loop of the writer thread: writes the queued bytes to the socket
+     * until the connection closes. A write error closes the socket, and the
+     * reading side then cleans up as usual.
+     */
+    private void drain() {
+        try {
+            byte[] bytes;
+            while ((bytes = pending.take()) != END) {
+                out.write(bytes);
+                pendingBytes.addAndGet(-bytes.length);
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+}
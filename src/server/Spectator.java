@@ -0,0 +1,172 @@
+package src.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+import src.main.TetrisProtocol;
+
+/**
+ * <b>Spectator</b> is a client watching a Match. The Match encodes each event
+ * once, and offers the same Encoded line to all of its spectators; every
+ * spectator has its own bounded queue, drained into the client's connection by
+ * the spectator threads. The Match thread therefore never writes to, or waits
+ * on, a spectator's connection, however many there are and however slow they
+ * are.
+ * <p>
+ * A spectator whose queue is full has fallen behind: its queue is emptied, and
+ * the Match offers it the current boards to start again from. In the NIO mode,
+ * where writing to a connection never blocks, the queue also stops draining
+ * while more than MAX_BACKLOG bytes wait for the client to take them, so that a
+ * slow spectator falls behind in its own queue instead of piling up output.
+ */
+public class Spectator {
+
+    /** The maximum number of events waiting to be sent to a spectator */
+    public static int MAX_QUEUE = 256;
+
+    /** The number of threads sending the events to the spectators */
+    public static int NUM_THREADS = 2;
+
+    /** The number of bytes waiting for a spectator's client past which its queue stops draining */
+    public static long MAX_BACKLOG = 65536;
+
+    /** The maximum number of events sent in a row to a spectator, before letting the other spectators of the thread run */
+    public static int MAX_BATCH = 64;
+
+    private static ExecutorService executor;  /** The threads sending the events to the spectators */
+    private static AtomicLong numResets = new AtomicLong(); /** The number of times a spectator fell behind */
+
+    private TetrisProtocol.Writer out;        /** The output stream of the spectator's client */
+    private LongSupplier backlog;             /** The number of bytes waiting for the client, null if writing blocks instead */
+    private ArrayBlockingQueue<TetrisProtocol.Encoded> queue; /** The events waiting to be sent */
+    private AtomicBoolean scheduled;          /** True while the queue is queued on or being drained by the executor */
+    private Runnable drainTask;               /** Drains the queue */
+    private volatile Match match;             /** The match being watched, null if none */
+    private volatile boolean closed;          /** True once the client has disconnected */
+
+    /**
+     * Creates an instance of the Spectator
+     * @param out The output stream of the spectator's client
+     * @param backlog The number of bytes waiting for the client, null if
+     * writing to the client blocks instead
+     */
+    public Spectator(TetrisProtocol.Writer out, LongSupplier backlog) {
+        this.out = out;
+        this.backlog = backlog;
+        queue = new ArrayBlockingQueue<TetrisProtocol.Encoded>(MAX_QUEUE);
+        scheduled = new AtomicBoolean(false);
+        drainTask = this::drain;
+        match = null;
+        closed = false;
+    }
+
+    /**
+     * Gets the executor of the spectators, creating the threads on the first use
+     */
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            AtomicInteger n = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(NUM_THREADS, r -> {
+                Thread t = new Thread(r, "Spectators-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Gets the number of times a spectator fell behind and was sent the current
+     * boards again, since the server started
+     * @return The number of resets
+     */
+    public static long getNumResets() {
+        return numResets.get();
+    }
+
+    /**
+     * Gets the match being watched
+     * @return The Match, null if none
+     */
+    Match getMatch() {
+        return match;
+    }
+
+    /**
+     * Sets the match being watched
+     * @param m The Match, null if none
+     */
+    void setMatch(Match m) {
+        match = m;
+    }
+
+    /**
+     * Stops watching a match, unless another one is watched already
+     * @param m The Match
+     */
+    void left(Match m) {
+        if (match == m)
+            match = null;
+    }
+
+    /**
+     * Queues an event to be sent. Never blocks.
+     * @param line The encoded event
+     * @return True if the event was queued or the spectator has gone, false if
+     * the queue is full
+     */
+    boolean offer(TetrisProtocol.Encoded line) {
+        if (closed)
+            return true;
+        if (!queue.offer(line))
+            return false;
+        if (scheduled.compareAndSet(false, true))
+            executor().execute(drainTask);
+        return true;
+    }
+
+    /**
+     * Drops the queued events, after the spectator fell behind
+     */
+    void reset() {
+        queue.clear();
+        numResets.incrementAndGet();
+    }
+
+    /**
+     * Stops sending the events, called when the client disconnects
+     */
+    void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * Writes the queued events to the client's connection, on the executor.
+     * The events are flushed with the rest of the client's output, at the next
+     * tick of output batching.
+     */
+    private void drain() {
+        for (int n = 0; n < MAX_BATCH; n++) {
+            //the next event finds the client caught up, or the queue full
+            if (isBacklogged())
+                break;
+            TetrisProtocol.Encoded line = queue.poll();
+            if (line == null)
+                break;
+            out.write(line);
+        }
+
+        scheduled.set(false);
+        //an event queued after the last poll finds scheduled still set, so it is picked up here
+        if (!queue.isEmpty() && !isBacklogged() && scheduled.compareAndSet(false, true))
+            executor().execute(drainTask);
+    }
+
+    /**
+     * Checks if too many bytes wait for the client
+     */
+    private boolean isBacklogged() {
+        return backlog != null && backlog.getAsLong() > MAX_BACKLOG;
+    }
+}
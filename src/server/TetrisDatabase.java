@@ -13,38 +13,177 @@ import java.sql.*;
  */
 public class TetrisDatabase {
 
+    /** The JDBC URL of the database */
+    public static String URL = "jdbc:sqlite:tetris.db";
+
     /** The minimum String size for a username/password */
     public static int MIN_ENTRY_SIZE = 5;
     
     /** The maximum String size for a username/password */
     public static int MAX_ENTRY_SIZE = 20;
 
+    /** The rating of a new user */
+    public static int INITIAL_RATING = 1200;
+
+    /** The most rating points a user can win or lose in one game */
+    public static int RATING_K = 32;
+
+    private static DatabasePool pool;  /** The connections to the database at URL, null until the first call */
+    private static GameResultWriter writer; /** Writes the results of the games, null until the first game */
+
+    //the statements run by the calls, prepared once per pooled connection
+    private static final String COUNT_USER = "SELECT COUNT(*) FROM USERS WHERE USERNAME = ?;";
+    private static final String INSERT_USER = "INSERT OR IGNORE INTO USERS" +
+                                                " (USERNAME, PASSWORD, NUM_WINS, NUM_GAMES, HIGHSCORE)" +
+                                                " VALUES (?, ?, 0, 0, 0);";
+    private static final String AUTHENTICATE = "SELECT COUNT(*) FROM USERS WHERE USERNAME = ? AND PASSWORD = ?;";
+    private static final String SELECT_STATS = "SELECT NUM_WINS, NUM_GAMES, HIGHSCORE FROM USERS WHERE USERNAME = ?;";
+    private static final String SELECT_RATING = "SELECT RATING FROM USERS WHERE USERNAME = ?;";
+    private static final String ADD_RATING = "UPDATE USERS SET RATING = RATING + ? WHERE USERNAME = ?;";
+    private static final String SUBTRACT_RATING = "UPDATE USERS SET RATING = MAX(0, RATING - ?) WHERE USERNAME = ?;";
+    private static final String ADD_GAMES = "UPDATE USERS SET NUM_GAMES = NUM_GAMES + ?," +
+                                                " NUM_WINS = NUM_WINS + ?," +
+                                                " HIGHSCORE = MAX(HIGHSCORE, ?)" +
+                                                " WHERE USERNAME = ?;";
+    private static final String INSERT_GAME = "INSERT INTO GAMES (USERNAME, WIN, SCORE, REPLAY, TIME)" +
+                                                " VALUES (?, ?, ?, ?, ?);";
+    private static final String SELECT_REPLAY_SCORES = "SELECT REPLAY, USERNAME, SCORE FROM GAMES" +
+                                                        " WHERE REPLAY IS NOT NULL;";
+    private static final String SELECT_LEADERBOARD = "SELECT USERNAME, HIGHSCORE FROM USERS" +
+                                                        " ORDER BY HIGHSCORE DESC, USERNAME ASC" +
+                                                        " LIMIT ?;";
+
+    static {
+        try{
+            Class.forName("org.sqlite.JDBC");
+        }
+        catch (ClassNotFoundException e){
+            //every call then fails to connect, and returns its failure value
+        }
+    }
+
     /** 
-     * Creates the SQL database if it doesn't exist
+     * Gets the pool of connections to the database, opening it on the first
+     * call, or again once URL has changed
+     * @return The pool of connections
+     */
+    private static synchronized DatabasePool pool(){
+        if(pool == null || !pool.getUrl().equals(URL)){
+            if(pool != null) pool.shutdown();
+            pool = new DatabasePool(URL);
+        }
+        return pool;
+    }
+
+    /** 
+     * Gets the number of connections to the database open
+     * @return The number of pooled connections, lent or idle
+     */
+    public static int getNumConnections(){
+        DatabasePool p;
+        synchronized(TetrisDatabase.class){
+            p = pool;
+        }
+        return (p == null) ? 0 : p.getNumOpen();
+    }
+
+    /** 
+     * Gets the writer of the results of the games, starting it on the first
+     * call
+     * @return The writer
+     */
+    public static synchronized GameResultWriter writer(){
+        if(writer == null) writer = new GameResultWriter();
+        return writer;
+    }
+
+    /** 
+     * Counts a call to the database for the ServerMetrics, and records it as
+     * a JFR event (see ServerEvents)
+     * @param method The name of the method called
+     * @param start When the method was called, from System.nanoTime()
+     */
+    private static void called(String method, long start){
+        ServerMetrics.database(method, start);
+        ServerEvents.sql(method, start);
+    }
+
+    /** 
+     * Creates the SQL database if it doesn't exist, and adds the RATING
+     * column to a database created before it existed
      * @return True if the database was successfully created, false
      * otherwise
      */
     public static boolean createDB(){
-        Connection c = null;
-        Statement stmt = null;
-        try{
-            Class.forName("org.sqlite.JDBC");
-            c = DriverManager.getConnection("jdbc:sqlite:tetris.db");
-            stmt = c.createStatement();
+        long start = System.nanoTime();
+        boolean created;
+        try (DatabasePool.Handle h = pool().borrow(); Statement stmt = h.getConnection().createStatement()){
             String cmd = "CREATE TABLE USERS (" +
                             " USERNAME  CHAR(50) PRIMARY KEY NOT NULL, " +
                             " PASSWORD  INT                  NOT NULL, " +  //hashed
                             " NUM_WINS  INT                  NOT NULL, " + 
                             " NUM_GAMES INT                  NOT NULL, " + 
-                            " HIGHSCORE INT                  NOT NULL);"; 
+                            " HIGHSCORE INT                  NOT NULL, " + 
+                            " RATING    INT                  NOT NULL DEFAULT " + INITIAL_RATING + ");"; 
+            stmt.executeUpdate(cmd);
+            created = true;
+        }
+        catch (Exception e){
+            created = false;
+        }
+        if(!created) addRatingColumn();
+        createGamesTable();
+        called("createDB", start);
+        return created;
+    }
+
+    /** 
+     * Creates the GAMES table if it doesn't exist. It holds one row per
+     * player of every game, with the replay file the game was recorded to
+     * (see ReplayRecorder), so that the replays can be checked against it.
+     * @return True if the table exists, false otherwise
+     */
+    public static boolean createGamesTable(){
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow(); Statement stmt = h.getConnection().createStatement()){
+            String cmd = "CREATE TABLE IF NOT EXISTS GAMES (" +
+                            " ID        INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                            " USERNAME  CHAR(50)            NOT NULL, " +
+                            " WIN       INT                 NOT NULL, " +
+                            " SCORE     INT                 NOT NULL, " +
+                            " REPLAY    CHAR(100), " +     //null if the game wasn't recorded
+                            " TIME      INT                 NOT NULL);";  //ms since the epoch
             stmt.executeUpdate(cmd);
-            stmt.close();
-            c.close();
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS GAMES_REPLAY ON GAMES (REPLAY);");
             return true;
         }
         catch (Exception e){
             return false;
         }
+        finally{
+            called("createGamesTable", start);
+        }
+    }
+
+    /** 
+     * Adds the RATING column to a database created before it existed, every
+     * user starting at the initial rating
+     * @return True if the column was added, false if it already exists
+     */
+    public static boolean addRatingColumn(){
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow(); Statement stmt = h.getConnection().createStatement()){
+            String cmd = "ALTER TABLE USERS ADD COLUMN" +
+                            " RATING INT NOT NULL DEFAULT " + INITIAL_RATING + ";";
+            stmt.executeUpdate(cmd);
+            return true;
+        }
+        catch (Exception e){
+            return false;
+        }
+        finally{
+            called("addRatingColumn", start);
+        }
     }
 
     /**
@@ -95,40 +234,21 @@ public class TetrisDatabase {
      */
     public static boolean addUser(String username, int password){
         if(!isValidEntry(username)) return false;
-        Connection c = null;
-        Statement stmt = null;
-        try{
-            Class.forName("org.sqlite.JDBC");
-            c = DriverManager.getConnection("jdbc:sqlite:tetris.db");
-            stmt = c.createStatement();
-
-            //gets the number of users with the same username 
-            //(should be 0 if the username isn't taken, and 1 if it is)
-            String cmd = "SELECT COUNT(*) FROM USERS WHERE" +
-                            " USERNAME = '" + username + "';";
-            ResultSet r = stmt.executeQuery(cmd);
-
-            //if the user has not existed before, add to the database
-            if(r.getInt(1) == 0){
-                cmd = "INSERT INTO USERS VALUES (" +
-                        "'" + username + "'," +
-                        " " + password + "," +
-                        " 0, 0, 0);";
-                stmt.executeUpdate(cmd);
-                stmt.close();
-                c.close();
-                return true;                
-            }
-            //the username exists, register failed
-            else{
-                stmt.close();
-                c.close();
-                return false;
-            }
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow()){
+            //adds the user, unless the username is taken
+            //(a single statement, so that two registrations of the same username can't both pass)
+            PreparedStatement stmt = h.prepare(INSERT_USER);
+            stmt.setString(1, username);
+            stmt.setInt(2, password);
+            return stmt.executeUpdate() == 1;
         }
         catch (Exception e){
             return false;
         }
+        finally{
+            called("addUser", start);
+        }
     }
     
     /** 
@@ -150,30 +270,23 @@ public class TetrisDatabase {
      */
     public static boolean authenticateUser(String username, int password){        
         if(!isValidEntry(username)) return false;
-        Connection c = null;
-        Statement stmt = null;
-        try{
-            Class.forName("org.sqlite.JDBC");
-            c = DriverManager.getConnection("jdbc:sqlite:tetris.db");
-            stmt = c.createStatement();
-
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow()){
             //gets the number of users with the same username and password
-            //(should be 0 if the user credentials are correct, and 1 if they aren't)
-            String cmd = "SELECT COUNT(*) FROM USERS WHERE" +
-                            " USERNAME = '" + username + "'" +
-                            " AND" +
-                            " PASSWORD = " + password + ";";
-
-            ResultSet r = stmt.executeQuery(cmd);
-            
-            boolean authCorrect = r.getInt(1) != 0;
-            stmt.close();
-            c.close();
-            return authCorrect;
+            //(should be 1 if the user credentials are correct, and 0 if they aren't)
+            PreparedStatement stmt = h.prepare(AUTHENTICATE);
+            stmt.setString(1, username);
+            stmt.setInt(2, password);
+            try (ResultSet r = stmt.executeQuery()){
+                return r.next() && r.getInt(1) != 0;
+            }
         }
         catch (Exception e){
             return false;
         }
+        finally{
+            called("authenticateUser", start);
+        }
     }
     
     /** 
@@ -183,43 +296,104 @@ public class TetrisDatabase {
      * [1] is the total number of games, and [2] is the high score
      */
     public static int[] getStats(String username){
-        Connection c = null;
-        Statement stmt = null;
-        try{
-            Class.forName("org.sqlite.JDBC");
-            c = DriverManager.getConnection("jdbc:sqlite:tetris.db");
-            stmt = c.createStatement();
-
-            //gets the number of wins
-            String cmd = "SELECT NUM_WINS FROM USERS" + 
-                            " WHERE USERNAME = '" + username + "';";
-            ResultSet r = stmt.executeQuery(cmd);
-            int numwins = r.getInt(1);
-
-            //gets the total number of games played
-            cmd = "SELECT NUM_GAMES FROM USERS" + 
-                    " WHERE USERNAME = '" + username + "';";
-            r = stmt.executeQuery(cmd);
-            int numgames = r.getInt(1);
-
-            //gets the highscore
-            cmd = "SELECT HIGHSCORE FROM USERS" + 
-                    " WHERE USERNAME = '" + username + "';";
-            r = stmt.executeQuery(cmd);
-            int highscore = r.getInt(1);
-
-            stmt.close();
-            c.close();
-
-            int[] stats = new int[3];
-            stats[0] = numwins;
-            stats[1] = numgames;
-            stats[2] = highscore;
-            return stats;
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow()){
+            //gets the number of wins, the total number of games played and the highscore in one row
+            PreparedStatement stmt = h.prepare(SELECT_STATS);
+            stmt.setString(1, username);
+            try (ResultSet r = stmt.executeQuery()){
+                if(!r.next()) return null;
+
+                int[] stats = new int[3];
+                stats[0] = r.getInt(1);
+                stats[1] = r.getInt(2);
+                stats[2] = r.getInt(3);
+                return stats;
+            }
         }
         catch (Exception e){
             return null;
         }
+        finally{
+            called("getStats", start);
+        }
+    }
+
+    /** 
+     * Gets the rating of the requested user
+     * @param username The username of the user to get the rating of
+     * @return The rating of the user, the initial rating if it can't be read
+     */
+    public static int getRating(String username){
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow()){
+            return readRating(h, username);
+        }
+        catch (Exception e){
+            return INITIAL_RATING;
+        }
+        finally{
+            called("getRating", start);
+        }
+    }
+
+    /** 
+     * Updates the ratings of both users after a game, with the Elo formula:
+     * the winner takes from the loser RATING_K times the probability that the
+     * winner would have lost. The update is queued, and written by the
+     * GameResultWriter with the next batch of results, so the calling thread
+     * never waits on the database.
+     * @param winner The username of the user who won
+     * @param loser The username of the user who lost
+     */
+    public static void updateRatings(String winner, String loser){
+        long start = System.nanoTime();
+        try{
+            writer().rate(new GameResultWriter.Rating(winner, loser));
+        }
+        finally{
+            called("updateRatings", start);
+        }
+    }
+
+    /** 
+     * Moves the rating points of a game from the loser to the winner, within
+     * the transaction of a batch, so that the ratings it reads are the ones
+     * it updates
+     * @param h The connection of the batch
+     * @param r The rating change
+     * @throws SQLException If the ratings can't be read or written
+     */
+    private static void rate(DatabasePool.Handle h, GameResultWriter.Rating r) throws SQLException{
+        int winnerRating = readRating(h, r.winner);
+        int loserRating = readRating(h, r.loser);
+        double expected = 1 / (1 + Math.pow(10, (loserRating - winnerRating) / 400.0));
+        int delta = (int) Math.round(RATING_K * (1 - expected));
+
+        PreparedStatement stmt = h.prepare(ADD_RATING);
+        stmt.setInt(1, delta);
+        stmt.setString(2, r.winner);
+        stmt.executeUpdate();
+
+        stmt = h.prepare(SUBTRACT_RATING);
+        stmt.setInt(1, delta);
+        stmt.setString(2, r.loser);
+        stmt.executeUpdate();
+    }
+
+    /** 
+     * Reads the rating of a user on the given connection
+     * @param h The connection
+     * @param username The username of the user
+     * @return The rating of the user, the initial rating if the user doesn't exist
+     * @throws SQLException If the rating can't be read
+     */
+    private static int readRating(DatabasePool.Handle h, String username) throws SQLException{
+        PreparedStatement stmt = h.prepare(SELECT_RATING);
+        stmt.setString(1, username);
+        try (ResultSet r = stmt.executeQuery()){
+            return r.next() ? r.getInt(1) : INITIAL_RATING;
+        }
     }
 
     /** 
@@ -238,43 +412,159 @@ public class TetrisDatabase {
      * @param score The score the user received this game
      */
     public static void addGame(String username, boolean isWin, int score){
-        Connection c = null;
-        Statement stmt = null;
+        addGame(username, isWin, score, null);
+    }
+
+    /** 
+     * Adds the requested game to the database, with the given score and the
+     * replay file the game was recorded to
+     * @param username The username of the user to add game to
+     * @param isWin True if the user won this game, false otherwise
+     * @param score The score the user received this game
+     * @param replay The name of the replay file, null if the game wasn't recorded
+     */
+    public static void addGame(String username, boolean isWin, int score, String replay){
+        long start = System.nanoTime();
         try{
-            Class.forName("org.sqlite.JDBC");
-            c = DriverManager.getConnection("jdbc:sqlite:tetris.db");
-            stmt = c.createStatement();
+            writer().add(new GameResultWriter.Result(username, isWin, score, replay));
+        }
+        finally{
+            called("addGame", start);
+        }
+    }
 
-            //updates numgames
-            String cmd = "UPDATE USERS SET NUM_GAMES = NUM_GAMES + 1" +
-                            " WHERE USERNAME = '" + username + "';";
-            stmt.executeUpdate(cmd);
-            
-            //updates numwins if this game was a win
-            if(isWin){
-                cmd = "UPDATE USERS SET NUM_WINS = NUM_WINS + 1" +
-                        " WHERE USERNAME = '" + username + "';";
-                stmt.executeUpdate(cmd);
+    /** 
+     * Writes a batch of game results in one transaction: the results of each
+     * user are merged into a single update of their stats, every game is kept
+     * in the GAMES table, and the rating changes are applied in order. Called
+     * by the GameResultWriter.
+     * @param games The results, in the order the games ended
+     * @param ratings The rating changes, in the order the games ended
+     * @throws SQLException If the batch was rolled back, none of it written
+     */
+    public static void addGames(List<GameResultWriter.Result> games, List<GameResultWriter.Rating> ratings) throws SQLException{
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow()){
+            //merges the results by user: number of games, number of wins and best score
+            LinkedHashMap<String, int[]> totals = new LinkedHashMap<String, int[]>();
+            for(GameResultWriter.Result g : games){
+                int[] t = totals.computeIfAbsent(g.username, k -> new int[] { 0, 0, -1 });
+                t[0]++;
+                if(g.isWin) t[1]++;
+                t[2] = Math.max(t[2], g.score);
             }
 
-            //checks highscore and updates if this score is the new highscore
-            cmd = "SELECT HIGHSCORE FROM USERS" + 
-                    " WHERE USERNAME = '" + username + "';";
-            ResultSet r = stmt.executeQuery(cmd);
-            int currHS = r.getInt(1);
-            if(currHS < score){
-                cmd = "UPDATE USERS SET HIGHSCORE = " + score + 
-                        " WHERE USERNAME = '" + username + "';";
-                stmt.executeUpdate(cmd);
+            Connection c = h.getConnection();
+            c.setAutoCommit(false);
+            try{
+                PreparedStatement stmt = h.prepare(ADD_GAMES);
+                for(Map.Entry<String, int[]> t : totals.entrySet()){
+                    stmt.setInt(1, t.getValue()[0]);
+                    stmt.setInt(2, t.getValue()[1]);
+                    stmt.setInt(3, t.getValue()[2]);
+                    stmt.setString(4, t.getKey());
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+
+                //keeps the games themselves, to check their replays against
+                stmt = h.prepare(INSERT_GAME);
+                for(GameResultWriter.Result g : games){
+                    stmt.setString(1, g.username);
+                    stmt.setInt(2, g.isWin ? 1 : 0);
+                    stmt.setInt(3, g.score);
+                    stmt.setString(4, g.replay);
+                    stmt.setLong(5, g.time);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+
+                for(GameResultWriter.Rating r : ratings) rate(h, r);
+
+                c.commit();
+            }
+            catch (SQLException | RuntimeException e){
+                c.rollback();
+                throw e;
+            }
+            finally{
+                c.setAutoCommit(true);
             }
+        }
+        finally{
+            called("addGames", start);
+        }
+    }
+
+    /** 
+     * Tells whether a failed call may succeed if it is tried again: another
+     * writer held the database for longer than the busy timeout, or no pooled
+     * connection was free in time
+     * @param e The exception of the call
+     * @return True if the failure is transient, false if the call itself is at fault
+     */
+    public static boolean isTransient(SQLException e){
+        //SQLITE_BUSY and SQLITE_LOCKED, and their extended codes
+        int code = e.getErrorCode() & 0xFF;
+        return e instanceof SQLTransientException || code == 5 || code == 6;
+    }
 
-            stmt.close();
-            c.close();
+    /** 
+     * Waits until the results of the games added so far are written
+     */
+    public static void flushGames(){
+        try{
+            writer().flush();
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** 
+     * Copies the write-ahead log into the database file and syncs it, so
+     * that every commit so far survives a power loss
+     * @return True if the checkpoint was done, false otherwise
+     */
+    public static boolean checkpoint(){
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow(); Statement stmt = h.getConnection().createStatement()){
+            stmt.execute("PRAGMA wal_checkpoint(TRUNCATE);");
+            return true;
         }
         catch (Exception e){
+            return false;
+        }
+        finally{
+            called("checkpoint", start);
         }
     }
     
+    /** 
+     * Gets the scores recorded for the replayed games, by replay file
+     * @return A Map from the name of each replay file to the Pairs of its
+     * players, where the key of each Pair is the username, and the value is
+     * the score recorded for them, null if the database can't be read
+     */
+    public static Map<String, List<Pair<String, Integer>>> getReplayScores(){
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow(); ResultSet r = h.prepare(SELECT_REPLAY_SCORES).executeQuery()){
+            Map<String, List<Pair<String, Integer>>> scores = new HashMap<String, List<Pair<String, Integer>>>();
+            while(r.next()) {
+                scores.computeIfAbsent(r.getString(1), k -> new ArrayList<Pair<String, Integer>>())
+                        .add(new Pair<String, Integer>(r.getString(2), r.getInt(3)));
+            }
+            return scores;
+        }
+        catch (Exception e){
+            e.printStackTrace();
+        }
+        finally{
+            called("getReplayScores", start);
+        }
+        return null;
+    }
+
     /** 
      * Gets the default leaderboard, which displays the top 10 users
      * based on high score
@@ -294,35 +584,28 @@ public class TetrisDatabase {
      */
     public static Pair[] getLeaderboard(int n){
 
-        Connection c = null;
-        Statement stmt = null;
-        try{
-            Class.forName("org.sqlite.JDBC");
-            c = DriverManager.getConnection("jdbc:sqlite:tetris.db");
-            stmt = c.createStatement();
-
+        long start = System.nanoTime();
+        try (DatabasePool.Handle h = pool().borrow()){
             //takes the top n users, ordered by highscore
             //tiebreakers are handled by alphabetical order
-            String cmd = "SELECT USERNAME, HIGHSCORE FROM USERS" +
-            " ORDER BY HIGHSCORE DESC, USERNAME ASC" +
-            " LIMIT " + n + ";";
-            ResultSet r = stmt.executeQuery(cmd);
-            int currHS = r.getInt(1);
-
-            Pair[] leaderboard = new Pair[n];
-            int i = 0;
-            while(r.next()) {
-                leaderboard[i] = new Pair(r.getString(1), Integer.parseInt(r.getString(2)));
-                i++;
+            PreparedStatement stmt = h.prepare(SELECT_LEADERBOARD);
+            stmt.setInt(1, n);
+            try (ResultSet r = stmt.executeQuery()){
+                Pair[] leaderboard = new Pair[n];
+                int i = 0;
+                while(r.next()) {
+                    leaderboard[i] = new Pair(r.getString(1), r.getInt(2));
+                    i++;
+                }
+                return leaderboard;
             }
-
-            stmt.close();
-            c.close();
-            return leaderboard;
         }
         catch (Exception e){
             e.printStackTrace();
         }
+        finally{
+            called("getLeaderboard", start);
+        }
         return null;
     }
 
@@ -0,0 +1,199 @@
+package src.server;
+
+import java.net.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * <b>TetrisNioServer</b> is the non-blocking server mode of the TetrisServer.
+ * Instead of one thread per client, a single acceptor thread hands the accepted
+ * connections to a small fixed number of selector event loops, and each event
+ * loop drives the same TetrisServerHandler command logic for all of its
+ * connections. The memory cost per connection is a few small buffers instead of
+ * a whole thread stack.
+ * <p>
+ * The commands that wait on the database run on a small pool of workers
+ * instead, so that a slow query never holds up the other connections of an
+ * event loop (see TetrisServerHandler.setWorker()).
+ */
+public class TetrisNioServer implements Runnable {
+
+    private int port;                  /** The port to listen on */
+    private NioEventLoop[] loops;      /** The event loops serving the connections */
+    private AdmissionController admission; /** Decides which connections are served */
+    private ExecutorService worker;    /** Runs the commands of the connections that wait on the database */
+
+    private Matchmaker<TetrisServerHandler> matchmaker; /** Pairs the users waiting for a game */
+    private LinkedHashSet<String> loggedUsers;   /** Stores all the users that are currently logged in */
+    private Object loggedLock;                   /** Lock for the loggedUsers Set */
+
+    /**
+     * Creates an instance of the TetrisNioServer
+     * @param port The port to listen on
+     * @param numLoops The number of selector event loops to run
+     * @param admission Decides which connections are served, and which wait
+     * @param matchmaker The reference to the matchmaker
+     * @param lUsers The reference to the loggedUsers
+     * @param lLock The lock for the loggedUsers
+     */
+    public TetrisNioServer(int port, int numLoops, AdmissionController admission, Matchmaker<TetrisServerHandler> matchmaker, LinkedHashSet<String> lUsers, Object lLock) {
+        this.port = port;
+        this.loops = new NioEventLoop[numLoops];
+        this.admission = admission;
+        worker = Executors.newFixedThreadPool(TetrisServer.NIO_DB_WORKERS, r -> {
+            Thread t = new Thread(r, "NioWorker");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.matchmaker = matchmaker;
+        loggedUsers = lUsers;
+        loggedLock = lLock;
+    }
+
+    /**
+     * Gets the number of connections being served
+     * @return The number of served connections
+     */
+    public int getNumClients() {
+        return admission.getNumActive();
+    }
+
+    /**
+     * Starts the event loops, and then accepts connections on the calling
+     * thread, handing them to the event loops in round-robin order.
+     */
+    public void run() {
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(this);
+                Thread t = new Thread(loops[i], "NioLoop-" + i);
+                t.start();
+            }
+
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port), 1024);
+            ServerLog.info(ServerLog.Event.SERVER, "SERVER", "NIO mode, event loops:", loops.length);
+
+            long connId = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                ServerLog.info(ServerLog.Event.SERVER, "SERVER", "Client connected");
+
+                connId++;
+                String name = "Conn-" + connId;
+                NioEventLoop loop = loops[(int) (connId % loops.length)];
+                admission.admit(new ChannelCandidate(channel, unread -> loop.register(channel, name, unread)));
+            }
+        }
+        catch (IOException e) {
+            ServerLog.info(ServerLog.Event.SERVER, "SERVER", "NIO server stopped,", e);
+        }
+    }
+
+    /**
+     * Creates the TetrisServerHandler for a new connection
+     * @param name The name of the connection
+     * @param output The output stream to the client
+     * @param loop The event loop of the connection
+     * @return The new TetrisServerHandler
+     */
+    TetrisServerHandler newHandler(String name, OutputStream output, NioEventLoop loop) {
+        TetrisServerHandler h = new TetrisServerHandler(name, output, matchmaker, loggedUsers, loggedLock);
+        h.setWorker(worker, loop);
+        return h;
+    }
+
+    /**
+     * Called by the event loops when a connection has closed
+     */
+    void connectionClosed() {
+        admission.release();
+    }
+}
+
+/**
+ * ChannelCandidate is an accepted channel asking the AdmissionController to be
+ * served. The channel is still in blocking mode until it is registered with its
+ * event loop, so the short replies are written to it directly.
+ */
+class ChannelCandidate implements AdmissionController.Candidate {
+
+    /** The most bytes kept from a client while it waits, past this it isn't read until served */
+    private static final int MAX_UNREAD = 4096;
+
+    private SocketChannel channel;      /** The channel connected with this client */
+    private Consumer<byte[]> onStart;   /** Registers the channel with its event loop */
+    private ByteArrayOutputStream unread; /** What the client sent while waiting */
+
+    /**
+     * Creates an instance of the ChannelCandidate
+     * @param channel The channel connected with this client
+     * @param onStart Registers the channel with its event loop once it is
+     * admitted, with what the client sent while waiting
+     */
+    public ChannelCandidate(SocketChannel channel, Consumer<byte[]> onStart) {
+        this.channel = channel;
+        this.onStart = onStart;
+        unread = new ByteArrayOutputStream();
+    }
+
+    public synchronized void start() {
+        onStart.accept(unread.toByteArray());
+    }
+
+    public synchronized boolean isClosed() {
+        try {
+            //polls the channel in non-blocking mode, then puts it back for the replies
+            channel.configureBlocking(false);
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            int n;
+            while (unread.size() < MAX_UNREAD && (n = channel.read(buf)) != 0) {
+                if (n < 0) {
+                    channel.close();
+                    return true;
+                }
+                unread.write(buf.array(), 0, n);
+                buf.clear();
+            }
+            channel.configureBlocking(true);
+            return false;
+        } catch (IOException e) {
+            try {
+                channel.close();
+            } catch (IOException e2) {
+            }
+            return true;
+        }
+    }
+
+    public synchronized void busy(int position) {
+        writeLine("BUSY " + position);
+    }
+
+    public synchronized void reject() {
+        writeLine("FAILURE BUSY");
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Writes a single line to the client, before it is registered
+     * @param line The line to write
+     */
+    private void writeLine(String line) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining())
+                channel.write(buf);
+        } catch (IOException e) {
+        }
+    }
+}
@@ -3,11 +3,16 @@ package src.server;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /** 
  * <b>TetrisServer</b> is the centralized server for the Tetris app.
- * It will allow for up to MAX_CLIENTS client connections at a time, 
- * and will manage each client connection through a separate thread. 
+ * By default it will allow for up to MAX_CLIENTS client connections at a time, 
+ * and will manage each client connection through a separate thread. When 
+ * started with the "nio" argument, it instead serves the clients from a small
+ * fixed number of selector event loops (see TetrisNioServer), and when started 
+ * with the "virtual" argument, each client connection runs on a virtual thread.
  * @author Jennifer Zhang
  * @version 3.5
  */
@@ -16,474 +21,340 @@ public class TetrisServer {
     /** The maximum number of clients that can connect to the server at one time */
     public static int MAX_CLIENTS = 32;
 
-    /**
-     * The TetrisServer main function. It will run the centralized server code,
-     * and wait for new client connections. When a new client connects, it will 
-     * create a new thread for that client.
-     * @param args The command line arguments
-     */
-    public static void main(String[] args) {
-        try {
+    /** The maximum number of clients in the NIO server mode */
+    public static int MAX_NIO_CLIENTS = 16384;
 
-            int port = 8080;
-            ServerSocket s = new ServerSocket(port, MAX_CLIENTS);
-            
-            //matching queue and logged users, as well as their respective locks
-            LinkedList<TetrisServerHandler> matchmakingQueue = new LinkedList<TetrisServerHandler>(); 
-            LinkedHashSet<String> loggedUsers = new LinkedHashSet<String>();
-            Object queueLock = new Object();
-            Object loggedLock = new Object();
-            
-            //awaits for clients to connect, and when they do, creates a new thread to handle the connection
-            while (true) {
-		//exclude the main thread
-                if(Thread.activeCount()-1 < MAX_CLIENTS){
-                    Socket socket = s.accept();
-                    System.out.println("SERVER: Client connected");
-
-                    TetrisServerHandler serverHandler = new TetrisServerHandler(socket, matchmakingQueue, queueLock, loggedUsers, loggedLock);
-                    Thread t = new Thread(serverHandler);
-                    t.start();
-                }
-            }
-        }
-        catch (Exception e) {
-        }
-    }
-}
+    /** The number of selector event loops in the NIO server mode */
+    public static int NIO_EVENT_LOOPS = Math.max(2, Runtime.getRuntime().availableProcessors());
 
-/** 
- * TetrisServerHandler is the server handler for the TetrisServer class.
- * It is connected to one client at all times.
- */
-class TetrisServerHandler implements Runnable {
-    
-    private Socket socket;    /** The socket connected with this client */
-    private String tName;     /** The current thread name, for readability in debug prints */
-    private String user;      /** The username of the current client -- null if the client is not logged in */
-    
-    private LinkedHashSet<String> loggedUsers;   /** Stores all the users that are currently logged in */
-    private Object loggedLock;                   /** Lock for the loggedUsers Set */
-    private LinkedList<TetrisServerHandler> matchmakingQueue; /** The matchmaking queue for users waiting for a game */
-    private Object queueLock;                    /** Lock for the matchmakingQueue */
+    /** The number of threads running the commands that wait on the database in the NIO server mode */
+    public static int NIO_DB_WORKERS = DatabasePool.SIZE;
 
-    private boolean inQueue;   /** Boolean to check if the user is currently in queue */
-    private boolean inGame;    /** Boolean to check if the user is currently in game */
+    /** The maximum number of clients in the virtual thread server mode, MAX_CLIENTS on JDKs without virtual threads */
+    public static int MAX_VIRTUAL_CLIENTS = 10000;
 
-    private TetrisServerHandler opponent; /** Reference to the opponent's TetrisServerHandler, null if currently not in game */
-    
-    private PrintWriter out;   /** The output stream */
+    /** The maximum number of clients waiting for a free slot, past this they are rejected */
+    public static int MAX_WAITING_CLIENTS = 256;
 
-    /**
-     * Creates an instance of the TetrisServerHandler 
-     * @param sock The socket connected with this client
-     * @param mQueue The reference to the matchmakingQueue
-     * @param qLock The lock for the matchmakingQueue
-     * @param lUsers The reference to the loggedUsers
-     * @param lLock The lock for the loggedUsers
-     */
-    public TetrisServerHandler(Socket sock, LinkedList<TetrisServerHandler> mQueue, Object qLock, LinkedHashSet<String> lUsers, Object lLock) {
-        socket = sock;
-        user = null;
-        
-        loggedUsers = lUsers;
-        loggedLock = lLock;
-        matchmakingQueue = mQueue;
-        queueLock = qLock;
-
-        inQueue = false;
-        inGame = false;
-        opponent = null;
-    }
+    /** The length of a tick of output batching, 0 to flush every message right away */
+    public static int FLUSH_TICK_MILLIS = 8;
 
-    /**
-     * Gets the name of the user currently logged in
-     * @return The username of the current user
-     */
-    public String getName() {
-        return user;
-    }
+    /** The port of the metrics endpoint is the port of the server plus this, unless set by -Dtetris.metrics */
+    public static int METRICS_PORT_OFFSET = 100;
 
-    /**
-     * Attempts to register the requested user, called when the client sends 
-     * "REGISTER"
-     * @param line The lines sent, [1] is the username, [2] is the password
-     * @return True if the registration was successful, false otherwise
-     */
-    private boolean register(String[] line) {
-        String username = line[1];
-        int hashedPassword;
+    /** Decides which connections are served, and which wait or are rejected */
+    private static AdmissionController admission;
 
-        // getting the hashed password
-        try {
-            hashedPassword = Integer.parseInt(line[2]);
-        } catch (Exception e) {
-            // invalid password
-            if (!TetrisDatabase.isValidEntry(line[2])) {
-                out.println("FAILURE INVALID");
-                System.out.println(tName + ": REGISTER failed, credentials invalid");
-                return false;
-            }
-            hashedPassword = line[2].hashCode();
-        }
-
-        // invalid username
-        if (!TetrisDatabase.isValidEntry(username)) {
-            out.println("FAILURE INVALID");
-            System.out.println(tName + ": REGISTER failed, credentials invalid");
-            return false;
-        }
-
-        // username taken
-        if (!TetrisDatabase.addUser(username, hashedPassword)) {
-            out.println("FAILURE TAKEN");
-            System.out.println(tName + ": REGISTER failed, username taken");
-            return false;
-        } 
-        //successful registration
-        else {
-            user = username;
-            out.println("SUCCESS " + user + " 0 0 0");
-            System.out.println(tName + ": REGISTER success, User " + user);
-            return true;
-        }
-    }
+    /** Flushes the batched output of the connections once per tick, null if batching is off */
+    private static TickFlusher flusher;
 
-    /**
-     * Attempts to login with the given credentials, called when the client sends
-     * "LOGIN"
-     * @param line The lines sent, [1] is the username, [2] is the password
-     * @return True if the login was successful, false otherwise
-     */
-    private boolean login(String[] line) {
-        String username = line[1];
-        int hashedPassword;
+    /** Pairs the users waiting for a game */
+    private static Matchmaker<TetrisServerHandler> matchmaker;
 
-        // getting the hashed password
-        try {
-            hashedPassword = Integer.parseInt(line[2]);
-        } catch (Exception e) {
-            // invalid password
-            if (!TetrisDatabase.isValidEntry(line[2])) {
-                out.println("FAILURE INVALID");
-                System.out.println(tName + ": LOGIN failed, credentials invalid");
-                return false;
-            }
-            hashedPassword = line[2].hashCode();
-        }
+    /** Shares the matchmaking with the other servers of the cluster, null if the server runs alone */
+    private static ClusterNode cluster;
 
-        // invalid username
-        if (!TetrisDatabase.isValidEntry(username)) {
-            out.println("FAILURE INVALID");
-            System.out.println(tName + ": LOGIN failed, credentials invalid");
-            return false;
-        }
+    /** Closes the connections of the clients that have gone away */
+    private static ConnectionReaper reaper;
 
-        // username taken
-        if (!TetrisDatabase.authenticateUser(username, hashedPassword)) {
-            out.println("FAILURE INCORRECT");
-            System.out.println(tName + ": LOGIN failed, credentials incorrect");
-            return false;
-        } 
-        else {
-            synchronized(loggedLock){
-                //if the user is already logged in
-                if(loggedUsers.contains(username)){
-                    out.println("FAILURE LOGGED");
-                    System.out.println(tName + ": LOGIN failed, user already logged in");
-                    return false;
-                }
-                //successful login
-                else{
-                    loggedUsers.add(username);
-                    user = username;
-                    out.println("SUCCESS " + user + " " + getStatsStr());
-                    System.out.println(tName + ": LOGIN success, User " + user);
-                    return true;
-                }
-            }
-        }
-    }
+    /** Keeps the login and the game of a closed connection, for its client to resume them */
+    private static SessionRegistry<TetrisServerHandler> sessions;
 
-    /**
-     * Gets the String representation of the current user's stats
-     * @return The String representation of the user's stats
-     */
-    public String getStatsStr() {
-        int[] stats = TetrisDatabase.getStats(user);
-        return stats[0] + " " + stats[1] + " " + stats[2];
-    }
+    /** Runs the handlers and the output of the connections in the blocking modes, null in the NIO mode */
+    private static ExecutorService clientExecutor;
 
     /**
-     * Gets the leaderboard, which is based on high scores, called when the 
-     * client sends "LEADERBOARD"
-     * @param line The lines sent, line[1] is the optional parameter, which 
-     * will instead of showing the top 10 scores, will retrieve the top
-     * line[1] scores
+     * Gets the number of client connections currently being handled
+     * @return The number of connected clients
      */
-    private void leaderboard(String[] line) {
-        Pair[] lb;
-
-        //attempts to parse the optional parameter
-        try {
-            lb = TetrisDatabase.getLeaderboard(Integer.parseInt(line[1]));
-        } catch (Exception e) {
-            lb = TetrisDatabase.getLeaderboard();
-        }
-        
-        //sends the leaderboard
-        String output = "LEADERBOARD";
-        for (int i = 0; i < lb.length; i++) {
-            if(lb[i] == null) break;
-            output += " " + lb[i];
-        }
-        out.println(output);
-        System.out.println(tName + ": LEADERBOARD success");
+    public static int getNumClients() {
+        return (admission == null) ? 0 : admission.getNumActive();
     }
 
     /**
-     * Enters the user in the matchmaking queue, called when the client sends
-     * "PLAY"
+     * Gets the admission controller of the running server, which holds the
+     * accepted, waiting and rejected connection counts
+     * @return The admission controller, null if the server is not running
      */
-    private void play() {
-        synchronized (queueLock) {
-            //if the queue is empty, then the add to the and wait
-            if (matchmakingQueue.peek() == null) {
-                System.out.println(tName + ": PLAY awaiting, Added to matchmaking queue");
-                matchmakingQueue.add(this);
-                inQueue = true;
-            } 
-            //if not, match with the opponent
-            else {
-                opponent = matchmakingQueue.poll();
-            }
-        }
-
-        //matched with the opponent, generates the seed and sends to both clients
-        if (opponent != null) {
-            long seed = (new Random()).nextLong();
-            this.match(seed, opponent);
-            opponent.match(seed, this);
-        }
+    public static AdmissionController getAdmission() {
+        return admission;
     }
 
     /**
-     * Sends to the client that they've been matched with an opponent
-     * @param seed The seed both clients will use to randomly generate their pieces
-     * @param op The reference to the opponent's TetrisServerHandler
+     * Gets the flusher of the running server, which holds the messages per
+     * flush counts
+     * @return The flusher, null if the server is not running or batching is off
      */
-    public void match(long seed, TetrisServerHandler op) {
-        inQueue = false;
-        inGame = true;
-        opponent = op;
-        System.out.println(tName + ": MATCH success, opponent " + opponent.getName());
-        out.println("MATCH " + opponent.getName() + " " + opponent.getStatsStr() + " " + seed);
+    public static TickFlusher getFlusher() {
+        return flusher;
     }
 
     /**
-     * Tells the opponent that they have moved their piece, to update
-     * the opponent's opponent board. Called when the client sends "MOVE"
-     * @param keyPressed The keyCode of the key the client pressed
+     * Gets the matchmaker of the running server, which holds the queue depth
+     * and waiting time counts
+     * @return The matchmaker, null if the server is not running
      */
-    private void move(String keyPressed) {
-        opponent.opponentMove(keyPressed);
-        System.out.println(tName + ": MOVE success, " + keyPressed);
+    public static Matchmaker<TetrisServerHandler> getMatchmaker() {
+        return matchmaker;
     }
 
     /**
-     * Tells the client that the opponent has moved their piece, to update
-     * the client's opponent board. 
-     * @param keyPressed The keyCode of the key the opponent pressed
+     * Gets the reaper of the running server, which holds the number of
+     * connections it has closed
+     * @return The reaper, null if the server is not running
      */
-    public void opponentMove(String keyPressed) {
-        out.println("OPPONENT MOVE " + keyPressed);
-        System.out.println(tName + ": OPPONENT MOVE success, " + keyPressed);
+    public static ConnectionReaper getReaper() {
+        return reaper;
     }
 
     /**
-     * Sends the opponent their entire board, to update the opponent's 
-     * opponent board (to avoid synchronization errors). Called when the
-     * sends "BOARD"
-     * @param board The String representation of the client's board
+     * Gets the sessions of the running server, which the clients resume after
+     * a reconnect
+     * @return The session registry, null if the server is not running
      */
-    public void board(String board){
-        if(opponent != null){
-            opponent.opponentBoard(board);
-            System.out.println(tName + ": BOARD success, " + board);
-        }
+    public static SessionRegistry<TetrisServerHandler> getSessions() {
+        return sessions;
     }
 
     /**
-     * Sends the client the opponent's entire board, to update the client's 
-     * opponent board (to avoid synchronization errors). 
-     * @param board The String representation of the opponent's board
+     * Gets the executor of the connections in the blocking server modes, which
+     * also runs the writer thread of each connection (see SocketOutput)
+     * @return The executor, null in the NIO mode or if the server is not running
      */
-    public void opponentBoard(String board) {
-        out.println("BOARD " + board);
-        System.out.println(tName + ": BOARD success, " + board);
+    public static ExecutorService getClientExecutor() {
+        return clientExecutor;
     }
 
     /**
-     * Sends a randomized line to the opponent, called when the client sends
-     * "SEND"
+     * Gets the node of the cluster this server is part of
+     * @return The cluster node, null if the server runs alone
      */
-    private void send() {
-        String line = "XXXXXXXXXX";
-        
-        //30% chance of getting 1 hole
-        //40% chance of getting 2 holes
-        //30% chance of getting 3 holes
-        Random r = new Random();
-        Double p = r.nextDouble();
-        int numHoles = 0;
-        if(p < 0.3) numHoles = 1;
-        else if(p < 0.7) numHoles = 2;
-        else numHoles = 3;
-
-        //while there are still holes to add, add holes
-        while(numHoles != 0){
-            int i = r.nextInt(10);
-            if(line.charAt(i)== 'X'){
-                line = line.substring(0,i)+'.'+line.substring(i+1);
-                numHoles--;
-            }
-        }
-
-        //sends the line to the opponent
-        opponent.opponentSend(line);
-        out.println("SENT " + line);
-        System.out.println(tName + ": SEND success, " + line);
+    public static ClusterNode getCluster() {
+        return cluster;
     }
 
     /**
-     * Sends the client that the opponent has sent a line
-     * @param lineSent The String representation of the line the opponent sent
-     * the client
+     * Creates the executor that runs one TetrisServerHandler per task. In the 
+     * virtual thread mode, each task gets its own virtual thread; the lookup is 
+     * done reflectively, so the server still compiles and runs on JDKs without 
+     * virtual threads, falling back to a cached pool of platform threads.
+     * @param virtual True for the virtual thread mode, false for platform threads
+     * @return The executor for the client connections
      */
-    public void opponentSend(String lineSent) {
-        out.println("OPPONENT SEND " + lineSent);
-        System.out.println(tName + ": OPPONENT SEND success, " + lineSent);
+    public static ExecutorService newClientExecutor(boolean virtual) {
+        ExecutorService executor = virtual ? newVirtualExecutor() : null;
+        if (executor != null)
+            return executor;
+        if (virtual)
+            ServerLog.info(ServerLog.Event.SERVER, "SERVER", "Virtual threads unavailable, using platform threads");
+        return Executors.newCachedThreadPool();
     }
 
     /**
-     * Tells the opponent that the client has lost, and updates the database for
-     * this current game. Called with the client sends "LOSE"
-     * @param line The lines sent, line[1] is an optional parameter that contains
-     * the user's score for this game
+     * Creates an executor that runs each task on its own virtual thread
+     * @return The executor, null if the JDK has no virtual threads
      */
-    private void lose(String[] line) {
-
-        //tells the opponent that the user has lost before disconnecting
-        if(opponent != null)
-            opponent.opponentLose();
-        opponent = null;
-        inGame = false;
-        System.out.println(tName + ": LOSE success");
-
-        // updates the database with this game
+    private static ExecutorService newVirtualExecutor() {
         try {
-            int score = Integer.parseInt(line[1]);
-            TetrisDatabase.addGame(user, false, score);
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
         } catch (Exception e) {
-            TetrisDatabase.addGame(user, false);
+            return null;
         }
     }
 
     /**
-     * Tells the client that the opponent has lost
+     * The TetrisServer main function. It will run the centralized server code,
+     * and wait for new client connections. When a new client connects, it will 
+     * create a new thread for that client, unless the server was started in 
+     * NIO mode.
+     * @param args The command line arguments, args[0] is the optional server
+     * mode ("thread", "virtual" or "nio", defaults to "thread"), args[1] is the
+     * optional port (defaults to 8080), and args[2] is the optional host:port of
+     * a ClusterCoordinator, to run as a node of a cluster, whose relay listens
+     * on the port args[3] (defaults to the port plus 1000)
      */
-    public void opponentLose() {
-        opponent = null;
-        out.println("OPPONENT LOSE");
-        System.out.println(tName + ": OPPONENT LOSE success");
-    }
+    public static void main(String[] args) {
+        String mode = (args.length > 0) ? args[0] : "thread";
+        ServerLog.configure(System.getProperty("tetris.log", "production"));
+        String replays = System.getProperty("tetris.replays", ReplayRecorder.DIRECTORY);
+        ReplayRecorder.DIRECTORY = replays.equals("off") ? null : replays;
+        try {
 
-    /**
-     * The client has won, and updates the database for this current game. Called 
-     * with the client sends "WIN"
-     * @param line The lines sent, line[1] is an optional parameter that contains
-     * the user's score for this game
-     */
-    private void win(String[] line) {
-        opponent = null;
-        inGame = false;
+            int port = (args.length > 1) ? Integer.parseInt(args[1]) : 8080;
+            
+            //matchmaker and logged users, as well as the lock of the logged users
+            matchmaker = new Matchmaker<TetrisServerHandler>(TetrisServerHandler::startMatch);
+            LinkedHashSet<String> loggedUsers = new LinkedHashSet<String>();
+            Object loggedLock = new Object();
 
-        System.out.println(tName + ": WIN success");
-        // update db here
-        try {
-            int score = Integer.parseInt(line[1]);
-            TetrisDatabase.addGame(user, true, score);
-        } catch (Exception e) {
-            TetrisDatabase.addGame(user, true);
+            if (FLUSH_TICK_MILLIS > 0)
+                flusher = new TickFlusher(FLUSH_TICK_MILLIS);
+            reaper = new ConnectionReaper();
+            sessions = new SessionRegistry<TetrisServerHandler>();
+
+            //the gauges of the metrics, read whenever the metrics are
+            ServerMetrics.gauge("clients_connected", TetrisServer::getNumClients);
+            ServerMetrics.gauge("clients_accepted", () -> admission.getNumAccepted());
+            ServerMetrics.gauge("clients_waiting", () -> admission.getNumWaiting());
+            ServerMetrics.gauge("clients_rejected", () -> admission.getNumRejected());
+            ServerMetrics.gauge("clients_closed_waiting", () -> admission.getNumClosed());
+            ServerMetrics.gauge("users_logged_in", () -> {
+                synchronized (loggedLock) {
+                    return loggedUsers.size();
+                }
+            });
+            ServerMetrics.gauge("matchmaking_queue_depth", () -> matchmaker.getNumWaiting());
+            ServerMetrics.gauge("matchmaking_cancelled", () -> matchmaker.getNumCancelled());
+            ServerMetrics.gauge("matches_active", Match::getNumActive);
+            ServerMetrics.gauge("matches_total", Match::getNumMatches);
+            ServerMetrics.gauge("connections_pinged", () -> reaper.getNumPings());
+            ServerMetrics.gauge("connections_reaped", () -> reaper.getNumReaped());
+            ServerMetrics.gauge("sessions_waiting", () -> sessions.getNumWaiting());
+            ServerMetrics.gauge("sessions_resumed", () -> sessions.getNumResumed());
+            ServerMetrics.gauge("sessions_expired", () -> sessions.getNumExpired());
+            ServerMetrics.gauge("db_connections_open", TetrisDatabase::getNumConnections);
+            GameResultWriter results = TetrisDatabase.writer();
+            ServerMetrics.gauge("db_results_queued", () -> results.getNumQueued());
+            ServerMetrics.gauge("db_results_written", () -> results.getNumWritten());
+            ServerMetrics.gauge("db_results_failed", () -> results.getNumFailed());
+            ServerMetrics.gauge("db_batches_written", () -> results.getNumBatches());
+            ServerMetrics.gauge("db_results_direct", () -> results.getNumDirect());
+            ServerMetrics.register("matchmaking_wait", matchmaker.getWaits());
+            String metrics = System.getProperty("tetris.metrics", String.valueOf(port + METRICS_PORT_OFFSET));
+            ServerMetrics.start(metrics.equals("off") ? 0 : Integer.parseInt(metrics));
+
+            //joins the cluster, whose coordinator then does the matchmaking
+            if (args.length > 2) {
+                int relayPort = (args.length > 3) ? Integer.parseInt(args[3]) : port + 1000;
+                cluster = new ClusterNode(args[2], relayPort);
+            }
+
+            //non-blocking mode, a few event loops drive all the connections
+            if (mode.equals("nio")) {
+                admission = new AdmissionController(MAX_NIO_CLIENTS, MAX_WAITING_CLIENTS);
+                TetrisNioServer nioServer = new TetrisNioServer(port, NIO_EVENT_LOOPS, admission,
+                        matchmaker, loggedUsers, loggedLock);
+                nioServer.run();
+                return;
+            }
+
+            //without virtual threads, the virtual mode runs platform threads, so it gets their limit
+            clientExecutor = mode.equals("virtual") ? newVirtualExecutor() : null;
+            int maxClients = (clientExecutor != null) ? MAX_VIRTUAL_CLIENTS : MAX_CLIENTS;
+            if (clientExecutor == null)
+                clientExecutor = newClientExecutor(mode.equals("virtual"));
+            admission = new AdmissionController(maxClients, MAX_WAITING_CLIENTS);
+
+            ServerSocket s = new ServerSocket(port, maxClients);
+            
+            //awaits for clients to connect, and when they do, either runs a new handler for the 
+            //connection, or tells the client to wait for a free slot
+            while (true) {
+                Socket socket = s.accept();
+                socket.setKeepAlive(true);
+                ServerLog.info(ServerLog.Event.SERVER, "SERVER", "Client connected");
+
+                TetrisServerHandler serverHandler = new TetrisServerHandler(socket, matchmaker, loggedUsers, loggedLock);
+                admission.admit(new SocketCandidate(socket, unread -> {
+                    serverHandler.setUnread(unread);
+                    clientExecutor.execute(() -> {
+                        try {
+                            serverHandler.run();
+                        } finally {
+                            admission.release();
+                        }
+                    });
+                }));
+                ServerLog.info(ServerLog.Event.SERVER, "SERVER", "admission", admission);
+            }
+        }
+        catch (Exception e) {
         }
     }
+}
 
-    /**
-     * The run function for the TetrisServerHandler, which handles a single client/server
-     * connection.
-     */
-    public void run() {
-        tName = Thread.currentThread().getName();
-        System.out.println("SERVER: Created thread " + tName);
-
-        try {
+/**
+ * SocketCandidate is a blocking socket connection asking the AdmissionController
+ * to be served.
+ */
+class SocketCandidate implements AdmissionController.Candidate {
 
-            InputStream inStream = socket.getInputStream();
-            OutputStream outStream = socket.getOutputStream();
+    /** The most bytes kept from a client while it waits, past this it isn't read until served */
+    private static final int MAX_UNREAD = 4096;
 
-            Scanner in = new Scanner(inStream);
-            out = new PrintWriter(outStream, true); // autoflush
+    private Socket socket;              /** The socket connected with this client */
+    private Consumer<byte[]> onStart;   /** Starts the handler of this connection */
+    private ByteArrayOutputStream unread; /** What the client sent while waiting */
 
-            while (in.hasNextLine()) {
-                String[] line = in.nextLine().split(" ");
-                if (line.length == 0)
-                    continue;
+    /**
+     * Creates an instance of the SocketCandidate
+     * @param sock The socket connected with this client
+     * @param onStart Starts the handler of this connection once it is admitted,
+     * with what the client sent while waiting
+     */
+    public SocketCandidate(Socket sock, Consumer<byte[]> onStart) {
+        socket = sock;
+        this.onStart = onStart;
+        unread = new ByteArrayOutputStream();
+    }
 
-                // if not logged in, the available commands are register and login
-                if (user == null) {
-                    if (line[0].equals("REGISTER") && line.length > 2)
-                        register(line);
-                    if (line[0].equals("LOGIN") && line.length > 2)
-                        login(line);
-                }
+    public void start() {
+        onStart.accept(unread.toByteArray());
+    }
 
-                if (line[0].equals("LEADERBOARD"))
-                    leaderboard(line);
-
-                // if logged in, the user can join queue
-                if (user != null) {
-                    if (line[0].equals("PLAY") && !inQueue && !inGame)
-                        play();
-                    //if the user is in game, then the game commands are available
-                    if (inGame) {
-                        if (line[0].equals("MOVE") && line.length > 1)
-                            move(line[1]);
-                        if (line[0].equals("BOARD") && line.length > 1)
-                            board(line[1]);
-                        if (line[0].equals("SEND"))
-                            send();
-                        if (line[0].equals("LOSE"))
-                            lose(line);
-                        if (line[0].equals("WIN"))
-                            win(line);
-                    }
+    public boolean isClosed() {
+        try {
+            //a blocking socket can't be polled, so this waits a millisecond for the client's bytes or end of stream
+            socket.setSoTimeout(1);
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[1024];
+            while (unread.size() < MAX_UNREAD) {
+                int n = in.read(buf);
+                if (n < 0) {
+                    socket.close();
+                    return true;
                 }
+                unread.write(buf, 0, n);
+            }
+            return false;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e2) {
+            }
+            return true;
+        } finally {
+            try {
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
             }
-        } 
-        catch (IOException e) {
         }
+    }
 
-        System.out.println(tName + ": Client disconnected");
-        
-        //removes the user from the loggedUsers, since the client disconnected
-        if(user != null){
-            synchronized(loggedLock){
-                loggedUsers.remove(user);
-            }
+    public void busy(int position) {
+        writeLine("BUSY " + position);
+    }
+
+    public void reject() {
+        writeLine("FAILURE BUSY");
+        try {
+            socket.close();
+        } catch (IOException e) {
         }
+    }
 
-        if(inGame){
-            lose(null);
+    /**
+     * Writes a single line to the client, without waiting for the handler
+     * @param line The line to write
+     */
+    private void writeLine(String line) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write((line + "\n").getBytes());
+            out.flush();
+        } catch (IOException e) {
         }
     }
 }
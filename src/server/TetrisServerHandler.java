@@ -0,0 +1,1099 @@
+package src.server;
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+import src.main.TetrisProtocol;
+import src.main.BoardSync;
+
+/** 
+ * TetrisServerHandler is the server handler for the TetrisServer class.
+ * It is connected to one client at all times.
+ */
+class TetrisServerHandler implements Runnable, TetrisProtocol.Listener, Player, ConnectionReaper.Connection,
+        SessionRegistry.Session {
+    
+    private Socket socket;    /** The socket connected with this client */
+    private String tName;     /** The current thread name, for readability in debug prints */
+    private String user;      /** The username of the current client -- null if the client is not logged in */
+    
+    private LinkedHashSet<String> loggedUsers;   /** Stores all the users that are currently logged in */
+    private Object loggedLock;                   /** Lock for the loggedUsers Set */
+    private Matchmaker<TetrisServerHandler> matchmaker; /** Pairs the users waiting for a game */
+
+    private volatile boolean inQueue; /** Boolean to check if the user is currently in queue */
+    private volatile Game match;      /** The game the user is currently in, null if currently not in game */
+    private volatile boolean closed;  /** True once the client has disconnected */
+    
+    private TetrisProtocol.Writer out;      /** The output stream, text lines or binary frames */
+    private TetrisProtocol.Decoder decoder; /** Splits the input into text lines or binary frames */
+    private CommandParser parser;           /** Parses the frequent game commands of the text lines in place */
+    private int version;       /** The protocol version agreed on with the client */
+
+    private byte[] boardCells;   /** The client's board, as last sent by the client */
+    private BoardSync boardOut;  /** Sends the opponent's board to this client as deltas */
+    private Spectator spectator; /** Sends this client the match it watches, null until the user watches one */
+    private LongSupplier backlog; /** The number of bytes waiting for the client */
+
+    private ServerEvents.Disconnect connection; /** The JFR event of the connection, begun when it was accepted */
+    private volatile ServerEvents.QueueExit queued; /** The JFR event of the wait in the matchmaking queue, null if not queued */
+    private int numRelayed;     /** The number of game messages relayed, samples the JFR events */
+
+    private volatile long lastRead; /** When anything was last read from the client, from System.nanoTime() */
+    private Closeable closer;       /** Closes the connection, so that the reaper can close it from its thread */
+    private String session;         /** The token of the user's session, null if the client can't resume it */
+
+    private Executor worker;              /** Runs the commands that wait on the database, null to run them on the reading thread */
+    private Executor reader;              /** Runs what the client sent after a command handed to the worker, on the reading thread */
+    private ArrayDeque<Runnable> deferred; /** What the client sent while a command runs on the worker, null if none runs */
+    private byte[] unread;                /** What the client sent while waiting for a slot, handled before the rest */
+
+    /**
+     * Creates an instance of the TetrisServerHandler 
+     * @param sock The socket connected with this client
+     * @param matchmaker The reference to the matchmaker
+     * @param lUsers The reference to the loggedUsers
+     * @param lLock The lock for the loggedUsers
+     */
+    public TetrisServerHandler(Socket sock, Matchmaker<TetrisServerHandler> matchmaker, LinkedHashSet<String> lUsers, Object lLock) {
+        socket = sock;
+        user = null;
+        
+        loggedUsers = lUsers;
+        loggedLock = lLock;
+        this.matchmaker = matchmaker;
+
+        inQueue = false;
+        match = null;
+        closed = false;
+
+        decoder = new TetrisProtocol.Decoder(this);
+        parser = new CommandParser();
+        version = 1;
+
+        boardCells = new byte[TetrisProtocol.BOARD_SIZE];
+        boardOut = new BoardSync();
+        lastRead = System.nanoTime();
+        closer = sock;
+        if (sock != null)
+            connection = ServerEvents.connect(String.valueOf(sock.getRemoteSocketAddress()));
+    }
+
+    /**
+     * Creates an instance of the TetrisServerHandler that is not bound to a 
+     * blocking socket, used by the NIO server mode. The caller feeds the bytes 
+     * through feed() and calls disconnect() when the connection closes.
+     * @param name The name of the connection, for readability in debug prints
+     * @param output The output stream to the client
+     * @param matchmaker The reference to the matchmaker
+     * @param lUsers The reference to the loggedUsers
+     * @param lLock The lock for the loggedUsers
+     */
+    public TetrisServerHandler(String name, OutputStream output, Matchmaker<TetrisServerHandler> matchmaker, LinkedHashSet<String> lUsers, Object lLock) {
+        this(null, matchmaker, lUsers, lLock);
+        tName = name;
+        out = new TetrisProtocol.Writer(output);
+        out.setBatcher(TetrisServer.getFlusher());
+        if (output instanceof NioConnection.Output)
+            backlog = ((NioConnection.Output) output)::getBacklog;
+        closer = output;
+        connection = ServerEvents.connect(name);
+        ConnectionReaper reaper = TetrisServer.getReaper();
+        if (reaper != null)
+            reaper.add(this);
+    }
+
+    /**
+     * Hands the commands that wait on the database (REGISTER, LOGIN,
+     * LEADERBOARD and PLAY) to a worker, used by the NIO server mode so that
+     * the event loop never waits on the database. What the client sends
+     * meanwhile, and its disconnection, are handled once the command is done,
+     * in order, on the event loop.
+     * @param worker Runs the commands that wait on the database
+     * @param reader Runs the rest, on the thread that feeds the handler
+     */
+    void setWorker(Executor worker, Executor reader) {
+        this.worker = worker;
+        this.reader = reader;
+    }
+
+    /**
+     * Sets what the client sent while its connection waited for a slot (see
+     * AdmissionController), which run() handles first
+     * @param bytes The bytes read from the socket so far
+     */
+    void setUnread(byte[] bytes) {
+        unread = bytes;
+    }
+
+    /**
+     * Decodes bytes sent by the client, handling every complete message
+     * @param buf The buffer holding the bytes
+     * @param off The offset of the bytes
+     * @param len The number of bytes
+     * @throws IOException If the client sent an invalid message
+     */
+    public void feed(byte[] buf, int off, int len) throws IOException {
+        lastRead = System.nanoTime();
+        decoder.feed(buf, off, len);
+    }
+
+    /**
+     * Gets the name of the user currently logged in
+     * @return The username of the current user
+     */
+    public String getName() {
+        return user;
+    }
+
+    /**
+     * Agrees on the protocol version with the client, called when the client
+     * sends "HELLO". From version 2 on, the server answers in binary frames
+     * right after the reply.
+     * @param clientVersion The newest protocol version supported by the client
+     */
+    private void hello(String clientVersion) {
+        try {
+            version = Math.max(1, Math.min(Integer.parseInt(clientVersion), TetrisProtocol.VERSION));
+        } catch (Exception e) {
+            version = 1;
+        }
+        synchronized (out) {
+            out.println("HELLO " + version);
+            out.setBinary(version >= TetrisProtocol.BINARY_VERSION);
+        }
+        ServerLog.info(ServerLog.Event.AUTH, tName, "HELLO success, protocol version", version);
+    }
+
+    /**
+     * Attempts to register the requested user, called when the client sends 
+     * "REGISTER"
+     * @param line The lines sent, [1] is the username, [2] is the password
+     * @return True if the registration was successful, false otherwise
+     */
+    private boolean register(String[] line) {
+        String username = line[1];
+        int hashedPassword;
+
+        // getting the hashed password
+        try {
+            hashedPassword = Integer.parseInt(line[2]);
+        } catch (Exception e) {
+            // invalid password
+            if (!TetrisDatabase.isValidEntry(line[2])) {
+                out.println("FAILURE INVALID");
+                ServerLog.info(ServerLog.Event.AUTH, tName, "REGISTER failed, credentials invalid");
+                return false;
+            }
+            hashedPassword = line[2].hashCode();
+        }
+
+        // invalid username
+        if (!TetrisDatabase.isValidEntry(username)) {
+            out.println("FAILURE INVALID");
+            ServerLog.info(ServerLog.Event.AUTH, tName, "REGISTER failed, credentials invalid");
+            return false;
+        }
+
+        // username taken
+        if (!TetrisDatabase.addUser(username, hashedPassword)) {
+            out.println("FAILURE TAKEN");
+            ServerLog.info(ServerLog.Event.AUTH, tName, "REGISTER failed, username taken");
+            return false;
+        } 
+        //successful registration
+        else {
+            user = username;
+            out.println("SUCCESS " + user + " 0 0 0");
+            openSession();
+            ServerLog.info(ServerLog.Event.AUTH, tName, "REGISTER success, User", user);
+            return true;
+        }
+    }
+
+    /**
+     * Attempts to login with the given credentials, called when the client sends
+     * "LOGIN"
+     * @param line The lines sent, [1] is the username, [2] is the password
+     * @return True if the login was successful, false otherwise
+     */
+    private boolean login(String[] line) {
+        String username = line[1];
+        int hashedPassword;
+
+        // getting the hashed password
+        try {
+            hashedPassword = Integer.parseInt(line[2]);
+        } catch (Exception e) {
+            // invalid password
+            if (!TetrisDatabase.isValidEntry(line[2])) {
+                out.println("FAILURE INVALID");
+                ServerLog.info(ServerLog.Event.AUTH, tName, "LOGIN failed, credentials invalid");
+                return false;
+            }
+            hashedPassword = line[2].hashCode();
+        }
+
+        // invalid username
+        if (!TetrisDatabase.isValidEntry(username)) {
+            out.println("FAILURE INVALID");
+            ServerLog.info(ServerLog.Event.AUTH, tName, "LOGIN failed, credentials invalid");
+            return false;
+        }
+
+        // username taken
+        if (!TetrisDatabase.authenticateUser(username, hashedPassword)) {
+            out.println("FAILURE INCORRECT");
+            ServerLog.info(ServerLog.Event.AUTH, tName, "LOGIN failed, credentials incorrect");
+            return false;
+        } 
+        else {
+            synchronized(loggedLock){
+                //a client that lost its connection logs in again instead of resuming, its old session ends now
+                SessionRegistry<TetrisServerHandler> sessions = TetrisServer.getSessions();
+                if (sessions != null)
+                    sessions.expireUser(username);
+
+                //if the user is already logged in
+                if(loggedUsers.contains(username)){
+                    out.println("FAILURE LOGGED");
+                    ServerLog.info(ServerLog.Event.AUTH, tName, "LOGIN failed, user already logged in");
+                    return false;
+                }
+                //successful login
+                else{
+                    loggedUsers.add(username);
+                    user = username;
+                    out.println("SUCCESS " + user + " " + getStatsStr());
+                    openSession();
+                    ServerLog.info(ServerLog.Event.AUTH, tName, "LOGIN success, User", user);
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the session of the user who just logged in, and sends its token to
+     * a client that can resume it
+     */
+    private void openSession() {
+        SessionRegistry<TetrisServerHandler> sessions = TetrisServer.getSessions();
+        if (version < TetrisProtocol.RESUME_VERSION || sessions == null)
+            return;
+        session = sessions.open(this);
+        out.println("SESSION " + session);
+    }
+
+    /**
+     * Resumes the session of a client that reconnected, called when the client
+     * sends "RESUME". The user is logged in again without the database, and a
+     * game still running continues on this connection (see Match.resume()).
+     * @param token The token of the session
+     */
+    private void resume(String token) {
+        SessionRegistry<TetrisServerHandler> sessions = TetrisServer.getSessions();
+        TetrisServerHandler old = (sessions == null) ? null : sessions.resume(token, this);
+        if (old == null) {
+            //an open session is being closed by resume(), the client tries again
+            boolean open = sessions != null && sessions.isOpen(token);
+            out.println(open ? "FAILURE RESUMING" : "FAILURE EXPIRED");
+            ServerLog.info(ServerLog.Event.AUTH, tName, "RESUME failed,", open ? "session still open" : "session expired");
+            return;
+        }
+        user = old.user;
+        session = token;
+        Game m = old.match;
+        if (m instanceof Match)
+            ((Match) m).resume(old, this);
+        else
+            resumed(null, null, null, 0, null);
+        ServerLog.info(ServerLog.Event.AUTH, tName, "RESUME success, User", user);
+    }
+
+    /**
+     * Sends the client the state of its game, which continues on this
+     * connection, or only its username if the game has ended. Called by the
+     * Match.
+     * @param g The game, null if the user's game has already ended
+     * @param opponentName The username of the opponent
+     * @param opponentStats The String representation of the opponent's stats
+     * @param seed The seed of the pieces
+     * @param snapshot The state of the user's game (see TetrisEngine.toSnapshot())
+     */
+    public void resumed(Game g, String opponentName, String opponentStats, long seed, String snapshot) {
+        if (g == null) {
+            out.println("RESUMED " + user);
+            return;
+        }
+        setMatch(g);
+        boardOut.reset();
+        out.println("RESUMED " + user + " " + opponentName + " " + opponentStats + " " + seed + " " + snapshot);
+        out.flush();
+    }
+
+    /**
+     * Ends the session once the client hasn't resumed it in time: logs the
+     * user out and forfeits the game in progress. Called by the
+     * SessionRegistry.
+     */
+    public void expire() {
+        synchronized(loggedLock){
+            loggedUsers.remove(user);
+        }
+        lose(-1);
+    }
+
+    /**
+     * Gets the String representation of the current user's stats
+     * @return The String representation of the user's stats
+     */
+    public String getStatsStr() {
+        int[] stats = TetrisDatabase.getStats(user);
+        return stats[0] + " " + stats[1] + " " + stats[2];
+    }
+
+    /**
+     * Gets the leaderboard, which is based on high scores, called when the 
+     * client sends "LEADERBOARD"
+     * @param line The lines sent, line[1] is the optional parameter, which 
+     * will instead of showing the top 10 scores, will retrieve the top
+     * line[1] scores
+     */
+    private void leaderboard(String[] line) {
+        Pair[] lb;
+
+        //attempts to parse the optional parameter
+        try {
+            lb = TetrisDatabase.getLeaderboard(Integer.parseInt(line[1]));
+        } catch (Exception e) {
+            lb = TetrisDatabase.getLeaderboard();
+        }
+        
+        //sends the leaderboard
+        String output = "LEADERBOARD";
+        for (int i = 0; i < lb.length; i++) {
+            if(lb[i] == null) break;
+            output += " " + lb[i];
+        }
+        out.println(output);
+        ServerLog.info(ServerLog.Event.AUTH, tName, "LEADERBOARD success");
+    }
+
+    /**
+     * Enters the user in the matchmaking queue, called when the client sends
+     * "PLAY"
+     */
+    private void play() {
+        unwatch();
+        //matched with the closest waiting rating, or waits for an opponent
+        int rating = TetrisDatabase.getRating(user);
+        queued = ServerEvents.queueEnter(user, rating);
+        inQueue = true;
+        ClusterNode cluster = TetrisServer.getCluster();
+        if (cluster != null && cluster.isJoined()) {
+            cluster.play(this, rating);
+            ServerLog.info(ServerLog.Event.GAME, tName, "PLAY awaiting, Added to the cluster's matchmaking pool");
+        }
+        else if (!matchmaker.play(this, rating))
+            ServerLog.info(ServerLog.Event.GAME, tName, "PLAY awaiting, Added to matchmaking queue");
+    }
+
+    /**
+     * Starts watching the match of another user, called when the client sends
+     * "WATCH". The client is sent "WATCH player0 player1" and the boards of both
+     * players, then the events of the game: "WATCH BOARD i board", "WATCH MOVE i
+     * keyCode", "WATCH SEND i line", and "WATCH LOSE i" once the game is over,
+     * where i is the index of the player.
+     * @param username The username of one of the players
+     */
+    private void watch(String username) {
+        Match m = Match.find(username);
+        if (m == null) {
+            out.println("FAILURE NOTFOUND");
+            ServerLog.info(ServerLog.Event.GAME, tName, "WATCH failed, not playing:", username);
+            return;
+        }
+        unwatch();
+        if (spectator == null)
+            spectator = new Spectator(out, backlog);
+        m.watch(spectator);
+        ServerLog.info(ServerLog.Event.GAME, tName, "WATCH success,", username);
+    }
+
+    /**
+     * Stops watching a match, called when the client sends "UNWATCH", starts
+     * playing or disconnects
+     */
+    private void unwatch() {
+        Match m = (spectator == null) ? null : spectator.getMatch();
+        if (m != null)
+            m.unwatch(spectator);
+    }
+
+    /**
+     * Starts the game of two matched users, generating the seed. Called by the
+     * Matchmaker, on the thread that made the pair.
+     * @param a The user who waited first
+     * @param b The other user
+     */
+    static void startMatch(TetrisServerHandler a, TetrisServerHandler b) {
+        long seed = (new Random()).nextLong();
+        Match m = new Match(seed, a, a.getStatsStr(), b, b.getStatsStr());
+        a.setMatch(m);
+        b.setMatch(m);
+        ServerLog.info(ServerLog.Event.GAME, b.tName, "MATCH success, opponent", a.getName());
+        ServerLog.info(ServerLog.Event.GAME, "SERVER", "matchmaking", TetrisServer.getMatchmaker());
+        m.start();
+        //a user may have disconnected while being taken out of the queue
+        if (a.closed)
+            m.lose(a, -1);
+        if (b.closed)
+            m.lose(b, -1);
+    }
+
+    /**
+     * Sets the game the user is in
+     * @param m The game
+     */
+    synchronized void setMatch(Game m) {
+        match = m;
+    }
+
+    /**
+     * Leaves the game, unless the user is already in another one. The user
+     * leaves as soon as their client sends "LOSE" or "WIN", so that a "PLAY"
+     * sent right after isn't ignored while the Match is still ending the game.
+     * @param m The game
+     */
+    synchronized void endMatch(Game m) {
+        if (match == m)
+            match = null;
+    }
+
+    /**
+     * Records the JFR event of the user leaving the matchmaking queue, once
+     * @param matched True if the user was matched, false if they left
+     */
+    private synchronized void leftQueue(boolean matched) {
+        ServerEvents.queueExit(queued, matched);
+        queued = null;
+    }
+
+    /**
+     * Checks if the client has disconnected
+     * @return True once the client has disconnected
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Gets when anything was last read from the client
+     * @return The time, from System.nanoTime()
+     */
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    /**
+     * Checks if the client answers "PING" with "PONG"
+     * @return True if the agreed protocol version has the heartbeat
+     */
+    public boolean isHeartbeating() {
+        return version >= TetrisProtocol.HEARTBEAT_VERSION;
+    }
+
+    /**
+     * Checks if the user is in a game
+     * @return True if the user is playing
+     */
+    public boolean isPlaying() {
+        return match != null;
+    }
+
+    /**
+     * Sends "PING" to the client, which answers "PONG". Called by the
+     * ConnectionReaper once the client has been silent for a while.
+     */
+    public void ping() {
+        out.println("PING");
+    }
+
+    /**
+     * Closes the connection of a client that has been silent for too long.
+     * Called by the ConnectionReaper; the reading thread, or the event loop in
+     * the NIO mode, then cleans up through disconnect().
+     */
+    public void kill() {
+        ServerLog.info(ServerLog.Event.GAME, tName, "Connection timed out, closing");
+        try {
+            closer.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Gets the protocol version agreed on with the client
+     * @return The protocol version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Sends to the client that they've been matched with an opponent. Called
+     * by the Match.
+     * @param opponentName The username of the opponent
+     * @param opponentStats The String representation of the opponent's stats
+     * @param seed The seed both clients will use to randomly generate their pieces
+     */
+    public void matched(String opponentName, String opponentStats, long seed) {
+        inQueue = false;
+        leftQueue(true);
+        boardOut.reset();
+        out.println("MATCH " + opponentName + " " + opponentStats + " " + seed);
+        //the game starts now, so it isn't held back until the next tick
+        out.flush();
+    }
+
+    /**
+     * Tells the opponent that they have moved their piece, to update
+     * the opponent's opponent board. Called when the client sends "MOVE"
+     * @param keyPressed The keyCode of the key the client pressed
+     */
+    private void move(int keyPressed) {
+        Game m = match;
+        if (m != null)
+            m.move(this, keyPressed);
+        ServerLog.info(ServerLog.Event.MOVE, tName, "MOVE success,", keyPressed);
+    }
+
+    /**
+     * Tells the client that the opponent has moved their piece, to update
+     * the client's opponent board. 
+     * @param keyPressed The keyCode of the key the opponent pressed
+     */
+    public void opponentMove(int keyPressed) {
+        if (out.isBinary())
+            out.frame(TetrisProtocol.OPPONENT_MOVE, keyPressed);
+        else
+            out.println("OPPONENT MOVE " + keyPressed);
+        ServerLog.info(ServerLog.Event.MOVE, tName, "OPPONENT MOVE success,", keyPressed);
+    }
+
+    /**
+     * Sends the opponent their entire board, to update the opponent's 
+     * opponent board (to avoid synchronization errors). Called when the
+     * sends "BOARD"
+     * @param board The String representation of the client's board
+     */
+    public void board(String board){
+        Game m = match;
+        if(m != null && board.length() == TetrisProtocol.BOARD_SIZE){
+            TetrisProtocol.toCells(board, boardCells);
+            m.board(this, boardCells);
+            ServerLog.info(ServerLog.Event.BOARD, tName, "BOARD success,", board);
+        }
+    }
+
+    /**
+     * Sends the opponent the board parsed from a text line by the CommandParser
+     * @param cells The cells of the client's board
+     */
+    private void board(byte[] cells){
+        Game m = match;
+        if(m != null){
+            m.board(this, cells);
+            ServerLog.info(ServerLog.Event.BOARD, tName, "BOARD success, text");
+        }
+    }
+
+    /**
+     * Sends the opponent the packed board, the binary form of board()
+     * @param buf The buffer holding the board packed by TetrisProtocol.packBoard()
+     * @param off The offset of the packed board
+     */
+    private void board(byte[] buf, int off){
+        Game m = match;
+        if(m != null){
+            TetrisProtocol.unpackCells(buf, off, boardCells);
+            m.board(this, boardCells);
+            ServerLog.info(ServerLog.Event.BOARD, tName, "BOARD success, binary");
+        }
+    }
+
+    /**
+     * Applies the changed cells to the client's board, and sends the board to
+     * the opponent. Called when the client sends a BOARD_DELTA frame
+     * @param buf The buffer holding the delta
+     * @param off The offset of the delta
+     * @param len The length of the delta
+     */
+    private void boardDelta(byte[] buf, int off, int len){
+        Game m = match;
+        if(m != null && TetrisProtocol.applyDelta(buf, off, len, boardCells)){
+            m.board(this, boardCells);
+            ServerLog.info(ServerLog.Event.BOARD, tName, "BOARD DELTA success, cells:", len / 2);
+        }
+    }
+
+    /**
+     * Sends the client the opponent's entire board, to update the client's 
+     * opponent board (to avoid synchronization errors). Depending on the 
+     * protocol version, the board is sent as a delta, a packed frame or a line.
+     * @param cells The cells of the opponent's board
+     */
+    public void opponentBoard(byte[] cells) {
+        if (version >= TetrisProtocol.DELTA_VERSION) {
+            boardOut.write(cells, out);
+        }
+        else if (out.isBinary()) {
+            byte[] packed = new byte[TetrisProtocol.BOARD_SIZE / 2];
+            TetrisProtocol.packCells(cells, packed);
+            out.frame(TetrisProtocol.BOARD, packed, 0, packed.length);
+        }
+        else
+            out.println("BOARD " + TetrisProtocol.cellsToString(cells));
+        ServerLog.info(ServerLog.Event.BOARD, tName, "BOARD success");
+    }
+
+    /**
+     * Sends a randomized line to the opponent, called when the client sends
+     * "SEND". The Match generates the line.
+     */
+    private void send() {
+        Game m = match;
+        if (m != null)
+            m.send(this);
+    }
+
+    /**
+     * Tells the client which line it sent to the opponent
+     * @param line The String representation of the line
+     */
+    public void sent(String line) {
+        if (out.isBinary())
+            out.frame(TetrisProtocol.SENT, TetrisProtocol.lineToMask(line));
+        else
+            out.println("SENT " + line);
+        ServerLog.info(ServerLog.Event.SEND, tName, "SEND success,", line);
+    }
+
+    /**
+     * Sends the client that the opponent has sent a line
+     * @param lineSent The String representation of the line the opponent sent
+     * the client
+     */
+    public void opponentSend(String lineSent) {
+        if (out.isBinary())
+            out.frame(TetrisProtocol.OPPONENT_SEND, TetrisProtocol.lineToMask(lineSent));
+        else
+            out.println("OPPONENT SEND " + lineSent);
+        ServerLog.info(ServerLog.Event.SEND, tName, "OPPONENT SEND success,", lineSent);
+    }
+
+    /**
+     * Tells the opponent that the client has lost, called when the client sends
+     * "LOSE"
+     * @param score The user's score for this game, -1 if the client didn't send it
+     */
+    private void lose(int score) {
+        Game m = match;
+        if (m != null) {
+            m.lose(this, score);
+            endMatch(m);
+        }
+    }
+
+    /**
+     * Tells the client that the opponent has lost
+     */
+    public void opponentLose() {
+        if (out.isBinary())
+            out.frame(TetrisProtocol.OPPONENT_LOSE);
+        else
+            out.println("OPPONENT LOSE");
+        out.flush();
+        ServerLog.info(ServerLog.Event.GAME, tName, "OPPONENT LOSE success");
+    }
+
+    /**
+     * The client has won, called when the client sends "WIN"
+     * @param score The user's score for this game, -1 if the client didn't send it
+     */
+    private void win(int score) {
+        Game m = match;
+        if (m != null) {
+            m.win(this, score);
+            endMatch(m);
+        }
+    }
+
+    /**
+     * The client's game is over, and updates the database for this game. Called
+     * by the Match.
+     * @param m The game
+     * @param isWin True if the user won, false if they lost
+     * @param score The user's score for this game, -1 if unknown
+     */
+    public void ended(Game m, boolean isWin, int score) {
+        endMatch(m);
+        ServerLog.info(ServerLog.Event.GAME, tName, isWin ? "WIN success" : "LOSE success");
+        TetrisDatabase.addGame(user, isWin, score, m.getReplay());
+    }
+
+    /**
+     * Sends the client the hash of the simulated board after a piece has
+     * landed, so that the client can check that its own board matches it
+     * @param numPieces The number of pieces spawned so far
+     * @param hash The hash of the simulated board
+     */
+    public void hash(int numPieces, int hash) {
+        out.frame(TetrisProtocol.HASH, numPieces, hash);
+    }
+
+    /**
+     * Sends the client the simulated board and score, after the client sent
+     * "RESYNC" because its board no longer matched the hash
+     * @param board The String representation of the simulated board
+     * @param score The simulated score
+     */
+    public void sync(String board, int score) {
+        out.println("SYNC " + board + " " + score);
+        ServerLog.info(ServerLog.Event.GAME, tName, "RESYNC success");
+    }
+
+    /**
+     * Parses the optional score sent with "LOSE" and "WIN"
+     * @param line The lines sent, line[1] is the optional score
+     * @return The score, -1 if it is missing or invalid
+     */
+    private static int parseScore(String[] line) {
+        try {
+            return Integer.parseInt(line[1]);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Handles a single line sent by the client. During a game, the frequent game
+     * commands are parsed from the bytes of the line, without creating a String;
+     * every other line goes through the String-based handling. Both the blocking
+     * and the NIO server modes, and the TEXT frames, feed lines through here.
+     * @param buf The buffer holding the line
+     * @param off The offset of the line
+     * @param len The length of the line, without the line terminator
+     */
+    public void handleLine(byte[] buf, int off, int len) {
+        if (deferred != null) {
+            byte[] copy = Arrays.copyOfRange(buf, off, off + len);
+            deferred.add(() -> handleLine(copy, 0, copy.length));
+            return;
+        }
+        long start = System.nanoTime();
+        if (user != null && match != null) {
+            switch (parser.parse(buf, off, len)) {
+                case CommandParser.MOVE:
+                    move(parser.getKeyCode());
+                    relayed("MOVE", start);
+                    return;
+                case CommandParser.BOARD:
+                    board(parser.getCells());
+                    relayed("BOARD", start);
+                    return;
+                case CommandParser.SEND:
+                    send();
+                    relayed("SEND", start);
+                    return;
+            }
+        }
+        String[] line = TetrisProtocol.toLine(buf, off, len).split(" ");
+        if (line.length == 0)
+            return;
+        if (worker != null && waitsOnDatabase(line[0])) {
+            deferred = new ArrayDeque<Runnable>();
+            worker.execute(() -> {
+                try {
+                    handleLine(line);
+                    ServerMetrics.command(line[0], start);
+                } finally {
+                    reader.execute(this::undefer);
+                }
+            });
+            return;
+        }
+        handleLine(line);
+        ServerMetrics.command(line[0], start);
+    }
+
+    /**
+     * Checks if a command waits on the database
+     * @param command The first word of the line sent by the client
+     * @return True for REGISTER, LOGIN, LEADERBOARD and PLAY
+     */
+    private static boolean waitsOnDatabase(String command) {
+        return command.equals("REGISTER") || command.equals("LOGIN") || command.equals("LEADERBOARD")
+                || command.equals("PLAY");
+    }
+
+    /**
+     * Handles what the client sent while a command ran on the worker, called
+     * on the reading thread once the command is done
+     */
+    private void undefer() {
+        ArrayDeque<Runnable> waiting = deferred;
+        deferred = null;
+        Runnable r;
+        while (deferred == null && (r = waiting.poll()) != null)
+            r.run();
+        //another command went to the worker, the rest waits for it
+        if (deferred != null)
+            deferred.addAll(waiting);
+    }
+
+    /**
+     * Handles a single line sent by the client, dispatching it to the matching
+     * command
+     * @param line The words of the line sent by the client, at least one
+     */
+    private void handleLine(String[] line) {
+        // protocol negotiation, available at any time
+        if (line[0].equals("HELLO") && line.length > 1) {
+            hello(line[1]);
+            return;
+        }
+        if (line[0].equals("BINARY") && version >= TetrisProtocol.BINARY_VERSION) {
+            decoder.setBinary(true);
+            return;
+        }
+        //the answer to the heartbeat, reading it was enough
+        if (line[0].equals("PONG"))
+            return;
+
+        // if not logged in, the available commands are register, login and resume
+        if (user == null) {
+            if (line[0].equals("RESUME") && line.length > 1 && version >= TetrisProtocol.RESUME_VERSION)
+                resume(line[1]);
+            boolean isRegister = line[0].equals("REGISTER");
+            if ((isRegister || line[0].equals("LOGIN")) && line.length > 2) {
+                ServerEvents.Login event = new ServerEvents.Login();
+                event.begin();
+                boolean success = isRegister ? register(line) : login(line);
+                ServerEvents.login(event, line[1], isRegister, success);
+            }
+        }
+
+        if (line[0].equals("LEADERBOARD"))
+            leaderboard(line);
+
+        // if logged in, the user can join queue
+        if (user != null) {
+            if (line[0].equals("PLAY") && !inQueue && match == null)
+                play();
+            if (line[0].equals("WATCH") && line.length > 1 && !inQueue && match == null)
+                watch(line[1]);
+            if (line[0].equals("UNWATCH"))
+                unwatch();
+            //if the user is in game, then the game commands are available
+            if (match != null) {
+                if (line[0].equals("MOVE") && line.length > 1) {
+                    try {
+                        move(Integer.parseInt(line[1]));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+                if (line[0].equals("BOARD") && line.length > 1)
+                    board(line[1]);
+                if (line[0].equals("SEND"))
+                    send();
+                if (line[0].equals("LOSE"))
+                    lose(parseScore(line));
+                if (line[0].equals("WIN"))
+                    win(parseScore(line));
+            }
+        }
+    }
+
+    /**
+     * Handles a single binary frame sent by the client. TEXT frames go through 
+     * handleLine(), the game frames are dispatched directly on their opcode.
+     * @param opcode The opcode of the frame
+     * @param buf The buffer holding the payload
+     * @param off The offset of the payload
+     * @param len The length of the payload
+     */
+    public void handleFrame(int opcode, byte[] buf, int off, int len) {
+        if (opcode == TetrisProtocol.TEXT) {
+            handleLine(buf, off, len);
+            return;
+        }
+        if (deferred != null) {
+            byte[] copy = Arrays.copyOfRange(buf, off, off + len);
+            deferred.add(() -> handleFrame(opcode, copy, 0, len));
+            return;
+        }
+
+        //the other frames are the game commands
+        long start = System.nanoTime();
+        Game m = match;
+        if (user == null || m == null)
+            return;
+        switch (opcode) {
+            case TetrisProtocol.MOVE:
+                int keyPressed = TetrisProtocol.readVarint(buf, off, off + len);
+                if (keyPressed >= 0)
+                    move(keyPressed);
+                relayed("MOVE", start);
+                return;
+            case TetrisProtocol.BOARD:
+                if (len == TetrisProtocol.BOARD_SIZE / 2)
+                    board(buf, off);
+                relayed("BOARD", start);
+                return;
+            case TetrisProtocol.BOARD_DELTA:
+                boardDelta(buf, off, len);
+                relayed("BOARD_DELTA", start);
+                return;
+            case TetrisProtocol.SEND:
+                send();
+                relayed("SEND", start);
+                return;
+            case TetrisProtocol.LOSE:
+                lose(TetrisProtocol.readVarint(buf, off, off + len));
+                break;
+            case TetrisProtocol.WIN:
+                win(TetrisProtocol.readVarint(buf, off, off + len));
+                break;
+            case TetrisProtocol.TICK:
+                m.tick(this);
+                break;
+            case TetrisProtocol.APPLY:
+                m.apply(this);
+                break;
+            case TetrisProtocol.RESYNC:
+                m.resync(this);
+                break;
+        }
+        ServerMetrics.frame(opcode, start);
+    }
+
+    /**
+     * Counts a game message handled for the ServerMetrics, and records one out
+     * of ServerEvents.RELAY_SAMPLE as a JFR event
+     * @param command The command of the message
+     * @param start When the message was read, from System.nanoTime()
+     */
+    private void relayed(String command, long start) {
+        ServerMetrics.command(command, start);
+        if (++numRelayed % ServerEvents.RELAY_SAMPLE == 0)
+            ServerEvents.relay(user, command, start);
+    }
+
+    /**
+     * Cleans up after the client disconnected: logs the user out and forfeits
+     * any game that is still in progress. If the client can resume its
+     * session, the login and a game running on this node are kept instead,
+     * until the session is resumed or expires (see SessionRegistry).
+     */
+    public void disconnect() {
+        //a command still runs on the worker: the rest the client sent is dropped, and this runs once it is done
+        if (deferred != null) {
+            deferred.clear();
+            deferred.add(this::disconnect);
+            return;
+        }
+        ServerLog.info(ServerLog.Event.GAME, tName, "Client disconnected");
+
+        //parks the session, unless the game runs on another node of the cluster
+        SessionRegistry<TetrisServerHandler> sessions = TetrisServer.getSessions();
+        boolean parked = false;
+        if (session != null && sessions != null) {
+            Game m = match;
+            if (m == null || m instanceof Match)
+                parked = sessions.park(session);
+            else
+                sessions.close(session);
+        }
+        if (parked)
+            ServerLog.info(ServerLog.Event.GAME, tName, "Session kept for (ms)", SessionRegistry.GRACE_MILLIS);
+
+        //removes the user from the loggedUsers, since the client disconnected
+        if(user != null && !parked){
+            synchronized(loggedLock){
+                loggedUsers.remove(user);
+            }
+        }
+
+        //stops watching
+        unwatch();
+        if (spectator != null)
+            spectator.close();
+
+        //leaves the matchmaking queue, or forfeits the game in progress
+        closed = true;
+        ClusterNode cluster = TetrisServer.getCluster();
+        if (inQueue && cluster != null && cluster.isJoined()) {
+            cluster.cancel(this);
+            leftQueue(false);
+        }
+        else if (inQueue && matchmaker.cancel(this)) {
+            inQueue = false;
+            leftQueue(false);
+        }
+        if (!parked)
+            lose(-1);
+        ConnectionReaper reaper = TetrisServer.getReaper();
+        if (reaper != null)
+            reaper.remove(this);
+        ServerEvents.disconnect(connection, user);
+    }
+
+    /**
+     * The run function for the TetrisServerHandler, which handles a single client/server
+     * connection.
+     */
+    public void run() {
+        tName = Thread.currentThread().getName();
+        //virtual threads are unnamed by default
+        if (tName.isEmpty())
+            tName = "Virtual-" + Thread.currentThread().getId();
+        ServerLog.debug(ServerLog.Event.SERVER, "SERVER", "Created thread", tName);
+
+        try {
+
+            InputStream inStream = socket.getInputStream();
+            //the socket is written by a thread of its own, so that no sender waits on this client
+            SocketOutput outStream = new SocketOutput(socket, TetrisServer.getClientExecutor(), tName);
+            backlog = outStream::getBacklog;
+            closer = outStream;
+
+            out = new TetrisProtocol.Writer(outStream);
+            out.setBatcher(TetrisServer.getFlusher());
+            ConnectionReaper reaper = TetrisServer.getReaper();
+            if (reaper != null)
+                reaper.add(this);
+
+            if (unread != null && unread.length > 0)
+                feed(unread, 0, unread.length);
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = inStream.read(buf)) != -1) {
+                feed(buf, 0, n);
+            }
+        } 
+        catch (IOException e) {
+        }
+
+        //also stops the writer thread
+        try {
+            closer.close();
+        } catch (IOException e) {
+        }
+
+        disconnect();
+    }
+}
@@ -0,0 +1,130 @@
+package src.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import src.main.TetrisProtocol;
+
+/**
+ * <b>TickFlusher</b> batches the output of the server's connections. The
+ * writers that have messages waiting schedule themselves, and a single thread
+ * flushes all of them once per tick, so that the moves, boards and lines relayed
+ * to a client during a tick leave in one write instead of one write each.
+ * Urgent messages skip the wait by flushing their writer right away.
+ * <p>
+ * A flush only hands the bytes over to the connection, and never blocks: the
+ * NIO connections queue them for their event loop, and the connections of the
+ * blocking modes for their own writer thread (see SocketOutput). A client that
+ * stops reading therefore never holds up the tick, the other clients, or the
+ * Match sending to it.
+ */
+public class TickFlusher implements TetrisProtocol.Batcher, Runnable {
+
+    /** The number of ticks between two prints of the counters, 0 to never print them */
+    public static int STATS_INTERVAL = 1000;
+
+    private long tickMillis;                                  /** The length of a tick */
+    private ConcurrentLinkedQueue<TetrisProtocol.Writer> due; /** The writers to flush at the next tick */
+    private ScheduledExecutorService ticker;                  /** Runs the ticks */
+
+    private AtomicLong numMessages;  /** The total number of messages flushed */
+    private AtomicLong numFlushes;   /** The total number of flushes */
+    private long ticks;              /** The number of ticks run, only used by the ticker */
+    private long printedMessages;    /** The number of messages when the counters were last printed */
+
+    /**
+     * Creates an instance of the TickFlusher, and starts ticking
+     * @param tickMillis The length of a tick, in milliseconds
+     */
+    public TickFlusher(long tickMillis) {
+        this.tickMillis = tickMillis;
+        due = new ConcurrentLinkedQueue<TetrisProtocol.Writer>();
+        numMessages = new AtomicLong();
+        numFlushes = new AtomicLong();
+        ticks = 0;
+        printedMessages = 0;
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "TickFlusher");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(this, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void schedule(TetrisProtocol.Writer w) {
+        due.add(w);
+    }
+
+    public void flushed(int numMessages) {
+        this.numMessages.addAndGet(numMessages);
+        numFlushes.incrementAndGet();
+    }
+
+    /**
+     * Runs one tick: flushes every writer that has messages waiting
+     */
+    public void run() {
+        //only the writers scheduled before this tick are flushed, the others wait for the next one
+        for (int n = due.size(); n > 0; n--) {
+            TetrisProtocol.Writer w = due.poll();
+            if (w == null)
+                break;
+            w.flush();
+        }
+
+        ticks++;
+        if (STATS_INTERVAL > 0 && ticks % STATS_INTERVAL == 0 && numMessages.get() != printedMessages) {
+            printedMessages = numMessages.get();
+            ServerLog.info(ServerLog.Event.SERVER, "SERVER", "output", this);
+        }
+    }
+
+    /**
+     * Stops ticking. The messages still waiting are not flushed.
+     */
+    public void shutdown() {
+        ticker.shutdown();
+    }
+
+    /**
+     * Gets the length of a tick
+     * @return The length of a tick, in milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Gets the total number of messages flushed
+     * @return The number of messages
+     */
+    public long getNumMessages() {
+        return numMessages.get();
+    }
+
+    /**
+     * Gets the total number of flushes, each being one write to a connection
+     * @return The number of flushes
+     */
+    public long getNumFlushes() {
+        return numFlushes.get();
+    }
+
+    /**
+     * Gets the average number of messages written by a flush
+     * @return The average number of messages per flush, 0 before the first flush
+     */
+    public double getMessagesPerFlush() {
+        long flushes = numFlushes.get();
+        return (flushes == 0) ? 0 : (double) numMessages.get() / flushes;
+    }
+
+    /**
+     * toString() function for the TickFlusher
+     * @return The String representation of the counters
+     */
+    public String toString() {
+        return "tick=" + tickMillis + "ms messages=" + getNumMessages() + " flushes=" + getNumFlushes() +
+                " messagesPerFlush=" + String.format("%.2f", getMessagesPerFlush());
+    }
+}